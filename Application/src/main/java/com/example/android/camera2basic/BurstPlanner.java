@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Size;
+
+import java.util.Locale;
+
+/**
+ * Picks the format and size of still captures so that bursts keep up with a target frame rate
+ * next to the preview stream. Only uses {@link Size} from the framework, so it can also be
+ * exercised on a host JVM.
+ *
+ * <p>A burst request targets the still stream and the preview. The camera cannot finish such a
+ * request faster than the slower of the two streams allows. A stalling format such as JPEG also
+ * holds the next request back by its stall duration, so a burst frame is predicted to take</p>
+ *
+ * <pre>max(still min frame duration, preview min frame duration) + still stall duration</pre>
+ *
+ * <p>The largest still size whose predicted frame duration meets the target wins. If none
+ * does, the fastest one wins.</p>
+ */
+final class BurstPlanner {
+
+    /**
+     * {@code ImageFormat.JPEG} and {@code ImageFormat.YUV_420_888}.
+     */
+    static final int FORMAT_JPEG = 0x100;
+    static final int FORMAT_YUV_420_888 = 0x23;
+
+    private BurstPlanner() {
+    }
+
+    /**
+     * The output sizes of one still format, with the durations the camera reports for them.
+     */
+    static final class StreamOptions {
+
+        private final int mFormat;
+        private final Size[] mSizes;
+        private final long[] mMinFrameDurations;
+        private final long[] mStallDurations;
+
+        /**
+         * @param format            The {@code ImageFormat} of the stream
+         * @param sizes             The output sizes of the format
+         * @param minFrameDurations The minimum frame duration of each size, in nanoseconds
+         * @param stallDurations    The stall duration of each size, in nanoseconds
+         */
+        StreamOptions(int format, Size[] sizes, long[] minFrameDurations,
+                      long[] stallDurations) {
+            if (sizes.length == 0) {
+                throw new IllegalArgumentException("No sizes");
+            }
+            mFormat = format;
+            mSizes = sizes;
+            mMinFrameDurations = minFrameDurations;
+            mStallDurations = stallDurations;
+        }
+
+        int getFormat() {
+            return mFormat;
+        }
+
+        int getCount() {
+            return mSizes.length;
+        }
+
+        Size getSize(int index) {
+            return mSizes[index];
+        }
+
+        long getMinFrameDuration(int index) {
+            return mMinFrameDurations[index];
+        }
+
+        long getStallDuration(int index) {
+            return mStallDurations[index];
+        }
+
+        /**
+         * @return The size with the most pixels
+         */
+        Size getLargest() {
+            Size largest = mSizes[0];
+            for (Size size : mSizes) {
+                if (area(size) > area(largest)) {
+                    largest = size;
+                }
+            }
+            return largest;
+        }
+
+    }
+
+    /**
+     * The still format and size picked for bursts, and the frame rate they are predicted to
+     * reach.
+     */
+    static final class Plan {
+
+        private final int mFormat;
+        private final Size mSize;
+        private final long mFrameDurationNs;
+        private final int mTargetFramesPerSecond;
+        private final boolean mMeetsTarget;
+
+        Plan(int format, Size size, long frameDurationNs, int targetFramesPerSecond,
+             boolean meetsTarget) {
+            mFormat = format;
+            mSize = size;
+            mFrameDurationNs = frameDurationNs;
+            mTargetFramesPerSecond = targetFramesPerSecond;
+            mMeetsTarget = meetsTarget;
+        }
+
+        int getFormat() {
+            return mFormat;
+        }
+
+        Size getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return The predicted time between two frames of a burst, in nanoseconds
+         */
+        long getFrameDurationNs() {
+            return mFrameDurationNs;
+        }
+
+        /**
+         * @return The predicted frame rate of a burst, or 0 if the camera reports no durations
+         */
+        double getPredictedFramesPerSecond() {
+            return mFrameDurationNs > 0 ? 1e9 / mFrameDurationNs : 0;
+        }
+
+        /**
+         * @return Whether the predicted frame rate reaches the target
+         */
+        boolean meetsTarget() {
+            return mMeetsTarget;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %s, predicted %.1f fps for a target of %d fps%s",
+                    formatName(mFormat), mSize, getPredictedFramesPerSecond(),
+                    mTargetFramesPerSecond, mMeetsTarget ? "" : " (missed)");
+        }
+
+    }
+
+    /**
+     * Picks the still format and size for bursts.
+     *
+     * @param options                The still formats to pick from. When two sizes are equally
+     *                               good, the one of the earlier format wins.
+     * @param previewFrameDurationNs The minimum frame duration of the preview stream
+     * @param targetFramesPerSecond  The frame rate bursts should reach, or 0 for the largest
+     *                               size regardless of its frame rate
+     */
+    static Plan plan(StreamOptions[] options, long previewFrameDurationNs,
+                     int targetFramesPerSecond) {
+        long targetDurationNs = targetFramesPerSecond > 0
+                ? 1000000000L / targetFramesPerSecond : Long.MAX_VALUE;
+        StreamOptions bestOptions = null;
+        int best = -1;
+        long bestDuration = 0;
+        boolean bestMeets = false;
+        for (StreamOptions candidate : options) {
+            for (int i = 0; i < candidate.getCount(); i++) {
+                long duration = frameDuration(candidate, i, previewFrameDurationNs);
+                boolean meets = duration <= targetDurationNs;
+                double pixels = area(candidate.getSize(i));
+                boolean better;
+                if (null == bestOptions || meets != bestMeets) {
+                    better = null == bestOptions || meets;
+                } else if (meets) {
+                    // Both are fast enough: the larger one, or else the faster one.
+                    double bestPixels = area(bestOptions.getSize(best));
+                    better = pixels > bestPixels
+                            || (pixels == bestPixels && duration < bestDuration);
+                } else {
+                    // Neither is: the faster one, or else the larger one.
+                    better = duration < bestDuration || (duration == bestDuration
+                            && pixels > area(bestOptions.getSize(best)));
+                }
+                if (better) {
+                    bestOptions = candidate;
+                    best = i;
+                    bestDuration = duration;
+                    bestMeets = meets;
+                }
+            }
+        }
+        if (null == bestOptions) {
+            throw new IllegalArgumentException("No still formats");
+        }
+        return new Plan(bestOptions.getFormat(), bestOptions.getSize(best), bestDuration,
+                targetFramesPerSecond, bestMeets);
+    }
+
+    /**
+     * @return The predicted time between two burst frames of the given still size, in
+     * nanoseconds
+     */
+    static long frameDuration(StreamOptions options, int index, long previewFrameDurationNs) {
+        return Math.max(options.getMinFrameDuration(index), previewFrameDurationNs)
+                + options.getStallDuration(index);
+    }
+
+    static String formatName(int format) {
+        switch (format) {
+            case FORMAT_JPEG:
+                return "JPEG";
+            case FORMAT_YUV_420_888:
+                return "YUV_420_888";
+            default:
+                return String.format(Locale.US, "format 0x%x", format);
+        }
+    }
+
+    private static double area(Size size) {
+        return (double) size.getWidth() * size.getHeight();
+    }
+
+}
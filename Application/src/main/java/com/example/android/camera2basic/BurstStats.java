@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+
+/**
+ * Keeps track of the throughput of a single burst: how fast frames came out of the camera and how
+ * fast they were written to storage. All timestamps are monotonic nanoseconds.
+ */
+class BurstStats {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private int mRequested;
+    private long mStartNanos;
+    private int mCaptured;
+    private long mFirstCapturedNanos;
+    private long mLastCapturedNanos;
+    private int mSaved;
+    private long mLastSavedNanos;
+    private int mLost;
+    private int mPeakQueueDepth;
+
+    /**
+     * Resets the statistics for a new burst.
+     *
+     * @param requested The number of frames requested in the burst
+     * @param nowNanos  The time the burst was submitted
+     */
+    synchronized void start(int requested, long nowNanos) {
+        mRequested = requested;
+        mStartNanos = nowNanos;
+        mCaptured = 0;
+        mFirstCapturedNanos = 0;
+        mLastCapturedNanos = 0;
+        mSaved = 0;
+        mLastSavedNanos = 0;
+        mLost = 0;
+        mPeakQueueDepth = 0;
+    }
+
+    /**
+     * Records that a frame of the burst was handed over by the camera.
+     *
+     * @param nowNanos   The time the frame became available
+     * @param queueDepth The number of images waiting to be saved, including this one
+     */
+    synchronized void onFrameCaptured(long nowNanos, int queueDepth) {
+        if (mCaptured == 0) {
+            mFirstCapturedNanos = nowNanos;
+        }
+        mCaptured++;
+        mLastCapturedNanos = nowNanos;
+        if (queueDepth > mPeakQueueDepth) {
+            mPeakQueueDepth = queueDepth;
+        }
+    }
+
+    /**
+     * Records that a frame of the burst was written out.
+     *
+     * @param nowNanos The time the file was closed
+     */
+    synchronized void onFrameSaved(long nowNanos) {
+        mSaved++;
+        mLastSavedNanos = nowNanos;
+    }
+
+    /**
+     * Records that a frame of the burst was dropped or could not be written.
+     */
+    synchronized void onFrameLost() {
+        mLost++;
+    }
+
+    /**
+     * @return Whether every requested frame has been either saved or lost
+     */
+    synchronized boolean isComplete() {
+        return mRequested > 0 && mSaved + mLost >= mRequested;
+    }
+
+    synchronized int getCapturedCount() {
+        return mCaptured;
+    }
+
+    synchronized int getSavedCount() {
+        return mSaved;
+    }
+
+    synchronized int getLostCount() {
+        return mLost;
+    }
+
+    synchronized int getPeakQueueDepth() {
+        return mPeakQueueDepth;
+    }
+
+    /**
+     * @return The rate at which the camera delivered frames, or 0 with fewer than two frames
+     */
+    synchronized double getCaptureFramesPerSecond() {
+        if (mCaptured < 2 || mLastCapturedNanos <= mFirstCapturedNanos) {
+            return 0;
+        }
+        return (mCaptured - 1) * NANOS_PER_SECOND / (mLastCapturedNanos - mFirstCapturedNanos);
+    }
+
+    /**
+     * @return The rate at which frames were saved, measured from the start of the burst
+     */
+    synchronized double getSaveFramesPerSecond() {
+        if (mSaved == 0 || mLastSavedNanos <= mStartNanos) {
+            return 0;
+        }
+        return mSaved * NANOS_PER_SECOND / (mLastSavedNanos - mStartNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "%d/%d frames (%d lost), capture %.1f fps, save %.1f fps, peak queue %d",
+                mSaved, mRequested, mLost, getCaptureFramesPerSecond(),
+                getSaveFramesPerSecond(), mPeakQueueDepth);
+    }
+
+}
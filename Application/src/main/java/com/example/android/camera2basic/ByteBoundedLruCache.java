@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache bounded by the bytes its values take up rather than by their
+ * number, since a few large entries can cost as much memory as many small ones. Counts hits and
+ * misses. Thread-safe.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+abstract class ByteBoundedLruCache<K, V> {
+
+    private final long mMaxBytes;
+    private final LinkedHashMap<K, V> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    /**
+     * @param maxBytes The most bytes the values may take up together
+     */
+    ByteBoundedLruCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The size limit must be positive.");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return The number of bytes {@code value} takes up, which must not change while it is cached
+     */
+    protected abstract int sizeOf(K key, V value);
+
+    /**
+     * Called, without the lock held, for every value that is evicted to make room or replaced,
+     * but not for those taken out with {@link #remove}.
+     */
+    protected void onEvicted(K key, V value) {
+    }
+
+    /**
+     * @return The value for {@code key}, now the most recently used, or null
+     */
+    V get(K key) {
+        synchronized (this) {
+            V value = mEntries.get(key);
+            if (null == value) {
+                mMissCount++;
+            } else {
+                mHitCount++;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * @return The value for {@code key}, or null, without counting a hit or miss or changing the
+     * order
+     */
+    synchronized V peek(K key) {
+        return mEntries.containsKey(key) ? mEntries.get(key) : null;
+    }
+
+    /**
+     * Caches {@code value}, then evicts the least recently used values until the cache is within
+     * its limit. A value larger than the limit is evicted straight away.
+     */
+    void put(K key, V value) {
+        int size = sizeOf(key, value);
+        V previous;
+        LinkedHashMap<K, V> evicted = null;
+        synchronized (this) {
+            previous = mEntries.put(key, value);
+            mBytes += size;
+            if (null != previous) {
+                mBytes -= sizeOf(key, previous);
+            }
+            Iterator<Map.Entry<K, V>> iterator = mEntries.entrySet().iterator();
+            while (mBytes > mMaxBytes && iterator.hasNext()) {
+                Map.Entry<K, V> eldest = iterator.next();
+                iterator.remove();
+                mBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+                mEvictionCount++;
+                if (null == evicted) {
+                    evicted = new LinkedHashMap<>();
+                }
+                evicted.put(eldest.getKey(), eldest.getValue());
+            }
+        }
+        if (null != previous && previous != value) {
+            onEvicted(key, previous);
+        }
+        if (null != evicted) {
+            for (Map.Entry<K, V> entry : evicted.entrySet()) {
+                onEvicted(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return The value that was cached for {@code key}, or null
+     */
+    synchronized V remove(K key) {
+        V value = mEntries.remove(key);
+        if (null != value) {
+            mBytes -= sizeOf(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Empties the cache, passing every value to {@link #onEvicted}.
+     */
+    void evictAll() {
+        LinkedHashMap<K, V> evicted;
+        synchronized (this) {
+            evicted = new LinkedHashMap<>(mEntries);
+            mEntries.clear();
+            mBytes = 0;
+        }
+        for (Map.Entry<K, V> entry : evicted.entrySet()) {
+            onEvicted(entry.getKey(), entry.getValue());
+        }
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    synchronized int getCount() {
+        return mEntries.size();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return The share of {@link #get} calls that found a value, or 0 before the first one
+     */
+    synchronized double getHitRate() {
+        long lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0 : (double) mHitCount / lookups;
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of equally sized direct {@link ByteBuffer}s that are handed out and returned, so
+ * that copying image data through native memory does not allocate per capture.
+ */
+class ByteBufferPool {
+
+    private final BlockingQueue<ByteBuffer> mBuffers;
+
+    private final int mBufferSize;
+
+    /**
+     * @param count      The number of buffers; at most this many threads can hold one at a time
+     * @param bufferSize The capacity of each buffer in bytes
+     */
+    ByteBufferPool(int count, int bufferSize) {
+        if (count < 1 || bufferSize < 1) {
+            throw new IllegalArgumentException("Count and buffer size must be positive.");
+        }
+        mBufferSize = bufferSize;
+        mBuffers = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            mBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, waiting until one is returned if necessary.
+     */
+    ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = mBuffers.take();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()} to the pool.
+     */
+    void release(ByteBuffer buffer) {
+        mBuffers.offer(buffer);
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+}
@@ -27,23 +27,20 @@ import android.content.res.Configuration;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
-import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.DialogFragment;
@@ -51,7 +48,6 @@ import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.util.Size;
-import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.Surface;
 import android.view.TextureView;
@@ -60,73 +56,165 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Camera2BasicFragment extends Fragment
-        implements View.OnClickListener, ActivityCompat.OnRequestPermissionsResultCallback {
+        implements View.OnClickListener, View.OnLongClickListener,
+        ActivityCompat.OnRequestPermissionsResultCallback {
 
-    /**
-     * Conversion from screen rotation to JPEG orientation.
-     */
-    private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
     private static final int REQUEST_CAMERA_PERMISSION = 1;
     private static final String FRAGMENT_DIALOG = "dialog";
 
-    static {
-        ORIENTATIONS.append(Surface.ROTATION_0, 90);
-        ORIENTATIONS.append(Surface.ROTATION_90, 0);
-        ORIENTATIONS.append(Surface.ROTATION_180, 270);
-        ORIENTATIONS.append(Surface.ROTATION_270, 180);
-    }
-
     /**
      * Tag for the {@link Log}.
      */
     private static final String TAG = "Camera2BasicFragment";
 
     /**
-     * Camera state: Showing camera preview.
+     * Max preview width that is guaranteed by Camera2 API
+     */
+    private static final int MAX_PREVIEW_WIDTH = 1920;
+
+    /**
+     * Max preview height that is guaranteed by Camera2 API
      */
-    private static final int STATE_PREVIEW = 0;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
 
     /**
-     * Camera state: Waiting for the focus to be locked.
+     * Frame rate the preview has to keep up with.
      */
-    private static final int STATE_WAITING_LOCK = 1;
+    private static final int PREVIEW_FRAME_RATE = 30;
 
     /**
-     * Camera state: Waiting for the exposure to be precapture state.
+     * Number of still images captured by a single burst. The {@link ImageReader} keeps this many
+     * images so that the whole burst can be in flight at once.
      */
-    private static final int STATE_WAITING_PRECAPTURE = 2;
+    private static final int BURST_LENGTH = 10;
 
     /**
-     * Camera state: Waiting for the exposure state to be something other than precapture.
+     * Frame rate bursts should reach by default. Stills are taken at the largest size that keeps
+     * up with it next to the preview; 0 takes the largest size regardless.
      */
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    private static final int BURST_FRAME_RATE = 10;
 
     /**
-     * Camera state: Picture was taken.
+     * Number of threads writing captured images to storage concurrently.
      */
-    private static final int STATE_PICTURE_TAKEN = 4;
+    private static final int SAVER_THREADS = 3;
 
     /**
-     * Max preview width that is guaranteed by Camera2 API
+     * {@link android.os.Process} priorities of the camera-control thread, which runs the camera
+     * callbacks, of the thread that acquires images, and of the threads that write to storage.
      */
-    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final int CONTROL_THREAD_PRIORITY = CameraThreads.DEFAULT_CONTROL_PRIORITY;
+    private static final int IMAGE_THREAD_PRIORITY = CameraThreads.DEFAULT_IMAGE_PRIORITY;
+    private static final int IO_THREAD_PRIORITY = CameraThreads.DEFAULT_IO_PRIORITY;
 
     /**
-     * Max preview height that is guaranteed by Camera2 API
+     * Number of captured images the write-behind queue may hold before
+     * {@link #SAVE_OVERFLOW_POLICY} applies. Kept below {@link #BURST_LENGTH} so the camera always
+     * has free {@link ImageReader} buffers.
      */
-    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final int SAVE_QUEUE_CAPACITY = BURST_LENGTH / 2;
+
+    /**
+     * What happens to a capture when the write-behind queue is full.
+     */
+    private static final WriteBehindQueue.OverflowPolicy SAVE_OVERFLOW_POLICY
+            = WriteBehindQueue.OverflowPolicy.SPILL;
+
+    /**
+     * Heap budget for captures copied out of the {@link ImageReader} when the queue is full.
+     */
+    private static final long SAVE_MAX_SPILL_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Number of files that are fsynced together, and the longest a file waits for its batch.
+     */
+    private static final int SAVE_SYNC_BATCH_SIZE = 4;
+    private static final long SAVE_SYNC_DELAY_MS = 100;
+
+    /**
+     * Maximum time to wait for pending saves before the {@link ImageReader} is closed.
+     */
+    private static final long SAVER_DRAIN_TIMEOUT_MS = 2500;
+
+    /**
+     * Default for how old the latest preview result may be for a shot to skip the focus lock.
+     * At 30 fps this spans a few frames.
+     */
+    private static final long FAST_PATH_FRESHNESS_MS = 100;
+
+    /**
+     * Whether to take pictures from a ring of recent frames when the camera supports it. Off by
+     * default: a zero-shutter-lag session has no JPEG stream, so on such a camera it turns off
+     * bursts, RAW capture, software JPEG encoding, the capture fast path, keeping the preview
+     * running during a capture, and the burst planner.
+     */
+    private static final boolean ZSL_ENABLED = false;
+
+    /**
+     * Memory for the buffers of the zero-shutter-lag stream, and the most frames kept in it.
+     */
+    private static final long ZSL_MEMORY_BUDGET_BYTES = 128 * 1024 * 1024;
+    private static final int ZSL_MAX_DEPTH = 8;
+
+    /**
+     * Whether still captures are submitted alongside the repeating preview request by default,
+     * instead of stopping preview for the duration of the shot.
+     */
+    private static final boolean KEEP_PREVIEW_DURING_CAPTURE = true;
+
+    /**
+     * How long after a shot the gaps between preview frames are still counted toward it.
+     */
+    private static final long PREVIEW_GAP_TAIL_MS = 200;
+
+    /**
+     * Whether to capture stills in YUV and encode them on the CPU, when zero-shutter-lag capture
+     * is not used. This helps bursts on devices whose JPEG hardware is the bottleneck, and lets
+     * the quality and chroma subsampling below be chosen.
+     */
+    private static final boolean SOFTWARE_JPEG_ENABLED = false;
+    private static final int SOFTWARE_JPEG_QUALITY = 95;
+    private static final ParallelJpegEncoder.Subsampling SOFTWARE_JPEG_SUBSAMPLING
+            = ParallelJpegEncoder.Subsampling.YUV_420;
+
+    /**
+     * Whether single shots also save the RAW sensor data as a DNG file, on cameras with the RAW
+     * capability and when zero-shutter-lag capture is not used. Bursts stay JPEG only.
+     */
+    private static final boolean RAW_ENABLED = false;
+
+    /**
+     * Whether to measure the exposure of the frame analysis stream, and how many samples apart,
+     * in both directions, the measured luma samples are.
+     */
+    private static final boolean EXPOSURE_STATISTICS_ENABLED = false;
+    private static final int EXPOSURE_STATISTICS_STRIDE = 2;
+
+    /**
+     * The size thumbnails of captures are decoded for, and the share of the heap they may take up.
+     */
+    private static final int THUMBNAIL_WIDTH = 320;
+    private static final int THUMBNAIL_HEIGHT = 240;
+    private static final int THUMBNAIL_HEAP_DIVISOR = 16;
 
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
@@ -147,7 +235,8 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public boolean onSurfaceTextureDestroyed(SurfaceTexture texture) {
-            return true;
+            // A kept camera goes on drawing into it until the next view takes it over.
+            return !mKeepingCamera;
         }
 
         @Override
@@ -166,6 +255,31 @@ public class Camera2BasicFragment extends Fragment
      */
     private AutoFitTextureView mTextureView;
 
+    /**
+     * The {@link SurfaceTexture} of {@link #mTextureView} that the preview is drawn into. It is
+     * handed from view to view while the camera is kept across configuration changes.
+     */
+    private SurfaceTexture mPreviewTexture;
+
+    /**
+     * The transforms of {@link #mTextureView} for recent sizes, and the matrix they are applied
+     * through. Used on the UI thread only.
+     */
+    private final PreviewTransform mPreviewTransform = new PreviewTransform();
+    private final Matrix mTransformMatrix = new Matrix();
+
+    /**
+     * Whether the camera, its session and the threads are kept open while the activity is
+     * recreated for a configuration change. Set in {@link #onPause()} and cleared once the new
+     * view shows the preview again.
+     */
+    private boolean mKeepingCamera;
+
+    /**
+     * When the camera started to be kept across a configuration change.
+     */
+    private long mKeepStartNanos;
+
     /**
      * A {@link CameraCaptureSession } for camera preview.
      */
@@ -190,6 +304,11 @@ public class Camera2BasicFragment extends Fragment
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             // This method is called when the camera is opened.  We start camera preview here.
             mCameraOpenCloseLock.release();
+            long openNanos = SystemClock.elapsedRealtimeNanos() - mOpenStartNanos;
+            (mOpenWarm ? mWarmOpenLatency : mColdOpenLatency).record(openNanos);
+            Log.d(TAG, String.format(Locale.US, "Camera opened in %.1f ms (%s%s, setup %.2f ms)",
+                    openNanos / 1e6, mOpenWarm ? "warm" : "cold", mOpenedEarly ? ", early" : "",
+                    mSetupNanos / 1e6));
             mCameraDevice = cameraDevice;
             createCameraPreviewSession();
         }
@@ -215,254 +334,613 @@ public class Camera2BasicFragment extends Fragment
     };
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI.
+     * The camera and sizes picked by {@link #setUpCameraOutputs}, kept across resumes and restarts.
+     */
+    private CameraSetupCache mSetupCache;
+
+    /**
+     * Writes {@link #mSetupCache} out. Posted to the background thread when it changes.
+     */
+    private final Runnable mSaveSetupCache = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                mSetupCache.save();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save the camera setup cache", e);
+            }
+        }
+
+    };
+
+    /**
+     * When {@link #openCamera} was called, and how long setting up the outputs took.
+     */
+    private long mOpenStartNanos;
+    private long mSetupNanos;
+
+    /**
+     * Whether the current camera was set up from {@link #mSetupCache}.
+     */
+    private boolean mOpenWarm;
+
+    /**
+     * Time from {@link #openCamera} to an opened {@link CameraDevice}, with and without a cached
+     * setup.
+     */
+    private final LatencyHistogram mColdOpenLatency = new LatencyHistogram();
+    private final LatencyHistogram mWarmOpenLatency = new LatencyHistogram();
+
+    /**
+     * The camera opened by {@link CameraActivity} ahead of the UI, until it is taken over by
+     * {@link #openCamera}.
+     */
+    private CameraOpener mCameraOpener;
+
+    /**
+     * Whether the current camera was opened by {@link #mCameraOpener}.
+     */
+    private boolean mOpenedEarly;
+
+    /**
+     * When the wait for the first preview frame began: the launch of the activity for the first
+     * open, and {@link #openCamera} after that. -1 once the frame has arrived.
      */
-    private HandlerThread mBackgroundThread;
+    private long mFirstFrameStartNanos = -1;
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * Time to the first preview frame.
+     */
+    private final LatencyHistogram mFirstFrameLatency = new LatencyHistogram();
+
+    /**
+     * The camera-control, image and I/O threads.
+     */
+    private CameraThreads mThreads;
+
+    /**
+     * A {@link Handler} of the camera-control thread, which runs the camera callbacks and must
+     * never wait for storage.
      */
     private Handler mBackgroundHandler;
 
+    /**
+     * A {@link Handler} of the thread that acquires the images of every {@link ImageReader}.
+     */
+    private Handler mImageHandler;
+
     /**
      * An {@link ImageReader} that handles still image capture.
      */
     private ImageReader mImageReader;
 
     /**
-     * This is the output file for our picture.
+     * Hands out a new output file for every picture and records each one once it is saved.
+     */
+    private CaptureCatalog mCatalog;
+
+    /**
+     * Time spent in each stage from pressing the shutter to a saved file.
      */
-    private File mFile;
+    private final ShutterLagTracker mShutterLag = new ShutterLagTracker();
 
     /**
-     * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
-     * still image is ready to be saved.
+     * Where {@link #mShutterLag} is written out when the fragment is paused.
      */
-    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
-            = new ImageReader.OnImageAvailableListener() {
+    private File mShutterLagReport;
+
+    /**
+     * Opens {@link #mCatalog}. Posted to the image thread, ahead of any capture. The catalog then
+     * stays open until {@link #onDestroy()}, so later sessions find it open already.
+     */
+    private final Runnable mOpenCatalog = new Runnable() {
 
         @Override
-        public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
+        public void run() {
+            try {
+                mCatalog.open();
+                if (mCatalog.getRecoveredCount() > 0) {
+                    Log.w(TAG, "Recovered " + mCatalog.getRecoveredCount()
+                            + " unrecorded captures");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open the capture catalog", e);
+            }
         }
 
     };
 
     /**
-     * {@link CaptureRequest.Builder} for the camera preview
+     * Keeps the recent frames for zero-shutter-lag capture, or null when pictures are taken
+     * through {@link #mImageReader}.
      */
-    private CaptureRequest.Builder mPreviewRequestBuilder;
+    private ZslController mZsl;
 
     /**
-     * {@link CaptureRequest} generated by {@link #mPreviewRequestBuilder}
+     * Encodes the stills of {@link #mImageReader} when it delivers YUV, or null when it delivers
+     * JPEG.
      */
-    private CaptureRequest mPreviewRequest;
+    private YuvStillEncoder mYuvEncoder;
 
     /**
-     * The current state of camera state for taking pictures.
-     *
-     * @see #mCaptureCallback
+     * The JPEG orientation of the shot in progress, for {@link #mYuvEncoder}. Set on the control
+     * thread before the capture is requested.
      */
-    private int mState = STATE_PREVIEW;
+    private volatile int mShotJpegOrientation;
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * Saves the RAW image of single shots as DNG files, or null when RAW is not captured.
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private RawCapture mRawCapture;
 
     /**
-     * Whether the current camera device supports Flash or not.
+     * Runs the registered {@link FrameAnalyzer}s on a low-resolution stream next to the preview.
      */
-    private boolean mFlashSupported;
+    private final FrameAnalysisPipeline mFrameAnalysis = new FrameAnalysisPipeline();
 
     /**
-     * Orientation of the camera sensor
+     * Exposure statistics of the analysis stream, or null when they are not measured.
      */
-    private int mSensorOrientation;
+    private LumaStatistics mLumaStatistics;
 
     /**
-     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     * Decodes and caches thumbnails of the captures for reviewing them.
      */
-    private CameraCaptureSession.CaptureCallback mCaptureCallback
-            = new CameraCaptureSession.CaptureCallback() {
+    private ThumbnailLoader mThumbnails;
 
-        private void process(CaptureResult result) {
-            switch (mState) {
-                case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    break;
-                }
-                case STATE_WAITING_LOCK: {
-                    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    if (afState == null) {
-                        captureStillPicture();
-                    } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                            mState = STATE_PICTURE_TAKEN;
-                            captureStillPicture();
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                    }
-                    break;
-                }
-                case STATE_WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null ||
-                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-                        mState = STATE_WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case STATE_WAITING_NON_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                        mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
-                    }
-                    break;
-                }
-            }
+    /**
+     * Writes captured images to storage off the camera thread.
+     */
+    private WriteBehindQueue mWriteBehindQueue;
+
+    /**
+     * Whether the next still capture should be a burst. Set on the UI thread.
+     */
+    private volatile boolean mBurstRequested;
+
+    /**
+     * Number of frames of the current burst that have not reached the {@link ImageReader} yet.
+     * Set on the control thread and counted down on the image thread.
+     */
+    private final AtomicInteger mBurstFramesRemaining = new AtomicInteger();
+
+    /**
+     * Throughput of the most recent burst.
+     */
+    private final BurstStats mBurstStats = new BurstStats();
+
+    /**
+     * The still format and size picked for bursts, or null when stills come from the ZSL ring.
+     */
+    private volatile BurstPlanner.Plan mBurstPlan;
+
+    /**
+     * Frame rate bursts should reach, from the next time the camera is opened.
+     */
+    private volatile int mBurstFrameRate = BURST_FRAME_RATE;
+
+    /**
+     * Every camera of the device, loaded in the background after the first camera is set up;
+     * null until then.
+     */
+    private volatile CameraDirectory mCameras;
+
+    /**
+     * The still plans of the cameras by camera ID, preview frame duration and burst frame rate,
+     * worked out when {@link #mCameras} is loaded so that switching to a camera does not have to.
+     */
+    private final Map<String, BurstPlanner.Plan> mStillPlans = new ConcurrentHashMap<>();
+
+    /**
+     * Time from {@link #switchCamera()} to the first preview frame of the next camera, per pair
+     * of cameras.
+     */
+    private final CameraSwitchLatency mSwitchLatency = new CameraSwitchLatency();
+
+    /**
+     * Saves the stills of the current camera session; null while the camera is closed.
+     */
+    private volatile StillSaver mStillSaver;
+
+    /**
+     * Reports the outcome of a single still capture.
+     */
+    private final WriteBehindQueue.Callback mSaveCallback = new WriteBehindQueue.Callback() {
+
+        @Override
+        public void onSaved(File file, long bytes, long latencyNanos) {
+            showToast("Saved: " + file);
+            Log.d(TAG, file.toString());
+            // The latest capture is the first one to be reviewed.
+            mThumbnails.prefetch(file);
         }
 
         @Override
-        public void onCaptureProgressed(@NonNull CameraCaptureSession session,
-                                        @NonNull CaptureRequest request,
-                                        @NonNull CaptureResult partialResult) {
-            process(partialResult);
+        public void onFailed(File file, IOException e) {
+            Log.e(TAG, "Failed to save " + file, e);
+            showToast("Failed to save: " + file);
         }
 
         @Override
-        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                       @NonNull CaptureRequest request,
-                                       @NonNull TotalCaptureResult result) {
-            process(result);
+        public void onDropped(File file) {
+            Log.w(TAG, "Dropped " + file);
         }
 
     };
 
     /**
-     * Shows a {@link Toast} on the UI thread.
-     *
-     * @param text The message to show
+     * Reports the outcome of saving the RAW image of a single still capture.
      */
-    private void showToast(final String text) {
-        final Activity activity = getActivity();
-        if (activity != null) {
-            activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
-                }
-            });
+    private final WriteBehindQueue.Callback mRawSaveCallback = new WriteBehindQueue.Callback() {
+
+        @Override
+        public void onSaved(File file, long bytes, long latencyNanos) {
+            Log.d(TAG, file.toString());
         }
-    }
 
-    /**
-     * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
-     * is at least as large as the respective texture view size, and that is at most as large as the
-     * respective max size, and whose aspect ratio matches with the specified value. If such size
-     * doesn't exist, choose the largest one that is at most as large as the respective max size,
-     * and whose aspect ratio matches with the specified value.
-     *
-     * @param choices           The list of sizes that the camera supports for the intended output
-     *                          class
-     * @param textureViewWidth  The width of the texture view relative to sensor coordinate
-     * @param textureViewHeight The height of the texture view relative to sensor coordinate
-     * @param maxWidth          The maximum width that can be chosen
-     * @param maxHeight         The maximum height that can be chosen
-     * @param aspectRatio       The aspect ratio
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
-     */
-    private static Size chooseOptimalSize(Size[] choices, int textureViewWidth,
-            int textureViewHeight, int maxWidth, int maxHeight, Size aspectRatio) {
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        // Collect the supported resolutions that are smaller than the preview Surface
-        List<Size> notBigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
-                    option.getHeight() == option.getWidth() * h / w) {
-                if (option.getWidth() >= textureViewWidth &&
-                    option.getHeight() >= textureViewHeight) {
-                    bigEnough.add(option);
-                } else {
-                    notBigEnough.add(option);
-                }
-            }
+        @Override
+        public void onFailed(File file, IOException e) {
+            Log.e(TAG, "Failed to save " + file, e);
+            showToast("Failed to save: " + file);
         }
 
-        // Pick the smallest of those big enough. If there is no one big enough, pick the
-        // largest of those not big enough.
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
-        } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
+        @Override
+        public void onDropped(File file) {
+            Log.w(TAG, "Dropped " + file);
         }
-    }
 
-    public static Camera2BasicFragment newInstance() {
-        return new Camera2BasicFragment();
-    }
+    };
 
-    @Override
-    public View onCreateView(LayoutInflater inflater, ViewGroup container,
-                             Bundle savedInstanceState) {
-        return inflater.inflate(R.layout.fragment_camera2_basic, container, false);
-    }
+    /**
+     * Feeds the outcome of each burst frame into {@link #mBurstStats}.
+     */
+    private final WriteBehindQueue.Callback mBurstSaveCallback = new WriteBehindQueue.Callback() {
 
-    @Override
-    public void onViewCreated(final View view, Bundle savedInstanceState) {
-        view.findViewById(R.id.picture).setOnClickListener(this);
-        view.findViewById(R.id.info).setOnClickListener(this);
-        mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
-    }
+        @Override
+        public void onSaved(File file, long bytes, long latencyNanos) {
+            mBurstStats.onFrameSaved(SystemClock.elapsedRealtimeNanos());
+            onFrameDone();
+        }
 
-    @Override
-    public void onActivityCreated(Bundle savedInstanceState) {
-        super.onActivityCreated(savedInstanceState);
-        mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
-    }
+        @Override
+        public void onFailed(File file, IOException e) {
+            Log.e(TAG, "Failed to save " + file, e);
+            mBurstStats.onFrameLost();
+            onFrameDone();
+        }
 
-    @Override
-    public void onResume() {
-        super.onResume();
-        startBackgroundThread();
+        @Override
+        public void onDropped(File file) {
+            mBurstStats.onFrameLost();
+            onFrameDone();
+        }
 
-        // When the screen is turned off and turned back on, the SurfaceTexture is already
-        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
-        // a camera and start preview from here (otherwise, we wait until the surface is ready in
-        // the SurfaceTextureListener).
-        if (mTextureView.isAvailable()) {
-            openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-        } else {
-            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        private void onFrameDone() {
+            if (mBurstStats.isComplete()) {
+                Log.d(TAG, "Burst finished: " + mBurstStats);
+                showToast("Burst: " + mBurstStats);
+            }
         }
-    }
 
-    @Override
-    public void onPause() {
-        closeCamera();
-        stopBackgroundThread();
-        super.onPause();
-    }
+    };
 
-    private void requestCameraPermission() {
-        if (shouldShowRequestPermissionRationale(Manifest.permission.CAMERA)) {
-            new ConfirmationDialog().show(getChildFragmentManager(), FRAGMENT_DIALOG);
+    /**
+     * {@link CaptureRequest.Builder} for the camera preview
+     */
+    private CaptureRequest.Builder mPreviewRequestBuilder;
+
+    /**
+     * {@link CaptureRequest} generated by {@link #mPreviewRequestBuilder}
+     */
+    private CaptureRequest mPreviewRequest;
+
+    /**
+     * The requests of the capture sequence for {@link #mCaptureSession}.
+     *
+     * @see #getRequestTemplates()
+     */
+    private CaptureRequestTemplates mRequestTemplates;
+
+    /**
+     * The current state of camera state for taking pictures.
+     *
+     * @see #mCaptureCallback
+     */
+    private final CaptureStateMachine mStateMachine = new CaptureStateMachine();
+
+    /**
+     * How old the latest preview result may be for a shot to skip the focus lock when it reports
+     * converged focus and exposure. Zero always locks the focus first.
+     */
+    private volatile long mFastPathFreshnessNanos
+            = TimeUnit.MILLISECONDS.toNanos(FAST_PATH_FRESHNESS_MS);
+
+    /**
+     * Whether the next shot leaves the repeating preview request running.
+     */
+    private volatile boolean mKeepPreviewDuringCapture = KEEP_PREVIEW_DURING_CAPTURE;
+
+    /**
+     * Whether the shot in progress left preview running, so {@link #unlockFocus()} does not need
+     * to restart it. Only used on the camera thread.
+     */
+    private boolean mShotKeptPreview;
+
+    /**
+     * Gaps between preview frames, in steady state and around shots.
+     */
+    private final PreviewGapTracker mPreviewGaps
+            = new PreviewGapTracker(TimeUnit.MILLISECONDS.toNanos(PREVIEW_GAP_TAIL_MS));
+
+    /**
+     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     */
+    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+
+    /**
+     * Runs the teardowns started by {@link #onPause()}, one after another.
+     */
+    private final ExecutorService mTeardownExecutor
+            = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "CameraTeardown");
+        }
+    });
+
+    /**
+     * The teardown started by the last {@link #onPause()}, or null before the first one.
+     */
+    private Teardown mTeardown;
+
+    /**
+     * Time from {@link #onPause()} until the camera is closed, and until the teardown is done.
+     */
+    private final LatencyHistogram mCameraReleaseLatency = new LatencyHistogram();
+    private final LatencyHistogram mTeardownLatency = new LatencyHistogram();
+
+    /**
+     * Whether the current camera device supports Flash or not.
+     */
+    private boolean mFlashSupported;
+
+    /**
+     * Orientation of the camera sensor
+     */
+    private int mSensorOrientation;
+
+    /**
+     * Whether the current camera faces the same way as the screen
+     */
+    private boolean mFrontFacing;
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     */
+    private CameraCaptureSession.CaptureCallback mCaptureCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        private void process(CaptureResult result) {
+            if (!mStateMachine.isWaiting()) {
+                return;
+            }
+            perform(mStateMachine.process(CaptureResultAdapter.getAfState(result),
+                    CaptureResultAdapter.getAeState(result)));
+        }
+
+        private void processTotal(CaptureResult result) {
+            int afState = CaptureResultAdapter.getAfState(result);
+            int aeState = CaptureResultAdapter.getAeState(result);
+            if (mStateMachine.isWaiting()) {
+                perform(mStateMachine.process(afState, aeState));
+            } else {
+                mStateMachine.onPreviewResult(afState, aeState,
+                        SystemClock.elapsedRealtimeNanos());
+            }
+        }
+
+        private void perform(int actions) {
+            if ((actions & CaptureStateMachine.ACTION_FOCUS_LOCKED) != 0) {
+                mShutterLag.mark(ShutterLagTracker.Stage.FOCUS_LOCKED,
+                        SystemClock.elapsedRealtimeNanos());
+            }
+            if ((actions & CaptureStateMachine.ACTION_PRECAPTURE) != 0) {
+                runPrecaptureSequence();
+            }
+            if ((actions & CaptureStateMachine.ACTION_CAPTURE) != 0) {
+                captureStillPicture();
+            }
+        }
+
+        @Override
+        public void onCaptureProgressed(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull CaptureResult partialResult) {
+            process(partialResult);
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            mPreviewGaps.onFrame(SystemClock.elapsedRealtimeNanos());
+            if (mFirstFrameStartNanos >= 0) {
+                long nanos = SystemClock.elapsedRealtimeNanos() - mFirstFrameStartNanos;
+                mFirstFrameStartNanos = -1;
+                mFirstFrameLatency.record(nanos);
+                Log.d(TAG, String.format(Locale.US, "First preview frame after %.1f ms",
+                        nanos / 1e6));
+                long switchNanos = mSwitchLatency.onFirstFrame(SystemClock.elapsedRealtimeNanos());
+                if (switchNanos >= 0) {
+                    Log.d(TAG, String.format(Locale.US, "Switched to camera %s in %.1f ms",
+                            mCameraId, switchNanos / 1e6));
+                }
+            }
+            processTotal(result);
+        }
+
+    };
+
+    /**
+     * Shows a {@link Toast} on the UI thread.
+     *
+     * @param text The message to show
+     */
+    private void showToast(final String text) {
+        final Activity activity = getActivity();
+        if (activity != null) {
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    }
+
+    public static Camera2BasicFragment newInstance() {
+        return new Camera2BasicFragment();
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // This instance outlives the activity on configuration changes, so that the camera does
+        // not have to be closed and opened again for a rotation.
+        setRetainInstance(true);
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.fragment_camera2_basic, container, false);
+    }
+
+    @Override
+    public void onViewCreated(final View view, Bundle savedInstanceState) {
+        view.findViewById(R.id.picture).setOnClickListener(this);
+        view.findViewById(R.id.picture).setOnLongClickListener(this);
+        view.findViewById(R.id.info).setOnClickListener(this);
+        view.findViewById(R.id.switch_camera).setOnClickListener(this);
+        mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        if (null != mCatalog) {
+            // Retained across a configuration change, with everything below already set up.
+            return;
+        }
+        File directory = getActivity().getExternalFilesDir(null);
+        mCatalog = new CaptureCatalog(directory);
+        mShutterLagReport = new File(directory, "shutter_lag.txt");
+        if (getActivity() instanceof CameraActivity) {
+            mSetupCache = ((CameraActivity) getActivity()).getSetupCache();
+        } else {
+            mSetupCache = new CameraSetupCache(
+                    new File(getActivity().getCacheDir(), "camera_setup.bin"), Build.FINGERPRINT);
+        }
+        mThumbnails = new ThumbnailLoader(Runtime.getRuntime().maxMemory() / THUMBNAIL_HEAP_DIVISOR,
+                THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
+        if (EXPOSURE_STATISTICS_ENABLED) {
+            // Analysis frames are small enough to measure on the analysis thread alone.
+            mLumaStatistics = new LumaStatistics(EXPOSURE_STATISTICS_STRIDE, null);
+            mFrameAnalysis.addAnalyzer("LumaStatistics", mLumaStatistics);
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mKeepingCamera) {
+            resumeKeptCamera();
+            return;
+        }
+        startBackgroundThread();
+
+        // When the screen is turned off and turned back on, the SurfaceTexture is already
+        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
+        // a camera and start preview from here (otherwise, we wait until the surface is ready in
+        // the SurfaceTextureListener).
+        if (mTextureView.isAvailable()) {
+            openCamera(mTextureView.getWidth(), mTextureView.getHeight());
+        } else {
+            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        if (null != mPreviewTexture && mPreviewTexture == mTextureView.getSurfaceTexture()
+                && getActivity().isChangingConfigurations()) {
+            // The activity is recreated right away, so everything stays as it is.
+            mKeepingCamera = true;
+            mKeepStartNanos = SystemClock.elapsedRealtimeNanos();
+            super.onPause();
+            return;
+        }
+        // Closing the camera and finishing the saves can take long on some devices, so they are
+        // left to the background.
+        mTeardown = new Teardown();
+        mTeardownExecutor.execute(mTeardown.mDone);
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mKeepingCamera) {
+            // The activity went away for good before the next view took the camera over.
+            mKeepingCamera = false;
+            mTeardown = new Teardown();
+            mTeardownExecutor.execute(mTeardown.mDone);
+            final SurfaceTexture texture = mPreviewTexture;
+            mTeardownExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    texture.release();
+                }
+            });
+        }
+        if (null != mCatalog) {
+            // After the saves of every teardown before it.
+            final CaptureCatalog catalog = mCatalog;
+            mTeardownExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        catalog.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to close the capture catalog", e);
+                    }
+                }
+            });
+        }
+        mTeardownExecutor.shutdown();
+        if (null != mThumbnails) {
+            mThumbnails.close();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Shows the preview of the camera that was kept across a configuration change in the new
+     * {@link #mTextureView}. The session goes on drawing into the same {@link SurfaceTexture},
+     * so only the aspect ratio and, once the view is laid out, the transform are set again.
+     */
+    private void resumeKeptCamera() {
+        mKeepingCamera = false;
+        mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        mTextureView.setSurfaceTexture(mPreviewTexture);
+        applyAspectRatio();
+        Log.d(TAG, String.format(Locale.US, "Camera kept across a %.1f ms configuration change",
+                (SystemClock.elapsedRealtimeNanos() - mKeepStartNanos) / 1e6));
+    }
+
+    private void requestCameraPermission() {
+        if (shouldShowRequestPermissionRationale(Manifest.permission.CAMERA)) {
+            new ConfirmationDialog().show(getChildFragmentManager(), FRAGMENT_DIALOG);
         } else {
             requestPermissions(new String[]{Manifest.permission.CAMERA}, REQUEST_CAMERA_PERMISSION);
         }
@@ -492,99 +970,114 @@ public class Camera2BasicFragment extends Fragment
         Activity activity = getActivity();
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
         try {
-            for (String cameraId : manager.getCameraIdList()) {
-                CameraCharacteristics characteristics
-                        = manager.getCameraCharacteristics(cameraId);
-
-                // We don't use a front facing camera in this sample.
-                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
-                    continue;
+            CameraSetupCache.Setup setup = mSetupCache.get();
+            mOpenWarm = setup != null;
+            if (null == setup) {
+                setup = CameraSetupCache.query(manager);
+                if (null == setup) {
+                    return;
                 }
+                mSetupCache.put(setup);
+            }
 
-                StreamConfigurationMap map = characteristics.get(
-                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map == null) {
-                    continue;
-                }
+            // Find out if we need to swap dimension to get the preview size relative to sensor
+            // coordinate.
+            int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            mSensorOrientation = setup.getSensorOrientation();
+            mFrontFacing = setup.isFrontFacing();
+            boolean swappedDimensions = swapsDimensions(displayRotation, mSensorOrientation);
+
+            Point displaySize = new Point();
+            activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+            int rotatedPreviewWidth = width;
+            int rotatedPreviewHeight = height;
+            int maxPreviewWidth = displaySize.x;
+            int maxPreviewHeight = displaySize.y;
+
+            if (swappedDimensions) {
+                rotatedPreviewWidth = height;
+                rotatedPreviewHeight = width;
+                maxPreviewWidth = displaySize.y;
+                maxPreviewHeight = displaySize.x;
+            }
 
-                // For still image captures, we use the largest available size.
-                Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new CompareSizesByArea());
-                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                        ImageFormat.JPEG, /*maxImages*/2);
-                mImageReader.setOnImageAvailableListener(
-                        mOnImageAvailableListener, mBackgroundHandler);
-
-                // Find out if we need to swap dimension to get the preview size relative to sensor
-                // coordinate.
-                int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-                //noinspection ConstantConditions
-                mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                boolean swappedDimensions = false;
-                switch (displayRotation) {
-                    case Surface.ROTATION_0:
-                    case Surface.ROTATION_180:
-                        if (mSensorOrientation == 90 || mSensorOrientation == 270) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    case Surface.ROTATION_90:
-                    case Surface.ROTATION_270:
-                        if (mSensorOrientation == 0 || mSensorOrientation == 180) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    default:
-                        Log.e(TAG, "Display rotation is invalid: " + displayRotation);
-                }
+            if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
+                maxPreviewWidth = MAX_PREVIEW_WIDTH;
+            }
 
-                Point displaySize = new Point();
-                activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
-                int rotatedPreviewWidth = width;
-                int rotatedPreviewHeight = height;
-                int maxPreviewWidth = displaySize.x;
-                int maxPreviewHeight = displaySize.y;
-
-                if (swappedDimensions) {
-                    rotatedPreviewWidth = height;
-                    rotatedPreviewHeight = width;
-                    maxPreviewWidth = displaySize.y;
-                    maxPreviewHeight = displaySize.x;
-                }
+            if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
+                maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+            }
 
-                if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
-                    maxPreviewWidth = MAX_PREVIEW_WIDTH;
+            // For still image captures, we use the largest size that keeps up with bursts.
+            Size largest = setup.getJpegSize();
+            Size zslSize = setup.getZslSize();
+            mBurstPlan = null;
+            if (ZSL_ENABLED && null != zslSize) {
+                mZsl = new ZslController(zslSize, ZslController.depthFor(zslSize.getWidth(),
+                        zslSize.getHeight(), ZSL_MEMORY_BUDGET_BYTES, ZSL_MAX_DEPTH),
+                        setup.hasRealtimeTimestamps(), mImageHandler);
+            } else {
+                mBurstPlan = planStills(setup, rotatedPreviewWidth, rotatedPreviewHeight,
+                        maxPreviewWidth, maxPreviewHeight);
+                Log.d(TAG, "Burst plan: " + mBurstPlan);
+                if (!largest.equals(mBurstPlan.getSize())) {
+                    // Every still goes through the same reader, single shots included.
+                    Log.i(TAG, "Stills are taken at " + mBurstPlan.getSize() + " instead of "
+                            + largest + " to keep bursts at " + mBurstFrameRate + " fps");
                 }
-
-                if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
-                    maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+                largest = mBurstPlan.getSize();
+                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
+                        mBurstPlan.getFormat(), /*maxImages*/BURST_LENGTH);
+                if (ImageFormat.YUV_420_888 == mBurstPlan.getFormat()) {
+                    mYuvEncoder = new YuvStillEncoder(SOFTWARE_JPEG_QUALITY,
+                            SOFTWARE_JPEG_SUBSAMPLING);
                 }
+            }
+            if (RAW_ENABLED && null == mZsl && null != setup.getRawSize()) {
+                mRawCapture = new RawCapture(setup.getRawSize(),
+                        manager.getCameraCharacteristics(setup.getCameraId()),
+                        mImageHandler);
+            }
+            mStillSaver = new StillSaver(mWriteBehindQueue, mCatalog, mZsl, mYuvEncoder,
+                    mRawCapture);
+            if (null != mImageReader) {
+                mImageReader.setOnImageAvailableListener(mStillSaver, mImageHandler);
+            }
+            // Preview, still and RAW streams already use up the combinations guaranteed for RAW.
+            if (mFrameAnalysis.hasAnalyzers() && null == mRawCapture
+                    && null != setup.getAnalysisSize()) {
+                mFrameAnalysis.start(setup.getAnalysisSize(), mImageHandler);
+            }
 
-                // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
-                // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-                // garbage capture data.
-                mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                        rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                        maxPreviewHeight, largest);
-
-                // We fit the aspect ratio of TextureView to the size of preview we picked.
-                int orientation = getResources().getConfiguration().orientation;
-                if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getWidth(), mPreviewSize.getHeight());
-                } else {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getHeight(), mPreviewSize.getWidth());
+            // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+            // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+            // garbage capture data. Sizes that cannot stream at the preview frame rate are not
+            // considered either.
+            mPreviewSize = mSetupCache.getPreviewSize(rotatedPreviewWidth, rotatedPreviewHeight,
+                    maxPreviewWidth, maxPreviewHeight);
+            if (null == mPreviewSize) {
+                SizeSelector.Choice choice = setup.getPreviewSelector().select(previewCriteria(
+                        largest, rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
+                        maxPreviewHeight));
+                if (choice.isRelaxed()) {
+                    Log.e(TAG, "Couldn't find any suitable preview size");
                 }
+                Log.d(TAG, "Preview size " + choice.explain());
+                mPreviewSize = choice.getSize();
+                mSetupCache.putPreviewSize(rotatedPreviewWidth, rotatedPreviewHeight,
+                        maxPreviewWidth, maxPreviewHeight, mPreviewSize);
+            }
 
-                // Check if the flash is supported.
-                Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
-                mFlashSupported = available == null ? false : available;
+            applyAspectRatio();
 
-                mCameraId = cameraId;
-                return;
+            mFlashSupported = setup.isFlashSupported();
+            mCameraId = setup.getCameraId();
+            if (mSetupCache.isDirty()) {
+                mThreads.getIoExecutor().execute(mSaveSetupCache);
+            }
+            if (null == mCameras) {
+                loadCameras(manager, width, height, displayRotation, displaySize);
             }
         } catch (CameraAccessException e) {
             e.printStackTrace();
@@ -596,6 +1089,159 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * @return Whether the sensor is rotated by 90 or 270 degrees relative to the display, so that
+     * the view dimensions have to be swapped to compare them to output sizes
+     */
+    private static boolean swapsDimensions(int displayRotation, int sensorOrientation) {
+        switch (displayRotation) {
+            case Surface.ROTATION_0:
+            case Surface.ROTATION_180:
+                return sensorOrientation == 90 || sensorOrientation == 270;
+            case Surface.ROTATION_90:
+            case Surface.ROTATION_270:
+                return sensorOrientation == 0 || sensorOrientation == 180;
+            default:
+                Log.e(TAG, "Display rotation is invalid: " + displayRotation);
+                return false;
+        }
+    }
+
+    /**
+     * @return What the preview size is picked by: close to the view, within the maximum size, in
+     * the aspect ratio of the stills and fast enough for {@link #PREVIEW_FRAME_RATE}
+     */
+    private static SizeSelector.Criteria previewCriteria(Size largest, int width, int height,
+                                                         int maxWidth, int maxHeight) {
+        return new SizeSelector.Criteria.Builder()
+                .setTarget(width, height)
+                .setMaxSize(maxWidth, maxHeight)
+                .setAspectRatio(largest.getWidth(), largest.getHeight(),
+                        CameraSetupCache.ASPECT_TOLERANCE)
+                .setMinFrameRate(PREVIEW_FRAME_RATE)
+                .build();
+    }
+
+    /**
+     * Picks the still format and size of a camera for bursts at {@link #mBurstFrameRate}. How
+     * fast a burst can go also depends on the preview next to it, so the minimum frame duration
+     * of the preview size that goes with the largest stills is read from the stream
+     * configuration map first.
+     *
+     * @param width     The width of the view, relative to sensor coordinate
+     * @param height    The height of the view, relative to sensor coordinate
+     * @param maxWidth  The maximum preview width, relative to sensor coordinate
+     * @param maxHeight The maximum preview height, relative to sensor coordinate
+     */
+    private BurstPlanner.Plan planStills(CameraSetupCache.Setup setup, int width, int height,
+                                         int maxWidth, int maxHeight) {
+        Size preview = setup.getPreviewSelector().select(previewCriteria(setup.getJpegSize(),
+                width, height, maxWidth, maxHeight)).getSize();
+        long previewFrameDurationNs = setup.getPreviewFrameDuration(preview);
+        int frameRate = mBurstFrameRate;
+        String key = setup.getCameraId() + '/' + previewFrameDurationNs + '/' + frameRate;
+        BurstPlanner.Plan plan = mStillPlans.get(key);
+        if (null == plan) {
+            BurstPlanner.StreamOptions[] stills
+                    = SOFTWARE_JPEG_ENABLED && null != setup.getYuvStream()
+                    ? new BurstPlanner.StreamOptions[]{setup.getYuvStream(),
+                            setup.getJpegStream()}
+                    : new BurstPlanner.StreamOptions[]{setup.getJpegStream()};
+            plan = BurstPlanner.plan(stills, previewFrameDurationNs, frameRate);
+            mStillPlans.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Reads every camera on the I/O thread and works out the stills and the preview size each of
+     * them would use for the current view, so that {@link #switchCamera()} only has to close one
+     * camera and open the next.
+     *
+     * @param width           The width of the view, as passed to {@link #setUpCameraOutputs}
+     * @param height          The height of the view
+     * @param displayRotation The rotation of the display
+     * @param displaySize     The size of the display
+     */
+    private void loadCameras(final CameraManager manager, final int width, final int height,
+                             final int displayRotation, final Point displaySize) {
+        mThreads.getIoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                CameraDirectory cameras;
+                try {
+                    cameras = CameraDirectory.load(manager);
+                } catch (CameraAccessException e) {
+                    Log.e(TAG, "Failed to list the cameras", e);
+                    return;
+                }
+                for (CameraDirectory.Entry entry : cameras.getEntries()) {
+                    CameraSetupCache.Setup setup = entry.getSetup();
+                    boolean swapped = swapsDimensions(displayRotation,
+                            setup.getSensorOrientation());
+                    int viewWidth = swapped ? height : width;
+                    int viewHeight = swapped ? width : height;
+                    int maxWidth = Math.min(swapped ? displaySize.y : displaySize.x,
+                            MAX_PREVIEW_WIDTH);
+                    int maxHeight = Math.min(swapped ? displaySize.x : displaySize.y,
+                            MAX_PREVIEW_HEIGHT);
+                    BurstPlanner.Plan plan = planStills(setup, viewWidth, viewHeight, maxWidth,
+                            maxHeight);
+                    Size largest = ZSL_ENABLED && null != setup.getZslSize()
+                            ? setup.getJpegSize() : plan.getSize();
+                    // Remembered by the selector of the setup for when the camera is opened.
+                    SizeSelector.Choice preview = setup.getPreviewSelector().select(
+                            previewCriteria(largest, viewWidth, viewHeight, maxWidth,
+                                    maxHeight));
+                    Log.d(TAG, "Camera " + entry + ": stills " + plan + ", preview "
+                            + preview.getSize());
+                }
+                Log.d(TAG, String.format(Locale.US, "Loaded %d cameras in %.1f ms",
+                        cameras.getEntries().size(), cameras.getLoadNanos() / 1e6));
+                mCameras = cameras;
+            }
+        });
+    }
+
+    /**
+     * Closes the current camera and opens the next one of {@link #mCameras}, with the setup and
+     * plans worked out when the cameras were loaded. The camera is closed in the background like
+     * in {@link #onPause()}, and the threads and save queue of the next session are started
+     * right away. {@link #openCamera} still waits for the previous camera to be closed before it
+     * replaces the session fields, and the stills of the previous session keep draining into its
+     * own queue and catalog through its {@link StillSaver}, so the two sessions never mix. The
+     * next camera also becomes the one opened on the next cold start; see
+     * {@link CameraSetupCache}.
+     */
+    private void switchCamera() {
+        CameraDirectory cameras = mCameras;
+        CameraDirectory.Entry next = null != cameras ? cameras.next(mCameraId) : null;
+        if (null == next || null == mCameraDevice || !mTextureView.isAvailable()) {
+            showToast("No other camera to switch to");
+            return;
+        }
+        mSwitchLatency.start(mCameraId, next.getCameraId(), SystemClock.elapsedRealtimeNanos());
+        mSetupCache.put(next.getSetup());
+        mTeardown = new Teardown();
+        mTeardownExecutor.execute(mTeardown.mDone);
+        startBackgroundThread();
+        openCamera(mTextureView.getWidth(), mTextureView.getHeight());
+    }
+
+    /**
+     * We fit the aspect ratio of {@link #mTextureView} to the size of preview we picked.
+     */
+    private void applyAspectRatio() {
+        int orientation = getResources().getConfiguration().orientation;
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } else {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        }
+    }
+
     /**
      * Opens the camera specified by {@link Camera2BasicFragment#mCameraId}.
      */
@@ -605,16 +1251,39 @@ public class Camera2BasicFragment extends Fragment
             requestCameraPermission();
             return;
         }
+        awaitCameraReleased();
+        mPreviewTexture = mTextureView.getSurfaceTexture();
+        // Let an early open pick the camera first, so that the setup below is cached.
+        CameraOpener opener = mCameraOpener;
+        mCameraOpener = null;
+        String earlyCameraId = null != opener ? opener.awaitCameraId() : null;
+        mOpenStartNanos = SystemClock.elapsedRealtimeNanos();
         setUpCameraOutputs(width, height);
+        mSetupNanos = SystemClock.elapsedRealtimeNanos() - mOpenStartNanos;
         configureTransform(width, height);
         Activity activity = getActivity();
+        long launchNanos = activity instanceof CameraActivity
+                ? ((CameraActivity) activity).takeLaunchNanos() : -1;
+        mFirstFrameStartNanos = launchNanos >= 0 ? launchNanos : mOpenStartNanos;
+        mOpenedEarly = null != earlyCameraId && earlyCameraId.equals(mCameraId);
+        if (null != opener && !mOpenedEarly) {
+            // It opened some other camera, or failed to; its thread stays ours.
+            opener.release(SAVER_DRAIN_TIMEOUT_MS);
+        }
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
         try {
             if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
                 throw new RuntimeException("Time out waiting to lock camera opening.");
             }
+            if (mOpenedEarly) {
+                mOpenStartNanos = opener.getStartNanos();
+                opener.attach(mStateCallback);
+                return;
+            }
             manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
+            // The cached camera may be gone; query the cameras again next time.
+            mSetupCache.clear();
             e.printStackTrace();
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
@@ -622,231 +1291,578 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Closes the current {@link CameraDevice}.
+     * Waits until the teardown started by the last {@link #onPause()} has closed the camera, if
+     * it has not yet. The rest of the teardown goes on in the background.
      */
-    private void closeCamera() {
+    private void awaitCameraReleased() {
+        Teardown teardown = mTeardown;
+        if (null == teardown || teardown.mCameraReleased.getCount() == 0) {
+            return;
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
         try {
-            mCameraOpenCloseLock.acquire();
-            if (null != mCaptureSession) {
-                mCaptureSession.close();
-                mCaptureSession = null;
-            }
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
-            }
-            if (null != mImageReader) {
-                mImageReader.close();
-                mImageReader = null;
+            if (!teardown.mCameraReleased.await(2500, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Time out waiting for the camera to close.");
             }
         } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-        } finally {
-            mCameraOpenCloseLock.release();
+            throw new RuntimeException("Interrupted while waiting for the camera to close.", e);
+        }
+        Log.d(TAG, String.format(Locale.US, "Waited %.1f ms for the camera to close",
+                (SystemClock.elapsedRealtimeNanos() - startNanos) / 1e6));
+    }
+
+    /**
+     * Starts the camera-control, image and I/O threads.
+     */
+    private void startBackgroundThread() {
+        if (getActivity() instanceof CameraActivity) {
+            mCameraOpener = ((CameraActivity) getActivity()).takeCameraOpener();
+        }
+        if (null != mCameraOpener) {
+            // The camera is already being opened on this thread.
+            mThreads = new CameraThreads(mCameraOpener.getThread(), mCameraOpener.getHandler(),
+                    CONTROL_THREAD_PRIORITY, IMAGE_THREAD_PRIORITY, IO_THREAD_PRIORITY);
+        } else {
+            mThreads = CameraThreads.start(CONTROL_THREAD_PRIORITY, IMAGE_THREAD_PRIORITY,
+                    IO_THREAD_PRIORITY);
+        }
+        mBackgroundHandler = mThreads.getControlHandler();
+        mImageHandler = mThreads.getImageHandler();
+        // Opened on the image thread, so that it is open before any image is handed to it.
+        mImageHandler.post(mOpenCatalog);
+        // The previous session may still be draining; its StillSaver keeps its images on its own
+        // queue, which its Teardown waits for.
+        mWriteBehindQueue = new WriteBehindQueue.Builder()
+                .setWriters(SAVER_THREADS)
+                .setThreadPriority(mThreads.getIoPriority())
+                .setCapacity(SAVE_QUEUE_CAPACITY)
+                .setOverflowPolicy(SAVE_OVERFLOW_POLICY, SAVE_MAX_SPILL_BYTES)
+                .setSyncBatch(SAVE_SYNC_BATCH_SIZE, SAVE_SYNC_DELAY_MS)
+                .build();
+    }
+
+    /**
+     * Creates a new {@link CameraCaptureSession} for camera preview.
+     */
+    private void createCameraPreviewSession() {
+        try {
+            // Not the one of mTextureView, which is gone if the view was recreated meanwhile.
+            SurfaceTexture texture = mPreviewTexture;
+            assert texture != null;
+
+            // We configure the size of default buffer to be the size of camera preview we want.
+            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+
+            // This is the output Surface we need to start preview.
+            Surface surface = new Surface(texture);
+
+            // We set up a CaptureRequest.Builder with the output Surface. In ZSL mode every
+            // preview frame also goes to the ring of recent frames.
+            Surface stillSurface;
+            if (null != mZsl) {
+                stillSurface = mZsl.getSurface();
+                mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(
+                        CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
+                mPreviewRequestBuilder.addTarget(stillSurface);
+            } else {
+                stillSurface = mImageReader.getSurface();
+                mPreviewRequestBuilder
+                        = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            }
+            mPreviewRequestBuilder.addTarget(surface);
+            List<Surface> outputs = new ArrayList<>(4);
+            outputs.add(surface);
+            outputs.add(stillSurface);
+            if (null != mRawCapture) {
+                outputs.add(mRawCapture.getSurface());
+            }
+            Surface analysisSurface = mFrameAnalysis.getSurface();
+            if (null != analysisSurface) {
+                mPreviewRequestBuilder.addTarget(analysisSurface);
+                outputs.add(analysisSurface);
+            }
+
+            // Here, we create a CameraCaptureSession for camera preview.
+            mCameraDevice.createCaptureSession(outputs,
+                    new CameraCaptureSession.StateCallback() {
+
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            // The camera is already closed
+                            if (null == mCameraDevice) {
+                                return;
+                            }
+
+                            // When the session is ready, we start displaying the preview.
+                            mCaptureSession = cameraCaptureSession;
+                            mPreviewGaps.onSessionStarted();
+                            try {
+                                // Auto focus should be continuous for camera preview.
+                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                                // Flash is automatically enabled when necessary.
+                                setAutoFlash(mPreviewRequestBuilder);
+
+                                // Finally, we start displaying the camera preview.
+                                mPreviewRequest = mPreviewRequestBuilder.build();
+                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
+                                        mCaptureCallback, mBackgroundHandler);
+                                // Build the requests for shots now, while nothing waits on it.
+                                getRequestTemplates();
+                            } catch (CameraAccessException e) {
+                                e.printStackTrace();
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(
+                                @NonNull CameraCaptureSession cameraCaptureSession) {
+                            showToast("Failed");
+                        }
+                    }, null
+            );
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
+     * This method should be called after the camera preview size is determined in
+     * setUpCameraOutputs and also the size of `mTextureView` is fixed.
+     *
+     * @param viewWidth  The width of `mTextureView`
+     * @param viewHeight The height of `mTextureView`
+     */
+    private void configureTransform(int viewWidth, int viewHeight) {
+        Activity activity = getActivity();
+        if (null == mTextureView || null == mPreviewSize || null == activity) {
+            return;
         }
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        // The view copies the matrix, so the same one is filled in every time.
+        mTransformMatrix.setValues(mPreviewTransform.get(rotation, viewWidth, viewHeight,
+                mPreviewSize.getWidth(), mPreviewSize.getHeight()));
+        mTextureView.setTransform(mTransformMatrix);
+    }
+
+    /**
+     * Initiate a still image capture.
+     */
+    private void takePicture() {
+        if (null != mZsl) {
+            takeZslPicture();
+            return;
+        }
+        mShutterLag.onShutterPressed(SystemClock.elapsedRealtimeNanos());
+        mBackgroundHandler.post(mStartShot);
+    }
+
+    /**
+     * Takes the picture from the frames that were streamed before the shutter was pressed,
+     * without waiting for focus or exposure.
+     */
+    private void takeZslPicture() {
+        Activity activity = getActivity();
+        if (null == activity) {
+            return;
+        }
+        StillSaver saver = mStillSaver;
+        if (null == saver || null == saver.mZsl) {
+            return;
+        }
+        long pressedNanos = SystemClock.elapsedRealtimeNanos();
+        mShutterLag.onShutterPressed(pressedNanos);
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        if (!saver.mZsl.takePicture(pressedNanos, getOrientation(rotation), saver)) {
+            showToast("Still saving the previous picture");
+        }
+    }
+
+    /**
+     * Initiate a burst of {@link #BURST_LENGTH} still images. Focus and exposure are settled once
+     * for the whole burst.
+     */
+    private void takeBurst() {
+        if (null != mZsl) {
+            showToast("Bursts are not available in ZSL mode");
+            return;
+        }
+        mShutterLag.onShutterPressed(SystemClock.elapsedRealtimeNanos());
+        mBurstRequested = true;
+        mBackgroundHandler.post(mStartShot);
+    }
+
+    /**
+     * Starts a still capture on the background thread, where the preview results are tracked.
+     * The picture is taken right away if focus and exposure have already converged.
+     */
+    private final Runnable mStartShot = new Runnable() {
+
+        @Override
+        public void run() {
+            int actions = mStateMachine.start(SystemClock.elapsedRealtimeNanos(),
+                    mFastPathFreshnessNanos);
+            if ((actions & CaptureStateMachine.ACTION_CAPTURE) != 0) {
+                captureStillPicture();
+            } else {
+                lockFocus();
+            }
+        }
+
+    };
+
+    /**
+     * Lock the focus as the first step for a still image capture.
+     */
+    private void lockFocus() {
+        try {
+            // This is how to tell the camera to lock focus.
+            CaptureRequest request = getRequestTemplates().getLockFocus();
+            // Tell #mCaptureCallback to wait for the lock.
+            mStateMachine.setState(CaptureStateMachine.STATE_WAITING_LOCK);
+            mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run the precapture sequence for capturing a still image. This method should be called when
+     * we get a response in {@link #mCaptureCallback} from {@link #lockFocus()}.
+     */
+    private void runPrecaptureSequence() {
+        try {
+            // This is how to tell the camera to trigger.
+            CaptureRequest request = getRequestTemplates().getPrecapture();
+            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
+            mStateMachine.setState(CaptureStateMachine.STATE_WAITING_PRECAPTURE);
+            mShutterLag.mark(ShutterLagTracker.Stage.PRECAPTURE_STARTED,
+                    SystemClock.elapsedRealtimeNanos());
+            mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Capture a still picture. This method should be called when we get a response in
+     * {@link #mCaptureCallback} from both {@link #lockFocus()}.
+     */
+    private void captureStillPicture() {
+        try {
+            final Activity activity = getActivity();
+            if (null == activity || null == mCameraDevice) {
+                return;
+            }
+            // The still capture request for the current orientation.
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            CaptureRequestTemplates templates = getRequestTemplates();
+            CaptureRequest still = templates.getStill(rotation);
+            mShotJpegOrientation = getOrientation(rotation);
+
+            final StillSaver saver = mStillSaver;
+            if (null == saver) {
+                // No outputs to take the picture with; go back to preview.
+                unlockFocus();
+                return;
+            }
+            mShotKeptPreview = mKeepPreviewDuringCapture;
+            mPreviewGaps.onShotStarted(SystemClock.elapsedRealtimeNanos(), mShotKeptPreview);
+            if (mBurstRequested) {
+                mBurstRequested = false;
+                captureStillBurst(still, saver.mQueue);
+                return;
+            }
+            final boolean withRaw = null != saver.mRawCapture;
+            if (withRaw) {
+                still = templates.getStillWithRaw(rotation);
+            }
+            final long shotId = saver.reserveShotId();
+
+            CameraCaptureSession.CaptureCallback CaptureCallback
+                    = new CameraCaptureSession.CaptureCallback() {
+
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    if (withRaw) {
+                        saver.saveRaw(result, shotId);
+                    }
+                    unlockFocus();
+                }
+            };
+
+            stopPreviewForShot();
+            mShutterLag.mark(ShutterLagTracker.Stage.CAPTURE_REQUESTED,
+                    SystemClock.elapsedRealtimeNanos());
+            mCaptureSession.capture(still, CaptureCallback, null);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Submits {@link #BURST_LENGTH} copies of {@code request} as a single burst, so the camera can
+     * capture them back to back. The frames are saved by {@code queue} as they arrive.
+     *
+     * @param request The still capture request to repeat
+     * @param queue   The queue of the current session
+     */
+    private void captureStillBurst(CaptureRequest request, WriteBehindQueue queue)
+            throws CameraAccessException {
+        List<CaptureRequest> burst = new ArrayList<>(BURST_LENGTH);
+        for (int i = 0; i < BURST_LENGTH; i++) {
+            burst.add(request);
+        }
+
+        CameraCaptureSession.CaptureCallback burstCallback
+                = new CameraCaptureSession.CaptureCallback() {
+
+            @Override
+            public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session,
+                                                   int sequenceId, long frameNumber) {
+                BurstPlanner.Plan plan = mBurstPlan;
+                Log.d(TAG, "Burst captured: " + mBurstStats + (null != plan ? String.format(
+                        Locale.US, ", planned %.1f fps", plan.getPredictedFramesPerSecond())
+                        : ""));
+                unlockFocus();
+            }
+
+            @Override
+            public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                                 int sequenceId) {
+                mBurstFramesRemaining.set(0);
+                unlockFocus();
+            }
+        };
+
+        stopPreviewForShot();
+        mBurstFramesRemaining.set(BURST_LENGTH);
+        queue.resetPeak();
+        mBurstStats.start(BURST_LENGTH, SystemClock.elapsedRealtimeNanos());
+        mShutterLag.mark(ShutterLagTracker.Stage.CAPTURE_REQUESTED,
+                SystemClock.elapsedRealtimeNanos());
+        mCaptureSession.captureBurst(burst, burstCallback, null);
+    }
+
+    /**
+     * @return The requests of the capture sequence for the current session, built again if the
+     * session or {@link #mFlashSupported} changed since they were last built
+     */
+    private CaptureRequestTemplates getRequestTemplates() throws CameraAccessException {
+        if (null == mRequestTemplates
+                || !mRequestTemplates.isFor(mCaptureSession, mFlashSupported)) {
+            mRequestTemplates = CaptureRequestTemplates.build(mCameraDevice, mCaptureSession,
+                    mPreviewRequestBuilder, null == mImageReader ? null : mImageReader.getSurface(),
+                    null == mRawCapture ? null : mRawCapture.getSurface(), mFlashSupported,
+                    mSensorOrientation, mFrontFacing);
+        }
+        return mRequestTemplates;
+    }
+
+    /**
+     * Stops the repeating preview request and drops the frames in flight, unless the shot in
+     * progress runs alongside preview.
+     */
+    private void stopPreviewForShot() throws CameraAccessException {
+        if (mShotKeptPreview) {
+            return;
+        }
+        mCaptureSession.stopRepeating();
+        mCaptureSession.abortCaptures();
+    }
+
+    /**
+     * Sets whether still captures leave the repeating preview request running. Takes effect from
+     * the next shot.
+     */
+    void setKeepPreviewDuringCapture(boolean keepPreview) {
+        mKeepPreviewDuringCapture = keepPreview;
+    }
+
+    /**
+     * Sets the frame rate that bursts should reach, from the next time the camera is opened.
+     * Every still that does not come from the ZSL ring goes through the same
+     * {@link ImageReader}, so single shots are taken at the burst size as well.
+     *
+     * @param framesPerSecond The burst frame rate, or 0 to take stills at the largest size
+     */
+    void setBurstFrameRate(int framesPerSecond) {
+        mBurstFrameRate = framesPerSecond;
+        if (null != mSetupCache) {
+            // The preview sizes were matched to the stills of the previous rate.
+            mSetupCache.clearPreviewSizes();
+        }
+    }
+
+    /**
+     * @return Gaps between preview frames, in steady state and around shots in either mode
+     */
+    PreviewGapTracker getPreviewGapTracker() {
+        return mPreviewGaps;
+    }
+
+    /**
+     * Sets how old the latest preview result may be for a shot to skip the focus lock.
+     *
+     * @param freshnessMs The window in milliseconds, or 0 to always lock the focus first
+     */
+    void setFastPathFreshnessMs(long freshnessMs) {
+        mFastPathFreshnessNanos = TimeUnit.MILLISECONDS.toNanos(freshnessMs);
+    }
+
+    /**
+     * @return The capture state machine, which counts the shots that took the fast path
+     */
+    CaptureStateMachine getCaptureStateMachine() {
+        return mStateMachine;
+    }
+
+    /**
+     * @return Throughput of the most recent burst
+     */
+    BurstStats getBurstStats() {
+        return mBurstStats;
+    }
+
+    /**
+     * @return The still format and size picked for bursts and their predicted frame rate, or
+     * null when stills come from the ZSL ring
+     */
+    BurstPlanner.Plan getBurstPlan() {
+        return mBurstPlan;
+    }
+
+    /**
+     * @param warm Whether to return the time to open with a cached camera setup
+     * @return Latency histogram of the time to open the camera
+     */
+    LatencyHistogram getOpenLatency(boolean warm) {
+        return warm ? mWarmOpenLatency : mColdOpenLatency;
+    }
+
+    /**
+     * @return Latency histogram of the time to the first preview frame
+     */
+    LatencyHistogram getFirstFrameLatency() {
+        return mFirstFrameLatency;
+    }
+
+    /**
+     * @return The zero-shutter-lag ring and its metrics, or null when not in ZSL mode
+     */
+    ZslController getZslController() {
+        return mZsl;
+    }
+
+    /**
+     * @return The software JPEG encoder of YUV stills, or null when the camera encodes them
+     */
+    YuvStillEncoder getYuvStillEncoder() {
+        return mYuvEncoder;
+    }
+
+    /**
+     * Adds {@code analyzer} to those that see the frames of the low-resolution analysis stream,
+     * from the next time the camera is opened. The stream is only set up while there are
+     * analyzers.
+     *
+     * @param name Identifies the analyzer in the statistics
+     */
+    FrameAnalysisPipeline.Registration addFrameAnalyzer(String name, FrameAnalyzer analyzer) {
+        return mFrameAnalysis.addAnalyzer(name, analyzer);
+    }
+
+    /**
+     * @return The frame analysis pipeline, with per-analyzer processing times and dropped frames
+     */
+    FrameAnalysisPipeline getFrameAnalysisPipeline() {
+        return mFrameAnalysis;
+    }
+
+    /**
+     * @return Whether the camera is being kept open across a configuration change, in which
+     * case the new activity must not open it early
+     */
+    boolean isKeepingCamera() {
+        return mKeepingCamera;
+    }
+
+    /**
+     * @return Completes when the teardown started by the last {@link #onPause()} is done, or
+     * null before the first one
+     */
+    Future<Void> getTeardownFuture() {
+        Teardown teardown = mTeardown;
+        return null == teardown ? null : teardown.mDone;
+    }
+
+    /**
+     * @return Latency histogram of the time from {@link #onPause()} until the camera is closed
+     */
+    LatencyHistogram getCameraReleaseLatency() {
+        return mCameraReleaseLatency;
     }
 
     /**
-     * Starts a background thread and its {@link Handler}.
+     * @return Latency histogram of the time from {@link #onPause()} until the teardown is done
      */
-    private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+    LatencyHistogram getTeardownLatency() {
+        return mTeardownLatency;
     }
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * @return Every camera of the device, or null if they have not been loaded yet
      */
-    private void stopBackgroundThread() {
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    CameraDirectory getCameraDirectory() {
+        return mCameras;
     }
 
     /**
-     * Creates a new {@link CameraCaptureSession} for camera preview.
+     * @return Time from a camera switch to the first preview frame of the next camera, per pair
+     * of cameras
      */
-    private void createCameraPreviewSession() {
-        try {
-            SurfaceTexture texture = mTextureView.getSurfaceTexture();
-            assert texture != null;
-
-            // We configure the size of default buffer to be the size of camera preview we want.
-            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-
-            // This is the output Surface we need to start preview.
-            Surface surface = new Surface(texture);
-
-            // We set up a CaptureRequest.Builder with the output Surface.
-            mPreviewRequestBuilder
-                    = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            mPreviewRequestBuilder.addTarget(surface);
-
-            // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
-                    new CameraCaptureSession.StateCallback() {
-
-                        @Override
-                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                            // The camera is already closed
-                            if (null == mCameraDevice) {
-                                return;
-                            }
-
-                            // When the session is ready, we start displaying the preview.
-                            mCaptureSession = cameraCaptureSession;
-                            try {
-                                // Auto focus should be continuous for camera preview.
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                                // Flash is automatically enabled when necessary.
-                                setAutoFlash(mPreviewRequestBuilder);
-
-                                // Finally, we start displaying the camera preview.
-                                mPreviewRequest = mPreviewRequestBuilder.build();
-                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
-                                        mCaptureCallback, mBackgroundHandler);
-                            } catch (CameraAccessException e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        @Override
-                        public void onConfigureFailed(
-                                @NonNull CameraCaptureSession cameraCaptureSession) {
-                            showToast("Failed");
-                        }
-                    }, null
-            );
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
+    CameraSwitchLatency getSwitchLatency() {
+        return mSwitchLatency;
     }
 
     /**
-     * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
-     * This method should be called after the camera preview size is determined in
-     * setUpCameraOutputs and also the size of `mTextureView` is fixed.
-     *
-     * @param viewWidth  The width of `mTextureView`
-     * @param viewHeight The height of `mTextureView`
+     * @return The thumbnails of the captures, for a review strip to load and prefetch
      */
-    private void configureTransform(int viewWidth, int viewHeight) {
-        Activity activity = getActivity();
-        if (null == mTextureView || null == mPreviewSize || null == activity) {
-            return;
-        }
-        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-        Matrix matrix = new Matrix();
-        RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
-        RectF bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
-        float centerX = viewRect.centerX();
-        float centerY = viewRect.centerY();
-        if (Surface.ROTATION_90 == rotation || Surface.ROTATION_270 == rotation) {
-            bufferRect.offset(centerX - bufferRect.centerX(), centerY - bufferRect.centerY());
-            matrix.setRectToRect(viewRect, bufferRect, Matrix.ScaleToFit.FILL);
-            float scale = Math.max(
-                    (float) viewHeight / mPreviewSize.getHeight(),
-                    (float) viewWidth / mPreviewSize.getWidth());
-            matrix.postScale(scale, scale, centerX, centerY);
-            matrix.postRotate(90 * (rotation - 2), centerX, centerY);
-        } else if (Surface.ROTATION_180 == rotation) {
-            matrix.postRotate(180, centerX, centerY);
-        }
-        mTextureView.setTransform(matrix);
+    ThumbnailLoader getThumbnailLoader() {
+        return mThumbnails;
     }
 
     /**
-     * Initiate a still image capture.
+     * @return The exposure statistics of the latest analysis frame, or null when they are not
+     * measured
      */
-    private void takePicture() {
-        lockFocus();
+    LumaStatistics getLumaStatistics() {
+        return mLumaStatistics;
     }
 
     /**
-     * Lock the focus as the first step for a still image capture.
+     * @return The DNG writer of RAW captures and its metrics, or null when RAW is not captured
      */
-    private void lockFocus() {
-        try {
-            // This is how to tell the camera to lock focus.
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                    CameraMetadata.CONTROL_AF_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the lock.
-            mState = STATE_WAITING_LOCK;
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
+    RawCapture getRawCapture() {
+        return mRawCapture;
     }
 
     /**
-     * Run the precapture sequence for capturing a still image. This method should be called when
-     * we get a response in {@link #mCaptureCallback} from {@link #lockFocus()}.
+     * @return Latency histograms for each stage of the capture sequence
      */
-    private void runPrecaptureSequence() {
-        try {
-            // This is how to tell the camera to trigger.
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
-                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
+    ShutterLagTracker getShutterLagTracker() {
+        return mShutterLag;
     }
 
     /**
-     * Capture a still picture. This method should be called when we get a response in
-     * {@link #mCaptureCallback} from both {@link #lockFocus()}.
+     * @return The number of captured images waiting to be written, or 0 when the camera is closed
      */
-    private void captureStillPicture() {
-        try {
-            final Activity activity = getActivity();
-            if (null == activity || null == mCameraDevice) {
-                return;
-            }
-            // This is the CaptureRequest.Builder that we use to take a picture.
-            final CaptureRequest.Builder captureBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(mImageReader.getSurface());
-
-            // Use the same AE and AF modes as the preview.
-            captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            setAutoFlash(captureBuilder);
-
-            // Orientation
-            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
-
-            CameraCaptureSession.CaptureCallback CaptureCallback
-                    = new CameraCaptureSession.CaptureCallback() {
-
-                @Override
-                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                               @NonNull CaptureRequest request,
-                                               @NonNull TotalCaptureResult result) {
-                    showToast("Saved: " + mFile);
-                    Log.d(TAG, mFile.toString());
-                    unlockFocus();
-                }
-            };
-
-            mCaptureSession.stopRepeating();
-            mCaptureSession.abortCaptures();
-            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
+    int getSaveQueueDepth() {
+        WriteBehindQueue queue = mWriteBehindQueue;
+        return null == queue ? 0 : queue.getQueueDepth();
     }
 
     /**
@@ -856,11 +1872,7 @@ public class Camera2BasicFragment extends Fragment
      * @return The JPEG orientation (one of 0, 90, 270, and 360)
      */
     private int getOrientation(int rotation) {
-        // Sensor orientation is 90 for most devices, or 270 for some devices (eg. Nexus 5X)
-        // We have to take that into account and rotate JPEG properly.
-        // For devices with orientation of 90, we simply return our mapping from ORIENTATIONS.
-        // For devices with orientation of 270, we need to rotate the JPEG 180 degrees.
-        return (ORIENTATIONS.get(rotation) + mSensorOrientation + 270) % 360;
+        return JpegOrientation.fromRotation(rotation, mSensorOrientation, mFrontFacing);
     }
 
     /**
@@ -870,15 +1882,16 @@ public class Camera2BasicFragment extends Fragment
     private void unlockFocus() {
         try {
             // Reset the auto-focus trigger
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                    CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
-            setAutoFlash(mPreviewRequestBuilder);
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
+            mCaptureSession.capture(getRequestTemplates().getUnlockFocus(), mCaptureCallback,
                     mBackgroundHandler);
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
-            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
-                    mBackgroundHandler);
+            mStateMachine.setState(CaptureStateMachine.STATE_PREVIEW);
+            if (!mShotKeptPreview) {
+                mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                        mBackgroundHandler);
+            }
+            mShotKeptPreview = false;
+            mPreviewGaps.onShotFinished(SystemClock.elapsedRealtimeNanos());
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -901,9 +1914,24 @@ public class Camera2BasicFragment extends Fragment
                 }
                 break;
             }
+            case R.id.switch_camera: {
+                switchCamera();
+                break;
+            }
         }
     }
 
+    @Override
+    public boolean onLongClick(View view) {
+        switch (view.getId()) {
+            case R.id.picture: {
+                takeBurst();
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void setAutoFlash(CaptureRequest.Builder requestBuilder) {
         if (mFlashSupported) {
             requestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
@@ -912,59 +1940,390 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * Tears down a camera session off the main thread. The objects of the session are taken
+     * over on the main thread in {@link #onPause()}. The camera is closed first, which the next
+     * {@link #openCamera} waits for; the pending saves are finished and the threads stopped
+     * after that.
      */
-    private static class ImageSaver implements Runnable {
+    private class Teardown implements Runnable {
+
+        final CountDownLatch mCameraReleased = new CountDownLatch(1);
+        final FutureTask<Void> mDone = new FutureTask<>(this, null);
+
+        private final long mStartNanos = SystemClock.elapsedRealtimeNanos();
+        private final CameraOpener mOpener = mCameraOpener;
+        private final ZslController mZsl = Camera2BasicFragment.this.mZsl;
+        private final YuvStillEncoder mYuvEncoder = Camera2BasicFragment.this.mYuvEncoder;
+        private final RawCapture mRawCapture = Camera2BasicFragment.this.mRawCapture;
+        private final ImageReader mImageReader = Camera2BasicFragment.this.mImageReader;
+        private final WriteBehindQueue mWriteBehindQueue
+                = Camera2BasicFragment.this.mWriteBehindQueue;
+        private final CaptureCatalog mCatalog = Camera2BasicFragment.this.mCatalog;
+        private final CameraThreads mThreads = Camera2BasicFragment.this.mThreads;
+
+        Teardown() {
+            mCameraOpener = null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                releaseCamera();
+            } finally {
+                mCameraReleased.countDown();
+            }
+            long releasedNanos = SystemClock.elapsedRealtimeNanos();
+            mCameraReleaseLatency.record(releasedNanos - mStartNanos);
+            try {
+                finish();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Teardown interrupted", e);
+                return;
+            }
+            long doneNanos = SystemClock.elapsedRealtimeNanos();
+            mTeardownLatency.record(doneNanos - mStartNanos);
+            Log.d(TAG, String.format(Locale.US,
+                    "Teardown: camera closed in %.1f ms, done in %.1f ms",
+                    (releasedNanos - mStartNanos) / 1e6, (doneNanos - mStartNanos) / 1e6));
+        }
 
         /**
-         * The JPEG image
+         * Closes the camera and stops the streams that the next session shares with this one.
          */
-        private final Image mImage;
+        private void releaseCamera() {
+            if (null != mOpener) {
+                // The preview surface never became available, so the early open was not taken
+                // over.
+                mOpener.release(SAVER_DRAIN_TIMEOUT_MS);
+            }
+            try {
+                mCameraOpenCloseLock.acquire();
+                if (null != mCaptureSession) {
+                    mCaptureSession.close();
+                    mCaptureSession = null;
+                    mRequestTemplates = null;
+                }
+                if (null != mCameraDevice) {
+                    mCameraDevice.close();
+                    mCameraDevice = null;
+                }
+                // The images that arrived before the camera closed are handed on before their
+                // readers are closed.
+                if (null != mThreads && !mThreads.awaitImageThread(SAVER_DRAIN_TIMEOUT_MS)) {
+                    Log.w(TAG, "Timed out waiting for the image thread.");
+                }
+                if (null != mFrameAnalysis.getSurface()) {
+                    Log.d(TAG, "Frame analysis " + mFrameAnalysis.summary());
+                    mFrameAnalysis.stop();
+                }
+                mStillSaver = null;
+                Camera2BasicFragment.this.mZsl = null;
+                Camera2BasicFragment.this.mYuvEncoder = null;
+                Camera2BasicFragment.this.mRawCapture = null;
+                Camera2BasicFragment.this.mImageReader = null;
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
+            } finally {
+                mCameraOpenCloseLock.release();
+            }
+        }
+
+        /**
+         * Finishes the pending saves, closes the readers, checkpoints the catalog and stops the
+         * threads.
+         */
+        private void finish() throws InterruptedException {
+            if (null != mZsl) {
+                Log.d(TAG, String.format(Locale.US,
+                        "ZSL ring peak %d/%d, selection %s, frame age %s",
+                        mZsl.getPeakRingDepth(), mZsl.getRingCapacity(),
+                        mZsl.getSelectionLatency().summary(), mZsl.getFrameAge().summary()));
+                mZsl.close();
+            }
+            if (null != mYuvEncoder) {
+                Log.d(TAG, "Software JPEG encode " + mYuvEncoder.getEncodeLatency().summary());
+                // Encodes still hold images of the reader.
+                mYuvEncoder.close();
+            }
+            if (null != mRawCapture) {
+                Log.d(TAG, String.format(Locale.US,
+                        "RAW save %s, last %.1f MB/s, peak heap growth %.1f MB",
+                        mRawCapture.getSaveLatency().summary(),
+                        mRawCapture.getLastMegabytesPerSecond(),
+                        mRawCapture.getPeakHeapGrowthBytes() / 1e6));
+                mRawCapture.close();
+            }
+            if (null != mImageReader) {
+                // Images that are still being written become invalid once the reader is closed.
+                if (null != mWriteBehindQueue
+                        && !mWriteBehindQueue.awaitIdle(SAVER_DRAIN_TIMEOUT_MS)) {
+                    Log.w(TAG, "Closing the ImageReader with pending saves.");
+                }
+                mImageReader.close();
+            }
+            mWriteBehindQueue.shutdown(SAVER_DRAIN_TIMEOUT_MS);
+            try {
+                // Left open for the next session; it is closed in onDestroy.
+                mCatalog.checkpoint();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to checkpoint the capture catalog", e);
+            }
+            Log.d(TAG, "Time to open: cold " + mColdOpenLatency.summary()
+                    + ", warm " + mWarmOpenLatency.summary()
+                    + "; time to first preview frame: " + mFirstFrameLatency.summary());
+            Log.d(TAG, "Converged 3A fast path taken for " + mStateMachine.getFastPathCount()
+                    + " of " + mStateMachine.getShotCount() + " shots");
+            Log.d(TAG, "Preview frame gaps:\n" + mPreviewGaps.summary());
+            Log.d(TAG, "Thumbnails: " + mThumbnails.summary());
+            if (!mSwitchLatency.isEmpty()) {
+                Log.d(TAG, "Camera switches:\n" + mSwitchLatency.summary());
+            }
+            if (mShutterLag.getTotal().getCount() > 0) {
+                Log.d(TAG, "Shutter lag:\n" + mShutterLag.summary());
+                try {
+                    mShutterLag.dump(mShutterLagReport);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write " + mShutterLagReport, e);
+                }
+            }
+            mThreads.quit();
+        }
+    }
+
+    /**
+     * Saves the stills of one camera session: the images of {@link #mImageReader}, the pictures
+     * taken by {@link #mZsl} and the RAW images of single shots. It uses the queue, catalog and
+     * encoders of its own session rather than the fields of the fragment, so that images still
+     * draining from a session that is being torn down never reach the next session, which may
+     * already have replaced those fields.
+     */
+    private class StillSaver implements ImageReader.OnImageAvailableListener,
+            ZslController.Callback {
+
+        final WriteBehindQueue mQueue;
+        final CaptureCatalog mCatalog;
+        final ZslController mZsl;
+        final YuvStillEncoder mYuvEncoder;
+        final RawCapture mRawCapture;
+
         /**
-         * The file we save the image into.
+         * The catalog id reserved for the single shot in progress, so that its JPEG and DNG
+         * files share it; -1 when there is none.
          */
-        private final File mFile;
+        private final AtomicLong mShotId = new AtomicLong(-1);
+
+        StillSaver(WriteBehindQueue queue, CaptureCatalog catalog, ZslController zsl,
+                   YuvStillEncoder yuvEncoder, RawCapture rawCapture) {
+            mQueue = queue;
+            mCatalog = catalog;
+            mZsl = zsl;
+            mYuvEncoder = yuvEncoder;
+            mRawCapture = rawCapture;
+        }
 
-        ImageSaver(Image image, File file) {
-            mImage = image;
-            mFile = file;
+        /**
+         * Reserves the catalog id of a single shot, which its image takes when it arrives.
+         */
+        long reserveShotId() {
+            long id = mCatalog.allocateId();
+            mShotId.set(id);
+            return id;
         }
 
         @Override
-        public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            long availableNanos = SystemClock.elapsedRealtimeNanos();
+            long pressedNanos = mShutterLag.onImageAvailable(availableNanos);
+            long id;
+            WriteBehindQueue.Callback callback;
+            if (takeBurstFrame()) {
+                id = mCatalog.allocateId();
+                callback = mBurstSaveCallback;
+                mBurstStats.onFrameCaptured(SystemClock.elapsedRealtimeNanos(),
+                        mQueue.getQueueDepth() + 1);
+            } else {
+                id = mShotId.getAndSet(-1);
+                if (id < 0) {
+                    id = mCatalog.allocateId();
+                }
+                callback = mSaveCallback;
+            }
+            File file = mCatalog.getCaptureFile(id);
+            CatalogCallback catalogCallback = new CatalogCallback(mCatalog, id,
+                    image.getTimestamp(), pressedNanos, availableNanos, callback);
+            if (null != mYuvEncoder) {
+                encodeAndSave(image, file, catalogCallback);
+                return;
+            }
             try {
-                output = new FileOutputStream(mFile);
-                output.write(bytes);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                mImage.close();
-                if (null != output) {
+                mQueue.submit(new ImagePayload(image), file, catalogCallback);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while queueing " + file, e);
+            }
+        }
+
+        /**
+         * @return Whether the image belongs to the current burst, which is then one frame shorter
+         */
+        private boolean takeBurstFrame() {
+            int remaining = mBurstFramesRemaining.get();
+            while (remaining > 0
+                    && !mBurstFramesRemaining.compareAndSet(remaining, remaining - 1)) {
+                remaining = mBurstFramesRemaining.get();
+            }
+            return remaining > 0;
+        }
+
+        private void encodeAndSave(Image image, final File file,
+                                   final WriteBehindQueue.Callback callback) {
+            mYuvEncoder.encode(image, mShotJpegOrientation, new YuvStillEncoder.Callback() {
+
+                @Override
+                public void onEncoded(byte[] jpeg) {
                     try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                        mQueue.submit(new JpegPayload(jpeg), file, callback);
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Interrupted while queueing " + file, e);
                     }
                 }
+
+                @Override
+                public void onFailed(RuntimeException e) {
+                    callback.onFailed(file, new IOException("Failed to encode " + file, e));
+                }
+
+            });
+        }
+
+        /**
+         * Queues a picture taken by {@link #mZsl} for saving.
+         */
+        @Override
+        public void onEncoded(byte[] jpeg, long sensorTimestamp, long selectedNanos) {
+            mShutterLag.mark(ShutterLagTracker.Stage.CAPTURE_REQUESTED, selectedNanos);
+            long availableNanos = SystemClock.elapsedRealtimeNanos();
+            long pressedNanos = mShutterLag.onImageAvailable(availableNanos);
+            long id = mCatalog.allocateId();
+            File file = mCatalog.getCaptureFile(id);
+            try {
+                mQueue.submit(new JpegPayload(jpeg), file, new CatalogCallback(mCatalog, id,
+                        sensorTimestamp, pressedNanos, availableNanos, mSaveCallback));
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while queueing " + file, e);
+            }
+        }
+
+        @Override
+        public void onFailed(String reason) {
+            showToast(reason);
+        }
+
+        /**
+         * Saves the RAW image of the capture that produced {@code result} as a DNG file next to
+         * its JPEG file, under the same catalog id. It does not count towards the shutter lag.
+         */
+        void saveRaw(TotalCaptureResult result, long id) {
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            mRawCapture.onCaptureCompleted(result, mCatalog.getRawFile(id), mShotJpegOrientation,
+                    new CatalogCallback(mCatalog, id, null == timestamp ? 0 : timestamp, -1, -1,
+                            mRawSaveCallback));
+        }
+
+    }
+
+    /**
+     * Records a saved capture in its catalog and {@link #mShutterLag} before passing its outcome
+     * on.
+     */
+    private class CatalogCallback implements WriteBehindQueue.Callback {
+
+        private final CaptureCatalog mCatalog;
+        private final long mId;
+        private final long mSensorTimestamp;
+        private final long mPressedNanos;
+        private final long mAvailableNanos;
+        private final WriteBehindQueue.Callback mDelegate;
+
+        CatalogCallback(CaptureCatalog catalog, long id, long sensorTimestamp, long pressedNanos,
+                        long availableNanos, WriteBehindQueue.Callback delegate) {
+            mCatalog = catalog;
+            mId = id;
+            mSensorTimestamp = sensorTimestamp;
+            mPressedNanos = pressedNanos;
+            mAvailableNanos = availableNanos;
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void onSaved(File file, long bytes, long latencyNanos) {
+            mShutterLag.onSaved(mPressedNanos, mAvailableNanos,
+                    SystemClock.elapsedRealtimeNanos());
+            try {
+                mCatalog.append(mId, file, bytes, mSensorTimestamp, latencyNanos);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to record " + file, e);
             }
+            mDelegate.onSaved(file, bytes, latencyNanos);
+        }
+
+        @Override
+        public void onFailed(File file, IOException e) {
+            mDelegate.onFailed(file, e);
+        }
+
+        @Override
+        public void onDropped(File file) {
+            mDelegate.onDropped(file);
+        }
+
+    }
+
+    /**
+     * Hands the JPEG data of an {@link Image} to the {@link WriteBehindQueue}, and closes the
+     * image once it has been written.
+     */
+    private static class ImagePayload implements WriteBehindQueue.Payload {
+
+        /**
+         * The JPEG image
+         */
+        private final Image mImage;
+
+        ImagePayload(Image image) {
+            mImage = image;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mImage.getPlanes()[0].getBuffer();
+        }
+
+        @Override
+        public void release() {
+            mImage.close();
         }
 
     }
 
     /**
-     * Compares two {@code Size}s based on their areas.
+     * Hands JPEG data encoded in software to the {@link WriteBehindQueue}.
      */
-    static class CompareSizesByArea implements Comparator<Size> {
+    private static class JpegPayload implements WriteBehindQueue.Payload {
+
+        private final ByteBuffer mBuffer;
+
+        JpegPayload(byte[] jpeg) {
+            mBuffer = ByteBuffer.wrap(jpeg);
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
 
         @Override
-        public int compare(Size lhs, Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                    (long) rhs.getWidth() * rhs.getHeight());
+        public void release() {
         }
 
     }
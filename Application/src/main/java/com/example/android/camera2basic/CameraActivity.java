@@ -16,14 +16,62 @@
 
 package com.example.android.camera2basic;
 
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.v4.app.Fragment;
+import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 
+import java.io.File;
+
 public class CameraActivity extends AppCompatActivity {
 
+    /**
+     * Whether to start opening the camera before the UI is inflated, when the camera permission
+     * has already been granted. Otherwise the camera is opened once the preview surface exists.
+     */
+    private static final boolean OPEN_CAMERA_EARLY = true;
+
+    /**
+     * How long to wait for an early open that nobody took over before giving up on it.
+     */
+    private static final long CANCEL_OPEN_TIMEOUT_MS = 2500;
+
+    /**
+     * The camera setup shared with {@link Camera2BasicFragment}.
+     */
+    private CameraSetupCache mSetupCache;
+
+    /**
+     * The early open of the camera, until the fragment takes it over.
+     */
+    private CameraOpener mCameraOpener;
+
+    /**
+     * When this activity was created, until the fragment has measured its first preview frame.
+     */
+    private long mLaunchNanos = -1;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mLaunchNanos = SystemClock.elapsedRealtimeNanos();
+        mSetupCache = new CameraSetupCache(new File(getCacheDir(), "camera_setup.bin"),
+                Build.FINGERPRINT);
+        // A retained fragment that kept the camera across a configuration change still has it.
+        Fragment fragment = getSupportFragmentManager().findFragmentById(R.id.container);
+        boolean cameraKept = fragment instanceof Camera2BasicFragment
+                && ((Camera2BasicFragment) fragment).isKeepingCamera();
+        if (OPEN_CAMERA_EARLY && !cameraKept && ContextCompat.checkSelfPermission(this,
+                Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+            mCameraOpener = new CameraOpener(
+                    (CameraManager) getSystemService(Context.CAMERA_SERVICE), mSetupCache);
+        }
         setContentView(R.layout.activity_camera);
         if (null == savedInstanceState) {
             getSupportFragmentManager().beginTransaction()
@@ -32,4 +80,35 @@ public class CameraActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        if (null != mCameraOpener) {
+            mCameraOpener.cancel(CANCEL_OPEN_TIMEOUT_MS);
+            mCameraOpener = null;
+        }
+        super.onDestroy();
+    }
+
+    CameraSetupCache getSetupCache() {
+        return mSetupCache;
+    }
+
+    /**
+     * @return The camera being opened early, or null. The caller becomes responsible for it.
+     */
+    CameraOpener takeCameraOpener() {
+        CameraOpener opener = mCameraOpener;
+        mCameraOpener = null;
+        return opener;
+    }
+
+    /**
+     * @return When this activity was created, or -1 if that was already taken
+     */
+    long takeLaunchNanos() {
+        long launchNanos = mLaunchNanos;
+        mLaunchNanos = -1;
+        return launchNanos;
+    }
+
 }
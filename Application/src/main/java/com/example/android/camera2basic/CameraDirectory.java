@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Every camera of the device, front, back and external, with its {@link CameraSetupCache.Setup}.
+ * Reading the characteristics of a camera is a call into the camera service that can take tens
+ * of milliseconds, so the cameras are read concurrently.
+ */
+class CameraDirectory {
+
+    private static final String TAG = "CameraDirectory";
+
+    /**
+     * At most this many characteristics are read at once.
+     */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * A camera and what {@code setUpCameraOutputs} needs to know about it.
+     */
+    static final class Entry {
+
+        private final CameraSetupCache.Setup mSetup;
+
+        Entry(CameraSetupCache.Setup setup) {
+            mSetup = setup;
+        }
+
+        String getCameraId() {
+            return mSetup.getCameraId();
+        }
+
+        /**
+         * @return One of the {@code CameraMetadata.LENS_FACING_*} values
+         */
+        int getLensFacing() {
+            return mSetup.getLensFacing();
+        }
+
+        CameraSetupCache.Setup getSetup() {
+            return mSetup;
+        }
+
+        @Override
+        public String toString() {
+            switch (getLensFacing()) {
+                case CameraMetadata.LENS_FACING_FRONT:
+                    return getCameraId() + " (front)";
+                case CameraMetadata.LENS_FACING_BACK:
+                    return getCameraId() + " (back)";
+                default:
+                    return getCameraId() + " (external)";
+            }
+        }
+
+    }
+
+    private final List<Entry> mEntries;
+    private final long mLoadNanos;
+
+    private CameraDirectory(List<Entry> entries, long loadNanos) {
+        mEntries = Collections.unmodifiableList(entries);
+        mLoadNanos = loadNanos;
+    }
+
+    /**
+     * Reads the characteristics of every camera, concurrently. Blocks until all are read, so it
+     * should not be called on the UI thread. A camera that cannot be read, or that has no
+     * outputs the sample can use, is left out.
+     */
+    static CameraDirectory load(final CameraManager manager) throws CameraAccessException {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        String[] cameraIds = manager.getCameraIdList();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(cameraIds.length, MAX_THREADS)), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, TAG);
+                    }
+                });
+        try {
+            List<Future<Entry>> futures = new ArrayList<>(cameraIds.length);
+            for (final String cameraId : cameraIds) {
+                futures.add(pool.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws CameraAccessException {
+                        CameraSetupCache.Setup setup = CameraSetupCache.describe(cameraId,
+                                manager.getCameraCharacteristics(cameraId));
+                        return null == setup ? null : new Entry(setup);
+                    }
+                }));
+            }
+            List<Entry> entries = new ArrayList<>(cameraIds.length);
+            for (int i = 0; i < cameraIds.length; i++) {
+                try {
+                    Entry entry = futures.get(i).get();
+                    if (null != entry) {
+                        entries.add(entry);
+                    }
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof CameraAccessException)) {
+                        throw new RuntimeException(e.getCause());
+                    }
+                    Log.w(TAG, "Skipping camera " + cameraIds[i], e.getCause());
+                }
+            }
+            return new CameraDirectory(entries, SystemClock.elapsedRealtimeNanos() - startNanos);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while reading the cameras.", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return The cameras, in the order of {@code CameraManager#getCameraIdList()}
+     */
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return The camera after {@code cameraId}, wrapping around, or null if there is no other
+     * camera
+     */
+    Entry next(String cameraId) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).getCameraId().equals(cameraId)) {
+                Entry next = mEntries.get((i + 1) % mEntries.size());
+                return next == mEntries.get(i) ? null : next;
+            }
+        }
+        return mEntries.isEmpty() ? null : mEntries.get(0);
+    }
+
+    /**
+     * @return How long reading every camera took, in nanoseconds
+     */
+    long getLoadNanos() {
+        return mLoadNanos;
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the camera ahead of the UI. {@link CameraActivity} starts it before its content view is
+ * inflated, and {@link Camera2BasicFragment} later takes over both the camera thread and the
+ * device, which by then is usually open already.
+ *
+ * <p>Until {@link #attach} is called, the outcome of the open is held back and delivered to the
+ * attached callback on the camera thread, exactly as if the fragment had opened the camera
+ * itself.</p>
+ */
+class CameraOpener {
+
+    private static final String TAG = "CameraOpener";
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final CameraSetupCache mSetupCache;
+    private final CameraManager mManager;
+    private final long mStartNanos;
+
+    /**
+     * Counted down once the camera to open has been picked, or picking it failed.
+     */
+    private final CountDownLatch mPicked = new CountDownLatch(1);
+
+    /**
+     * Counted down once the open has succeeded or failed.
+     */
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    // Guarded by this.
+    private String mCameraId;
+    private CameraDevice mDevice;
+    private int mError;
+    private boolean mDisconnected;
+    private CameraDevice.StateCallback mTarget;
+    private boolean mCancelled;
+
+    /**
+     * Starts the camera thread and posts the open to it.
+     *
+     * @param setupCache Tells which camera to open; queried and filled in if empty
+     */
+    CameraOpener(CameraManager manager, CameraSetupCache setupCache) {
+        mManager = manager;
+        mSetupCache = setupCache;
+        mStartNanos = SystemClock.elapsedRealtimeNanos();
+        mThread = new HandlerThread(CameraThreads.CONTROL_THREAD_NAME,
+                CameraThreads.DEFAULT_CONTROL_PRIORITY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mOpen);
+    }
+
+    private final Runnable mOpen = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                openCamera();
+            } finally {
+                mPicked.countDown();
+            }
+        }
+
+        private void openCamera() {
+            try {
+                CameraSetupCache.Setup setup = mSetupCache.get();
+                if (null == setup) {
+                    setup = CameraSetupCache.query(mManager);
+                    if (null == setup) {
+                        mDone.countDown();
+                        return;
+                    }
+                    mSetupCache.put(setup);
+                }
+                synchronized (CameraOpener.this) {
+                    if (mCancelled) {
+                        mDone.countDown();
+                        return;
+                    }
+                    mCameraId = setup.getCameraId();
+                }
+                mManager.openCamera(setup.getCameraId(), mStateCallback, mHandler);
+            } catch (CameraAccessException | RuntimeException e) {
+                Log.e(TAG, "Failed to open the camera early", e);
+                synchronized (CameraOpener.this) {
+                    mCameraId = null;
+                }
+                mDone.countDown();
+            }
+        }
+
+    };
+
+    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+
+        @Override
+        public void onOpened(@NonNull CameraDevice cameraDevice) {
+            CameraDevice.StateCallback target;
+            synchronized (CameraOpener.this) {
+                mDevice = cameraDevice;
+                target = mTarget;
+                if (null == target && mCancelled) {
+                    cameraDevice.close();
+                }
+            }
+            mDone.countDown();
+            if (null != target) {
+                target.onOpened(cameraDevice);
+            }
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            CameraDevice.StateCallback target;
+            synchronized (CameraOpener.this) {
+                mDevice = cameraDevice;
+                mDisconnected = true;
+                target = mTarget;
+                if (null == target) {
+                    cameraDevice.close();
+                }
+            }
+            mDone.countDown();
+            if (null != target) {
+                target.onDisconnected(cameraDevice);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice cameraDevice, int error) {
+            CameraDevice.StateCallback target;
+            synchronized (CameraOpener.this) {
+                mDevice = cameraDevice;
+                mError = error;
+                target = mTarget;
+                if (null == target) {
+                    cameraDevice.close();
+                }
+            }
+            mDone.countDown();
+            if (null != target) {
+                target.onError(cameraDevice, error);
+            }
+        }
+
+    };
+
+    /**
+     * @return The camera thread, which the caller owns once it has called {@link #attach}
+     */
+    HandlerThread getThread() {
+        return mThread;
+    }
+
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * @return When the open was started, in {@link SystemClock#elapsedRealtimeNanos()} time
+     */
+    long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * Waits until the camera to open has been picked, which also fills in the setup cache.
+     *
+     * @return The id of the camera being opened, or null if the open failed early
+     */
+    String awaitCameraId() {
+        try {
+            mPicked.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        synchronized (this) {
+            return mCameraId;
+        }
+    }
+
+    /**
+     * Hands the camera over to {@code callback}. Its methods are called on the camera thread, as
+     * they would be for {@link CameraManager#openCamera}; if the open has already finished, the
+     * outcome is posted there right away.
+     */
+    void attach(final CameraDevice.StateCallback callback) {
+        final CameraDevice device;
+        final boolean disconnected;
+        final int error;
+        synchronized (this) {
+            mTarget = callback;
+            device = mDevice;
+            disconnected = mDisconnected;
+            error = mError;
+        }
+        if (null == device) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (disconnected) {
+                    callback.onDisconnected(device);
+                } else if (error != 0) {
+                    callback.onError(device, error);
+                } else {
+                    callback.onOpened(device);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives up on the camera without attaching to it. Waits up to {@code timeoutMs} for a pending
+     * open to finish so that the device is closed. The camera thread keeps running.
+     */
+    void release(long timeoutMs) {
+        synchronized (this) {
+            mCancelled = true;
+            if (null != mDevice && null == mTarget) {
+                mDevice.close();
+            }
+        }
+        try {
+            if (!mDone.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for the early camera open");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Like {@link #release}, and then stops the camera thread.
+     */
+    void cancel(long timeoutMs) {
+        release(timeoutMs);
+        mThread.quitSafely();
+    }
+
+}
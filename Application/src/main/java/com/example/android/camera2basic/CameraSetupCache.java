@@ -0,0 +1,633 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which camera the sample uses and the sizes it picked for it, so that opening the
+ * camera again does not have to query {@code CameraManager} and sort its output sizes. That is
+ * the first back facing camera at first, and then whichever camera was last switched to.
+ *
+ * <p>The cache lives in memory and is mirrored to a small file. The file is tagged with the build
+ * fingerprint of the device and ignored after a system update, since the camera HAL and its
+ * characteristics may have changed.</p>
+ */
+class CameraSetupCache {
+
+    /**
+     * What {@code setUpCameraOutputs} needs to know about the chosen camera.
+     */
+    static final class Setup {
+
+        private final String mCameraId;
+        private final int mSensorOrientation;
+        private final int mLensFacing;
+        private final boolean mFlashSupported;
+        private final BurstPlanner.StreamOptions mJpegStream;
+        private final BurstPlanner.StreamOptions mYuvStream;
+        private final Size[] mPreviewSizes;
+        private final long[] mPreviewFrameDurations;
+        private final SizeSelector mPreviewSelector;
+        private final Size mZslSize;
+        private final Size mRawSize;
+        private final Size mAnalysisSize;
+        private final boolean mRealtimeTimestamps;
+
+        /**
+         * @param lensFacing            One of the {@code CameraMetadata.LENS_FACING_*} values
+         * @param jpegStream            The JPEG output sizes and their durations
+         * @param yuvStream             The YUV output sizes and their durations, or null
+         * @param previewSizes          The output sizes for a {@code SurfaceTexture}
+         * @param previewFrameDurations The minimum frame duration of each preview size, in
+         *                              nanoseconds
+         * @param zslSize               The largest YUV output size if the camera can stream it
+         *                              next to the preview, or null
+         * @param rawSize               The largest RAW_SENSOR output size if the camera has the
+         *                              RAW capability, or null
+         * @param analysisSize          The YUV output size for frame analysis, or null
+         * @param realtimeTimestamps    Whether sensor timestamps share the time base of
+         *                              {@code SystemClock.elapsedRealtimeNanos()}
+         */
+        Setup(String cameraId, int sensorOrientation, int lensFacing, boolean flashSupported,
+              BurstPlanner.StreamOptions jpegStream, BurstPlanner.StreamOptions yuvStream,
+              Size[] previewSizes, long[] previewFrameDurations, Size zslSize,
+              Size rawSize, Size analysisSize, boolean realtimeTimestamps) {
+            mCameraId = cameraId;
+            mSensorOrientation = sensorOrientation;
+            mLensFacing = lensFacing;
+            mFlashSupported = flashSupported;
+            mJpegStream = jpegStream;
+            mYuvStream = yuvStream;
+            mPreviewSizes = previewSizes;
+            mPreviewFrameDurations = previewFrameDurations;
+            // A SurfaceTexture output never stalls.
+            mPreviewSelector = new SizeSelector(previewSizes, previewFrameDurations, null);
+            mZslSize = zslSize;
+            mRawSize = rawSize;
+            mAnalysisSize = analysisSize;
+            mRealtimeTimestamps = realtimeTimestamps;
+        }
+
+        String getCameraId() {
+            return mCameraId;
+        }
+
+        int getSensorOrientation() {
+            return mSensorOrientation;
+        }
+
+        /**
+         * @return One of the {@code CameraMetadata.LENS_FACING_*} values
+         */
+        int getLensFacing() {
+            return mLensFacing;
+        }
+
+        boolean isFrontFacing() {
+            return mLensFacing == CameraMetadata.LENS_FACING_FRONT;
+        }
+
+        boolean isFlashSupported() {
+            return mFlashSupported;
+        }
+
+        /**
+         * @return The largest JPEG output size
+         */
+        Size getJpegSize() {
+            return mJpegStream.getLargest();
+        }
+
+        /**
+         * @return The largest YUV output size, or null if the camera has no YUV output
+         */
+        Size getYuvSize() {
+            return null != mYuvStream ? mYuvStream.getLargest() : null;
+        }
+
+        BurstPlanner.StreamOptions getJpegStream() {
+            return mJpegStream;
+        }
+
+        /**
+         * @return The YUV output sizes for still captures, or null if the camera has no YUV
+         * output
+         */
+        BurstPlanner.StreamOptions getYuvStream() {
+            return mYuvStream;
+        }
+
+        Size[] getPreviewSizes() {
+            return mPreviewSizes;
+        }
+
+        /**
+         * @return The minimum frame duration of a preview size from the stream configuration
+         * map, in nanoseconds, or 0 if it is not one of {@link #getPreviewSizes()}
+         */
+        long getPreviewFrameDuration(Size size) {
+            for (int i = 0; i < mPreviewSizes.length; i++) {
+                if (mPreviewSizes[i].equals(size)) {
+                    return mPreviewFrameDurations[i];
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return Picks among {@link #getPreviewSizes()}, remembering its choices
+         */
+        SizeSelector getPreviewSelector() {
+            return mPreviewSelector;
+        }
+
+        /**
+         * @return The size of the frames for zero-shutter-lag capture, or null if it is not
+         * supported
+         */
+        Size getZslSize() {
+            return mZslSize;
+        }
+
+        /**
+         * @return The size of RAW captures, or null if they are not supported
+         */
+        Size getRawSize() {
+            return mRawSize;
+        }
+
+        /**
+         * @return The size of the frames for {@link FrameAnalysisPipeline}, or null if the camera
+         * has no YUV output
+         */
+        Size getAnalysisSize() {
+            return mAnalysisSize;
+        }
+
+        boolean hasRealtimeTimestamps() {
+            return mRealtimeTimestamps;
+        }
+
+    }
+
+    private static final int MAGIC = 0x43534331;
+    private static final int VERSION = 8;
+
+    /**
+     * The largest frames for analysis. Most analyses only need a rough picture, and small frames
+     * keep the extra stream cheap.
+     */
+    private static final int MAX_ANALYSIS_WIDTH = 640;
+    private static final int MAX_ANALYSIS_HEIGHT = 480;
+    private static final int ANALYSIS_FRAME_RATE = 30;
+
+    /**
+     * How far the aspect ratio of a stream may be off that of the stills and still count as
+     * matching, so that sizes such as 1920x1088 are not thrown away for 16:9.
+     */
+    static final float ASPECT_TOLERANCE = 0.02f;
+
+    /**
+     * Preview size decisions kept per view geometry; a device rarely needs more than two.
+     */
+    private static final int MAX_PREVIEW_DECISIONS = 8;
+
+    private final File mFile;
+    private final String mFingerprint;
+
+    private boolean mLoaded;
+    private boolean mDirty;
+    private Setup mSetup;
+
+    /**
+     * Chosen preview sizes, keyed by {@link #previewKey}, least recently used first.
+     */
+    private final LinkedHashMap<Long, Size> mPreviewDecisions
+            = new LinkedHashMap<Long, Size>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Size> eldest) {
+            return size() > MAX_PREVIEW_DECISIONS;
+        }
+
+    };
+
+    /**
+     * @param file        Where the cache is persisted
+     * @param fingerprint The build fingerprint of the device
+     */
+    CameraSetupCache(File file, String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Picks the camera to open when nothing is cached and reads what {@code setUpCameraOutputs}
+     * needs to know about it. Other cameras are only used once they are switched to.
+     *
+     * @return The setup of the first back facing camera, or null if there is none
+     */
+    static Setup query(CameraManager manager) throws CameraAccessException {
+        for (String cameraId : manager.getCameraIdList()) {
+            CameraCharacteristics characteristics
+                    = manager.getCameraCharacteristics(cameraId);
+
+            // The sample starts on a back facing camera.
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
+                continue;
+            }
+
+            Setup setup = describe(cameraId, characteristics);
+            if (null != setup) {
+                return setup;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads what {@code setUpCameraOutputs} needs to know about one camera.
+     *
+     * @return The setup of the camera, or null if it has no JPEG output
+     */
+    static Setup describe(String cameraId, CameraCharacteristics characteristics) {
+        StreamConfigurationMap map = characteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            return null;
+        }
+
+        BurstPlanner.StreamOptions jpegStream = streamOptions(map, ImageFormat.JPEG);
+        if (null == jpegStream) {
+            return null;
+        }
+        Size largest = jpegStream.getLargest();
+        //noinspection ConstantConditions
+        int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        // Check if the flash is supported.
+        Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+
+        Size yuvSize = null;
+        Size analysisSize = null;
+        BurstPlanner.StreamOptions yuvStream
+                = streamOptions(map, ImageFormat.YUV_420_888);
+        if (yuvStream != null) {
+            yuvSize = yuvStream.getLargest();
+            Size[] yuvSizes = new Size[yuvStream.getCount()];
+            long[] frameDurations = new long[yuvSizes.length];
+            long[] stallDurations = new long[yuvSizes.length];
+            for (int i = 0; i < yuvSizes.length; i++) {
+                yuvSizes[i] = yuvStream.getSize(i);
+                frameDurations[i] = yuvStream.getMinFrameDuration(i);
+                stallDurations[i] = yuvStream.getStallDuration(i);
+            }
+            analysisSize = new SizeSelector(yuvSizes, frameDurations, stallDurations)
+                    .select(new SizeSelector.Criteria.Builder()
+                            .setTarget(MAX_ANALYSIS_WIDTH, MAX_ANALYSIS_HEIGHT)
+                            .setMaxSize(MAX_ANALYSIS_WIDTH, MAX_ANALYSIS_HEIGHT)
+                            .setAspectRatio(largest.getWidth(), largest.getHeight(),
+                                    ASPECT_TOLERANCE)
+                            .setMinFrameRate(ANALYSIS_FRAME_RATE)
+                            .setMaxStallDuration(0)
+                            .build())
+                    .getSize();
+        }
+        // Streaming full-resolution YUV next to the preview is only guaranteed from the FULL
+        // hardware level up.
+        Size zslSize = null;
+        Integer level = characteristics.get(
+                CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        if (level != null && (level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL
+                || level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_3)) {
+            zslSize = yuvSize;
+        }
+        Size rawSize = null;
+        int[] capabilities = characteristics.get(
+                CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (contains(capabilities, CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_RAW)) {
+            Size[] rawSizes = map.getOutputSizes(ImageFormat.RAW_SENSOR);
+            if (rawSizes != null && rawSizes.length > 0) {
+                rawSize = Collections.max(Arrays.asList(rawSizes), new CompareSizesByArea());
+            }
+        }
+        boolean realtimeTimestamps = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Integer source = characteristics.get(
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            realtimeTimestamps = source != null
+                    && source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        }
+        Size[] previewSizes = map.getOutputSizes(SurfaceTexture.class);
+        long[] previewFrameDurations = new long[previewSizes.length];
+        for (int i = 0; i < previewSizes.length; i++) {
+            previewFrameDurations[i] = map.getOutputMinFrameDuration(SurfaceTexture.class,
+                    previewSizes[i]);
+        }
+        return new Setup(cameraId, sensorOrientation,
+                null == facing ? CameraMetadata.LENS_FACING_EXTERNAL : facing,
+                available == null ? false : available, jpegStream, yuvStream, previewSizes,
+                previewFrameDurations, zslSize, rawSize, analysisSize, realtimeTimestamps);
+    }
+
+    /**
+     * @return The output sizes of {@code format} and their durations, or null if the camera has
+     * no such output
+     */
+    private static BurstPlanner.StreamOptions streamOptions(StreamConfigurationMap map,
+                                                            int format) {
+        Size[] sizes = map.getOutputSizes(format);
+        if (sizes == null || sizes.length == 0) {
+            return null;
+        }
+        long[] minFrameDurations = new long[sizes.length];
+        long[] stallDurations = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            minFrameDurations[i] = map.getOutputMinFrameDuration(format, sizes[i]);
+            stallDurations[i] = map.getOutputStallDuration(format, sizes[i]);
+        }
+        return new BurstPlanner.StreamOptions(format, sizes, minFrameDurations, stallDurations);
+    }
+
+    private static boolean contains(int[] values, int value) {
+        if (values == null) {
+            return false;
+        }
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The cached camera setup, or null if it has to be queried. Reads the cache file the
+     * first time it is called.
+     */
+    synchronized Setup get() {
+        if (!mLoaded) {
+            mLoaded = true;
+            load();
+        }
+        return mSetup;
+    }
+
+    /**
+     * Replaces the cached camera setup and forgets the preview sizes chosen for the previous one.
+     */
+    synchronized void put(Setup setup) {
+        mLoaded = true;
+        mSetup = setup;
+        mPreviewDecisions.clear();
+        mDirty = true;
+    }
+
+    /**
+     * Forgets everything, for instance when the cached camera can no longer be opened.
+     */
+    synchronized void clear() {
+        mLoaded = true;
+        mSetup = null;
+        mPreviewDecisions.clear();
+        mDirty = false;
+        if (mFile.exists() && !mFile.delete()) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Forgets the preview sizes chosen so far, for instance because the still size they were
+     * matched to changes.
+     */
+    synchronized void clearPreviewSizes() {
+        get();
+        if (!mPreviewDecisions.isEmpty()) {
+            mPreviewDecisions.clear();
+            mDirty = true;
+        }
+    }
+
+    /**
+     * @return The preview size chosen earlier for the same arguments, or null
+     */
+    synchronized Size getPreviewSize(int width, int height, int maxWidth, int maxHeight) {
+        return mPreviewDecisions.get(previewKey(width, height, maxWidth, maxHeight));
+    }
+
+    /**
+     * Remembers the preview size chosen for a view geometry: the view size relative to sensor
+     * coordinate, and the maximum size.
+     */
+    synchronized void putPreviewSize(int width, int height, int maxWidth, int maxHeight,
+                                     Size size) {
+        mPreviewDecisions.put(previewKey(width, height, maxWidth, maxHeight), size);
+        mDirty = true;
+    }
+
+    /**
+     * @return Whether there are changes that {@link #save()} has not written yet
+     */
+    synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Writes the cache to its file if it changed. The file is replaced atomically.
+     */
+    synchronized void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        if (mSetup == null) {
+            if (mFile.exists() && !mFile.delete()) {
+                throw new IOException("Could not delete " + mFile);
+            }
+            mDirty = false;
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(mFingerprint);
+            output.writeUTF(mSetup.mCameraId);
+            output.writeInt(mSetup.mSensorOrientation);
+            output.writeInt(mSetup.mLensFacing);
+            output.writeBoolean(mSetup.mFlashSupported);
+            writeStream(output, mSetup.mJpegStream);
+            output.writeBoolean(mSetup.mYuvStream != null);
+            if (mSetup.mYuvStream != null) {
+                writeStream(output, mSetup.mYuvStream);
+            }
+            output.writeInt(mSetup.mPreviewSizes.length);
+            for (int i = 0; i < mSetup.mPreviewSizes.length; i++) {
+                writeSize(output, mSetup.mPreviewSizes[i]);
+                output.writeLong(mSetup.mPreviewFrameDurations[i]);
+            }
+            output.writeBoolean(mSetup.mZslSize != null);
+            if (mSetup.mZslSize != null) {
+                writeSize(output, mSetup.mZslSize);
+            }
+            output.writeBoolean(mSetup.mRawSize != null);
+            if (mSetup.mRawSize != null) {
+                writeSize(output, mSetup.mRawSize);
+            }
+            output.writeBoolean(mSetup.mAnalysisSize != null);
+            if (mSetup.mAnalysisSize != null) {
+                writeSize(output, mSetup.mAnalysisSize);
+            }
+            output.writeBoolean(mSetup.mRealtimeTimestamps);
+            output.writeInt(mPreviewDecisions.size());
+            for (Map.Entry<Long, Size> decision : mPreviewDecisions.entrySet()) {
+                output.writeLong(decision.getKey());
+                writeSize(output, decision.getValue());
+            }
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Reads the cache file. A missing, damaged, or outdated file leaves the cache empty.
+     */
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION
+                        || !mFingerprint.equals(input.readUTF())) {
+                    return;
+                }
+                String cameraId = input.readUTF();
+                int sensorOrientation = input.readInt();
+                int lensFacing = input.readInt();
+                boolean flashSupported = input.readBoolean();
+                BurstPlanner.StreamOptions jpegStream = readStream(input);
+                BurstPlanner.StreamOptions yuvStream
+                        = input.readBoolean() ? readStream(input) : null;
+                Size[] previewSizes = new Size[readCount(input)];
+                long[] previewFrameDurations = new long[previewSizes.length];
+                for (int i = 0; i < previewSizes.length; i++) {
+                    previewSizes[i] = readSize(input);
+                    previewFrameDurations[i] = input.readLong();
+                }
+                Size zslSize = input.readBoolean() ? readSize(input) : null;
+                Size rawSize = input.readBoolean() ? readSize(input) : null;
+                Size analysisSize = input.readBoolean() ? readSize(input) : null;
+                boolean realtimeTimestamps = input.readBoolean();
+                int decisions = readCount(input);
+                for (int i = 0; i < decisions; i++) {
+                    mPreviewDecisions.put(input.readLong(), readSize(input));
+                }
+                mSetup = new Setup(cameraId, sensorOrientation, lensFacing, flashSupported,
+                        jpegStream, yuvStream, previewSizes, previewFrameDurations, zslSize,
+                        rawSize, analysisSize, realtimeTimestamps);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            mPreviewDecisions.clear();
+        }
+    }
+
+    private static long previewKey(int width, int height, int maxWidth, int maxHeight) {
+        return (long) (width & 0xffff) << 48 | (long) (height & 0xffff) << 32
+                | (long) (maxWidth & 0xffff) << 16 | maxHeight & 0xffff;
+    }
+
+    private static void writeSize(DataOutputStream output, Size size) throws IOException {
+        output.writeInt(size.getWidth());
+        output.writeInt(size.getHeight());
+    }
+
+    private static Size readSize(DataInputStream input) throws IOException {
+        return new Size(input.readInt(), input.readInt());
+    }
+
+    private static void writeStream(DataOutputStream output, BurstPlanner.StreamOptions stream)
+            throws IOException {
+        output.writeInt(stream.getFormat());
+        output.writeInt(stream.getCount());
+        for (int i = 0; i < stream.getCount(); i++) {
+            writeSize(output, stream.getSize(i));
+            output.writeLong(stream.getMinFrameDuration(i));
+            output.writeLong(stream.getStallDuration(i));
+        }
+    }
+
+    private static BurstPlanner.StreamOptions readStream(DataInputStream input)
+            throws IOException {
+        int format = input.readInt();
+        Size[] sizes = new Size[readCount(input)];
+        if (sizes.length == 0) {
+            throw new IOException("No sizes");
+        }
+        long[] minFrameDurations = new long[sizes.length];
+        long[] stallDurations = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = readSize(input);
+            minFrameDurations[i] = input.readLong();
+            stallDurations[i] = input.readLong();
+        }
+        return new BurstPlanner.StreamOptions(format, sizes, minFrameDurations, stallDurations);
+    }
+
+    private static int readCount(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0 || count > 1024) {
+            throw new IOException("Bad count: " + count);
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps a {@link LatencyHistogram} of the time it takes to switch from one camera to another,
+ * per pair of cameras: from the moment the switch is asked for until the first preview frame of
+ * the new camera.
+ */
+class CameraSwitchLatency {
+
+    /**
+     * Histograms keyed by the pair of camera IDs, sorted so that the summary is stable.
+     */
+    private final Map<String, LatencyHistogram> mPairs = new TreeMap<>();
+
+    private String mPendingPair;
+    private long mPendingStartNanos;
+
+    /**
+     * Records that a switch started. A switch that has not seen its first frame yet is dropped.
+     */
+    synchronized void start(String fromCameraId, String toCameraId, long nowNanos) {
+        mPendingPair = fromCameraId + " -> " + toCameraId;
+        mPendingStartNanos = nowNanos;
+    }
+
+    /**
+     * Records the first preview frame after a switch, if one is pending.
+     *
+     * @return The time the switch took, or -1 if none was pending
+     */
+    synchronized long onFirstFrame(long nowNanos) {
+        if (null == mPendingPair) {
+            return -1;
+        }
+        long nanos = nowNanos - mPendingStartNanos;
+        LatencyHistogram histogram = mPairs.get(mPendingPair);
+        if (null == histogram) {
+            histogram = new LatencyHistogram();
+            mPairs.put(mPendingPair, histogram);
+        }
+        histogram.record(nanos);
+        mPendingPair = null;
+        return nanos;
+    }
+
+    /**
+     * @return The histogram of switches from one camera to another, or null if there were none
+     */
+    synchronized LatencyHistogram get(String fromCameraId, String toCameraId) {
+        return mPairs.get(fromCameraId + " -> " + toCameraId);
+    }
+
+    synchronized boolean isEmpty() {
+        return mPairs.isEmpty();
+    }
+
+    /**
+     * @return One line per pair of cameras
+     */
+    synchronized String summary() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> pair : mPairs.entrySet()) {
+            builder.append(String.format(Locale.US, "%-8s %s%n", pair.getKey(),
+                    pair.getValue().summary()));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads of an open camera, kept apart so that no kind of work waits behind another:
+ *
+ * <ul>
+ * <li>the control thread runs the device, session and capture callbacks and issues requests;</li>
+ * <li>the image thread acquires the images of every {@code ImageReader} and hands them on;</li>
+ * <li>the I/O executor does small disk jobs such as saving the setup cache.</li>
+ * </ul>
+ *
+ * <p>Each runs at its own {@link Process} priority. Saving captures is left to the
+ * {@link WriteBehindQueue}, whose writers should use {@link #getIoPriority()}.</p>
+ */
+final class CameraThreads {
+
+    private static final String TAG = "CameraThreads";
+
+    static final String CONTROL_THREAD_NAME = "CameraControl";
+
+    /**
+     * Capture results are on the critical path of every shot, like display work.
+     */
+    static final int DEFAULT_CONTROL_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
+
+    static final int DEFAULT_IMAGE_PRIORITY = Process.THREAD_PRIORITY_FOREGROUND;
+
+    static final int DEFAULT_IO_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND;
+
+    private final HandlerThread mControlThread;
+    private final Handler mControlHandler;
+    private final HandlerThread mImageThread;
+    private final Handler mImageHandler;
+    private final ExecutorService mIoExecutor;
+    private final int mIoPriority;
+
+    /**
+     * Starts the image thread and the I/O executor next to a control thread that is already
+     * running, and gives it {@code controlPriority}.
+     *
+     * @param controlThread  The control thread, for instance the one the camera is being opened
+     *                       on
+     * @param controlHandler A handler of {@code controlThread}
+     */
+    CameraThreads(HandlerThread controlThread, Handler controlHandler, int controlPriority,
+                  int imagePriority, final int ioPriority) {
+        mControlThread = controlThread;
+        mControlHandler = controlHandler;
+        setPriority(controlThread, controlPriority);
+        mImageThread = new HandlerThread("CameraImages", imagePriority);
+        mImageThread.start();
+        mImageHandler = new Handler(mImageThread.getLooper());
+        mIoPriority = ioPriority;
+        mIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(ioPriority);
+                        runnable.run();
+                    }
+                }, "CameraIo");
+            }
+        });
+    }
+
+    /**
+     * Starts all the threads.
+     */
+    static CameraThreads start(int controlPriority, int imagePriority, int ioPriority) {
+        HandlerThread controlThread = new HandlerThread(CONTROL_THREAD_NAME, controlPriority);
+        controlThread.start();
+        return new CameraThreads(controlThread, new Handler(controlThread.getLooper()),
+                controlPriority, imagePriority, ioPriority);
+    }
+
+    private static void setPriority(HandlerThread thread, int priority) {
+        // Waits for the looper, so the thread id is known.
+        thread.getLooper();
+        try {
+            Process.setThreadPriority(thread.getThreadId(), priority);
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Cannot set the priority of " + thread.getName(), e);
+        }
+    }
+
+    Handler getControlHandler() {
+        return mControlHandler;
+    }
+
+    Handler getImageHandler() {
+        return mImageHandler;
+    }
+
+    ExecutorService getIoExecutor() {
+        return mIoExecutor;
+    }
+
+    /**
+     * @return The priority for threads that write to storage
+     */
+    int getIoPriority() {
+        return mIoPriority;
+    }
+
+    /**
+     * Waits until the image thread has handled everything posted to it so far, for instance the
+     * images that arrived before the camera was closed.
+     *
+     * @return False if that took longer than {@code timeoutMs}
+     */
+    boolean awaitImageThread(long timeoutMs) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        if (!mImageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        })) {
+            return true;
+        }
+        return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Lets every thread finish the work it was given and stops them.
+     */
+    void quit() throws InterruptedException {
+        mIoExecutor.shutdown();
+        mImageThread.quitSafely();
+        mControlThread.quitSafely();
+        mImageThread.join();
+        mControlThread.join();
+        mIoExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+}
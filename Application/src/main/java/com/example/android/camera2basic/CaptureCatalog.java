@@ -0,0 +1,485 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of every capture, kept next to the capture files. Each capture gets its
+ * own file named after a sequential id, and its catalog record holds the id, file name, size,
+ * sensor timestamp, and write latency.
+ *
+ * <p>The catalog is a header followed by length-prefixed records, each ending in a CRC32 of its
+ * contents, so a record torn by process death is detected and cut off on the next
+ * {@link #open()}. A small checkpoint file remembers how much of the catalog has already been
+ * validated, so opening it only reads the records appended since the last {@link #close()}.
+ * Capture files that were written but never recorded are found by probing the next ids and are
+ * added back.</p>
+ */
+class CaptureCatalog {
+
+    /**
+     * A single capture in the catalog.
+     */
+    static final class Entry {
+
+        private final long mId;
+        private final File mFile;
+        private final long mSize;
+        private final long mSensorTimestamp;
+        private final long mWriteLatencyNanos;
+
+        Entry(long id, File file, long size, long sensorTimestamp, long writeLatencyNanos) {
+            mId = id;
+            mFile = file;
+            mSize = size;
+            mSensorTimestamp = sensorTimestamp;
+            mWriteLatencyNanos = writeLatencyNanos;
+        }
+
+        long getId() {
+            return mId;
+        }
+
+        File getFile() {
+            return mFile;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return The sensor timestamp of the frame, or {@link #UNKNOWN} for recovered entries
+         */
+        long getSensorTimestamp() {
+            return mSensorTimestamp;
+        }
+
+        /**
+         * @return Time from capture to a synced file, or {@link #UNKNOWN} for recovered entries
+         */
+        long getWriteLatencyNanos() {
+            return mWriteLatencyNanos;
+        }
+
+    }
+
+    /**
+     * Value of the fields that could not be recovered for a capture file without a record.
+     */
+    static final long UNKNOWN = -1;
+
+    private static final String CATALOG_NAME = "captures.cat";
+    private static final String CHECKPOINT_NAME = "captures.chk";
+    private static final String CAPTURE_FORMAT = "IMG_%08d.jpg";
+    private static final String RAW_FORMAT = "IMG_%08d.dng";
+
+    private static final int MAGIC = 0x43415443;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int CHECKPOINT_MAGIC = 0x43484b50;
+
+    /**
+     * Fixed part of a record: id, size, sensor timestamp, latency, and name length.
+     */
+    private static final int RECORD_FIXED_SIZE = 8 + 8 + 8 + 8 + 2;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    /**
+     * Number of consecutive missing ids after which {@link #open()} stops looking for capture
+     * files without a record. Ids of captures that were lost in flight leave gaps, and there are
+     * never more captures in flight than this.
+     */
+    private static final int RECOVERY_PROBE_WINDOW = 64;
+
+    /**
+     * A checkpoint is written after this many appends, in addition to {@link #close()}.
+     */
+    private static final int CHECKPOINT_INTERVAL = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final File mCatalogFile;
+    private final File mCheckpointFile;
+
+    /**
+     * Reused for every record so that appending does not allocate.
+     */
+    private final byte[] mRecord = new byte[4 + RECORD_FIXED_SIZE + MAX_NAME_LENGTH + 4];
+    private final ByteBuffer mRecordBuffer = ByteBuffer.wrap(mRecord);
+    private final CRC32 mCrc = new CRC32();
+
+    private RandomAccessFile mOutput;
+    private long mLength;
+    private long mEntryCount;
+    private long mLastRecordedId;
+
+    /**
+     * Not guarded by the lock, so that reserving an id never waits for a record to be written.
+     */
+    private final AtomicLong mNextId = new AtomicLong(1);
+
+    private int mAppendsSinceCheckpoint;
+    private int mRecoveredCount;
+    private long mRecordsScanned;
+
+    /**
+     * @param directory Where the capture files, the catalog, and its checkpoint live
+     */
+    CaptureCatalog(File directory) {
+        mDirectory = directory;
+        mCatalogFile = new File(directory, CATALOG_NAME);
+        mCheckpointFile = new File(directory, CHECKPOINT_NAME);
+    }
+
+    /**
+     * Opens the catalog, validating the records appended since the last checkpoint, cutting off
+     * a torn tail, and recording capture files that have no record yet.
+     */
+    synchronized void open() throws IOException {
+        if (null != mOutput) {
+            return;
+        }
+        mOutput = new RandomAccessFile(mCatalogFile, "rw");
+        FileChannel channel = mOutput.getChannel();
+        long fileLength = channel.size();
+        if (fileLength < HEADER_SIZE || !readHeader(channel)) {
+            writeHeader(channel);
+            fileLength = HEADER_SIZE;
+        }
+
+        mLength = HEADER_SIZE;
+        mEntryCount = 0;
+        mLastRecordedId = 0;
+        mRecordsScanned = 0;
+        long[] checkpoint = readCheckpoint();
+        if (null != checkpoint && checkpoint[0] <= fileLength) {
+            mLength = checkpoint[0];
+            mEntryCount = checkpoint[1];
+            mLastRecordedId = checkpoint[2];
+        }
+        scan(mLength, new Visitor() {
+            @Override
+            public void visit(Entry entry, long endOffset) {
+                mLength = endOffset;
+                mEntryCount++;
+                mLastRecordedId = Math.max(mLastRecordedId, entry.getId());
+            }
+        });
+        if (mLength < fileLength) {
+            // The rest is a record that was only partly written.
+            channel.truncate(mLength);
+        }
+        channel.position(mLength);
+
+        // Captures that were synced but not recorded before the process died.
+        mRecoveredCount = 0;
+        long id = mLastRecordedId + 1;
+        for (long misses = 0; misses < RECOVERY_PROBE_WINDOW; id++) {
+            File orphan = getCaptureFile(id);
+            if (orphan.exists()) {
+                append(id, orphan, orphan.length(), UNKNOWN, UNKNOWN);
+                mRecoveredCount++;
+                misses = 0;
+            } else {
+                misses++;
+            }
+        }
+        // Ids reserved while the catalog was closed are not handed out again.
+        long next = mNextId.get();
+        while (next <= mLastRecordedId && !mNextId.compareAndSet(next, mLastRecordedId + 1)) {
+            next = mNextId.get();
+        }
+        writeCheckpoint();
+    }
+
+    /**
+     * Writes a checkpoint and closes the catalog.
+     */
+    synchronized void close() throws IOException {
+        if (null == mOutput) {
+            return;
+        }
+        try {
+            writeCheckpoint();
+        } finally {
+            mOutput.close();
+            mOutput = null;
+        }
+    }
+
+    /**
+     * Writes a checkpoint without closing the catalog, so that the records so far are on
+     * storage and the next {@link #open()} does not have to read them again.
+     */
+    synchronized void checkpoint() throws IOException {
+        if (null == mOutput) {
+            return;
+        }
+        writeCheckpoint();
+    }
+
+    /**
+     * Reserves the id of the next capture. Ids are never reused, even if the capture is lost.
+     */
+    long allocateId() {
+        return mNextId.getAndIncrement();
+    }
+
+    /**
+     * @return The file that the capture with {@code id} is written to
+     */
+    File getCaptureFile(long id) {
+        return new File(mDirectory, String.format(Locale.US, CAPTURE_FORMAT, id));
+    }
+
+    /**
+     * @return The file that the RAW image of the capture with {@code id} is written to. Unlike
+     * JPEG files, these are not recovered when their record is missing.
+     */
+    File getRawFile(long id) {
+        return new File(mDirectory, String.format(Locale.US, RAW_FORMAT, id));
+    }
+
+    /**
+     * Records a capture that has been written to {@link #getCaptureFile(long)}.
+     */
+    synchronized void append(long id, File file, long size, long sensorTimestamp,
+                             long writeLatencyNanos) throws IOException {
+        if (null == mOutput) {
+            throw new IOException("The catalog is not open.");
+        }
+        byte[] name = file.getName().getBytes(UTF_8);
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IOException("File name is too long: " + file.getName());
+        }
+        int payloadLength = RECORD_FIXED_SIZE + name.length;
+        mRecordBuffer.clear();
+        mRecordBuffer.putInt(payloadLength);
+        mRecordBuffer.putLong(id);
+        mRecordBuffer.putLong(size);
+        mRecordBuffer.putLong(sensorTimestamp);
+        mRecordBuffer.putLong(writeLatencyNanos);
+        mRecordBuffer.putShort((short) name.length);
+        mRecordBuffer.put(name);
+        mCrc.reset();
+        mCrc.update(mRecord, 4, payloadLength);
+        mRecordBuffer.putInt((int) mCrc.getValue());
+        mRecordBuffer.flip();
+
+        FileChannel channel = mOutput.getChannel();
+        while (mRecordBuffer.hasRemaining()) {
+            channel.write(mRecordBuffer);
+        }
+        mLength = channel.position();
+        mEntryCount++;
+        mLastRecordedId = Math.max(mLastRecordedId, id);
+        long next = mNextId.get();
+        while (next <= id && !mNextId.compareAndSet(next, id + 1)) {
+            next = mNextId.get();
+        }
+        if (++mAppendsSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+            writeCheckpoint();
+        }
+    }
+
+    /**
+     * Reads every entry in the catalog, oldest first.
+     */
+    synchronized List<Entry> readAll() throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        scan(HEADER_SIZE, new Visitor() {
+            @Override
+            public void visit(Entry entry, long endOffset) {
+                entries.add(entry);
+            }
+        });
+        return entries;
+    }
+
+    synchronized long getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * @return The number of capture files without a record that the last {@link #open()} added
+     */
+    synchronized int getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    /**
+     * @return The number of records the last {@link #open()} had to read
+     */
+    synchronized long getRecordsScanned() {
+        return mRecordsScanned;
+    }
+
+    private interface Visitor {
+        void visit(Entry entry, long endOffset);
+    }
+
+    /**
+     * Visits the valid records from {@code offset} on, and stops at the first one that is
+     * incomplete or corrupt.
+     */
+    private void scan(long offset, Visitor visitor) throws IOException {
+        FileChannel channel = mOutput.getChannel();
+        long end = channel.size();
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(offset))));
+        byte[] payload = new byte[RECORD_FIXED_SIZE + MAX_NAME_LENGTH];
+        ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        CRC32 crc = new CRC32();
+        try {
+            while (offset + 4 <= end) {
+                int length = input.readInt();
+                if (length < RECORD_FIXED_SIZE || length > payload.length
+                        || offset + 4 + length + 4 > end) {
+                    break;
+                }
+                input.readFully(payload, 0, length);
+                int storedCrc = input.readInt();
+                crc.reset();
+                crc.update(payload, 0, length);
+                if (storedCrc != (int) crc.getValue()) {
+                    break;
+                }
+                payloadBuffer.clear();
+                long id = payloadBuffer.getLong();
+                long size = payloadBuffer.getLong();
+                long sensorTimestamp = payloadBuffer.getLong();
+                long writeLatencyNanos = payloadBuffer.getLong();
+                int nameLength = payloadBuffer.getShort();
+                if (nameLength != length - RECORD_FIXED_SIZE) {
+                    break;
+                }
+                String name = new String(payload, RECORD_FIXED_SIZE, nameLength, UTF_8);
+                offset += 4 + length + 4;
+                mRecordsScanned++;
+                visitor.visit(new Entry(id, new File(mDirectory, name), size, sensorTimestamp,
+                        writeLatencyNanos), offset);
+            }
+        } catch (EOFException e) {
+            // A torn record at the end; everything before it is valid.
+        }
+        channel.position(mLength);
+    }
+
+    private static boolean readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                return false;
+            }
+        }
+        header.flip();
+        return header.getInt() == MAGIC && header.getInt() == VERSION;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+
+    /**
+     * @return The validated length, entry count, and last recorded id, or null without a
+     * usable checkpoint
+     */
+    private long[] readCheckpoint() {
+        if (!mCheckpointFile.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(mCheckpointFile, "r");
+            try {
+                if (file.readInt() != CHECKPOINT_MAGIC) {
+                    return null;
+                }
+                long[] values = new long[]{file.readLong(), file.readLong(), file.readLong()};
+                CRC32 crc = new CRC32();
+                for (long value : values) {
+                    for (int shift = 0; shift < 64; shift += 8) {
+                        crc.update((int) (value >>> shift));
+                    }
+                }
+                if (file.readInt() != (int) crc.getValue() || values[0] < HEADER_SIZE) {
+                    return null;
+                }
+                return values;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Atomically replaces the checkpoint with the current state.
+     */
+    private void writeCheckpoint() throws IOException {
+        long[] values = new long[]{mLength, mEntryCount, mLastRecordedId};
+        CRC32 crc = new CRC32();
+        for (long value : values) {
+            for (int shift = 0; shift < 64; shift += 8) {
+                crc.update((int) (value >>> shift));
+            }
+        }
+        File temp = new File(mDirectory, CHECKPOINT_NAME + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.setLength(0);
+            file.writeInt(CHECKPOINT_MAGIC);
+            for (long value : values) {
+                file.writeLong(value);
+            }
+            file.writeInt((int) crc.getValue());
+            // The checkpoint must never claim records that are not on storage yet.
+            mOutput.getChannel().force(false);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(mCheckpointFile)) {
+            throw new IOException("Could not replace " + mCheckpointFile);
+        }
+        mAppendsSinceCheckpoint = 0;
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.view.Surface;
+
+/**
+ * The requests of the capture sequence, built once per session so that a shot only has to pick
+ * one instead of creating and filling in a new request. There is a still capture request for
+ * each display rotation, since the JPEG orientation is part of the request, and another set that
+ * also targets the RAW stream when the session has one.
+ *
+ * <p>The templates belong to one session and one flash setting; {@link #isFor} tells when they
+ * have to be built again.</p>
+ */
+final class CaptureRequestTemplates {
+
+    /**
+     * One still capture request for each {@code Surface.ROTATION_*} value.
+     */
+    private static final int ROTATIONS = 4;
+
+    private final CameraCaptureSession mSession;
+    private final boolean mFlashSupported;
+    private final CaptureRequest mLockFocus;
+    private final CaptureRequest mPrecapture;
+    private final CaptureRequest mUnlockFocus;
+    private final CaptureRequest[] mStill;
+    private final CaptureRequest[] mStillWithRaw;
+
+    private CaptureRequestTemplates(CameraCaptureSession session, boolean flashSupported,
+                                    CaptureRequest lockFocus, CaptureRequest precapture,
+                                    CaptureRequest unlockFocus, CaptureRequest[] still,
+                                    CaptureRequest[] stillWithRaw) {
+        mSession = session;
+        mFlashSupported = flashSupported;
+        mLockFocus = lockFocus;
+        mPrecapture = precapture;
+        mUnlockFocus = unlockFocus;
+        mStill = still;
+        mStillWithRaw = stillWithRaw;
+    }
+
+    /**
+     * Builds the templates for {@code session}.
+     *
+     * @param previewBuilder    The builder of the repeating preview request, which is used for
+     *                          the trigger requests; its triggers are left idle afterwards
+     * @param stillSurface      The target of still captures, or null if the session has none
+     * @param rawSurface        The RAW_SENSOR target of still captures, or null if the session
+     *                          has none
+     * @param sensorOrientation The value of {@code CameraCharacteristics.SENSOR_ORIENTATION}
+     * @param frontFacing       Whether the camera faces the same way as the screen
+     */
+    static CaptureRequestTemplates build(CameraDevice device, CameraCaptureSession session,
+                                         CaptureRequest.Builder previewBuilder,
+                                         Surface stillSurface, Surface rawSurface,
+                                         boolean flashSupported, int sensorOrientation,
+                                         boolean frontFacing)
+            throws CameraAccessException {
+        setAutoFlash(previewBuilder, flashSupported);
+        previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_START);
+        CaptureRequest lockFocus = previewBuilder.build();
+        previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+        CaptureRequest unlockFocus = previewBuilder.build();
+        previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+        previewBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+        CaptureRequest precapture = previewBuilder.build();
+        previewBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+
+        CaptureRequest[] still = null;
+        CaptureRequest[] stillWithRaw = null;
+        if (null != stillSurface) {
+            CaptureRequest.Builder stillBuilder
+                    = device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            stillBuilder.addTarget(stillSurface);
+            // Use the same AE and AF modes as the preview.
+            stillBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            setAutoFlash(stillBuilder, flashSupported);
+            still = new CaptureRequest[ROTATIONS];
+            for (int rotation = 0; rotation < ROTATIONS; rotation++) {
+                stillBuilder.set(CaptureRequest.JPEG_ORIENTATION,
+                        JpegOrientation.fromRotation(rotation, sensorOrientation,
+                                frontFacing));
+                still[rotation] = stillBuilder.build();
+            }
+            if (null != rawSurface) {
+                stillBuilder.addTarget(rawSurface);
+                stillWithRaw = new CaptureRequest[ROTATIONS];
+                for (int rotation = 0; rotation < ROTATIONS; rotation++) {
+                    stillBuilder.set(CaptureRequest.JPEG_ORIENTATION,
+                            JpegOrientation.fromRotation(rotation, sensorOrientation,
+                                    frontFacing));
+                    stillWithRaw[rotation] = stillBuilder.build();
+                }
+            }
+        }
+        return new CaptureRequestTemplates(session, flashSupported, lockFocus, precapture,
+                unlockFocus, still, stillWithRaw);
+    }
+
+    private static void setAutoFlash(CaptureRequest.Builder builder, boolean flashSupported) {
+        if (flashSupported) {
+            builder.set(CaptureRequest.CONTROL_AE_MODE,
+                    CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+        }
+    }
+
+    /**
+     * @return Whether these templates were built for {@code session} and the given flash setting
+     */
+    boolean isFor(CameraCaptureSession session, boolean flashSupported) {
+        return mSession == session && mFlashSupported == flashSupported;
+    }
+
+    /**
+     * @return A preview request that starts the auto-focus scan
+     */
+    CaptureRequest getLockFocus() {
+        return mLockFocus;
+    }
+
+    /**
+     * @return A preview request that starts the auto-exposure precapture sequence
+     */
+    CaptureRequest getPrecapture() {
+        return mPrecapture;
+    }
+
+    /**
+     * @return A preview request that cancels the auto-focus scan
+     */
+    CaptureRequest getUnlockFocus() {
+        return mUnlockFocus;
+    }
+
+    /**
+     * @param rotation The display rotation, one of the {@code Surface.ROTATION_*} values
+     * @return The still capture request for {@code rotation}, or null if the session has no
+     * still capture stream
+     */
+    CaptureRequest getStill(int rotation) {
+        return null == mStill ? null : mStill[rotation];
+    }
+
+    /**
+     * @param rotation The display rotation, one of the {@code Surface.ROTATION_*} values
+     * @return The still capture request for {@code rotation} that also captures a RAW image, or
+     * null if the session has no RAW stream
+     */
+    CaptureRequest getStillWithRaw(int rotation) {
+        return null == mStillWithRaw ? null : mStillWithRaw[rotation];
+    }
+
+}
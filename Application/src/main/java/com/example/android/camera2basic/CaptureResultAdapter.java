@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+/**
+ * Reads the 3A state of a {@link CaptureResult} into the plain ints that
+ * {@link CaptureStateMachine} works with.
+ */
+final class CaptureResultAdapter {
+
+    private CaptureResultAdapter() {
+    }
+
+    /**
+     * @return The {@code CONTROL_AF_STATE} of {@code result}, or
+     * {@link CaptureStateMachine#UNKNOWN}
+     */
+    static int getAfState(CaptureResult result) {
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        return afState == null ? CaptureStateMachine.UNKNOWN : afState;
+    }
+
+    /**
+     * @return The {@code CONTROL_AE_STATE} of {@code result}, or
+     * {@link CaptureStateMachine#UNKNOWN}
+     */
+    static int getAeState(CaptureResult result) {
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        return aeState == null ? CaptureStateMachine.UNKNOWN : aeState;
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+/**
+ * The state machine that waits for auto-focus and auto-exposure before a still capture. It is
+ * fed the AF and AE states of each capture result as plain ints and has no Camera2 dependencies,
+ * so it can be driven by synthetic results on a host JVM.
+ *
+ * <p>Transitions come from a table indexed by the current state and by the class of the AF and
+ * AE states, built once when the class is loaded. {@link #process} is a single array lookup, does
+ * not allocate, and has no side effects of its own: it returns the actions the caller has to
+ * take, as a combination of the {@code ACTION_} flags.</p>
+ *
+ * <p>The machine also remembers the 3A state of the latest preview result, so that a shot can
+ * skip the focus and precapture round-trips when both have already converged; see
+ * {@link #start}.</p>
+ */
+class CaptureStateMachine {
+
+    /**
+     * Camera state: Showing camera preview.
+     */
+    static final int STATE_PREVIEW = 0;
+
+    /**
+     * Camera state: Waiting for the focus to be locked.
+     */
+    static final int STATE_WAITING_LOCK = 1;
+
+    /**
+     * Camera state: Waiting for the exposure to be precapture state.
+     */
+    static final int STATE_WAITING_PRECAPTURE = 2;
+
+    /**
+     * Camera state: Waiting for the exposure state to be something other than precapture.
+     */
+    static final int STATE_WAITING_NON_PRECAPTURE = 3;
+
+    /**
+     * Camera state: Picture was taken.
+     */
+    static final int STATE_PICTURE_TAKEN = 4;
+
+    private static final int STATE_COUNT = 5;
+
+    /**
+     * Value of an AF or AE state that the capture result does not report.
+     */
+    static final int UNKNOWN = -1;
+
+    // The AF and AE states this machine reacts to, with the values of the matching
+    // CaptureResult constants.
+    static final int AF_STATE_PASSIVE_FOCUSED = 2;
+    static final int AF_STATE_FOCUSED_LOCKED = 4;
+    static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    static final int AE_STATE_CONVERGED = 2;
+    static final int AE_STATE_FLASH_REQUIRED = 4;
+    static final int AE_STATE_PRECAPTURE = 5;
+
+    /**
+     * Action: auto-focus is locked, or the device does not report it.
+     */
+    static final int ACTION_FOCUS_LOCKED = 1;
+
+    /**
+     * Action: focus and exposure are ready; take the picture.
+     */
+    static final int ACTION_CAPTURE = 1 << 1;
+
+    /**
+     * Action: exposure has not converged; trigger the precapture sequence.
+     */
+    static final int ACTION_PRECAPTURE = 1 << 2;
+
+    // The AF states are folded into these classes before looking up a transition.
+    private static final int AF_NONE = 0;
+    private static final int AF_LOCKED = 1;
+    private static final int AF_OTHER = 2;
+    private static final int AF_CLASSES = 3;
+
+    // The same for the AE states.
+    private static final int AE_NONE = 0;
+    private static final int AE_CONVERGED = 1;
+    private static final int AE_PRECAPTURE = 2;
+    private static final int AE_FLASH_REQUIRED = 3;
+    private static final int AE_OTHER = 4;
+    private static final int AE_CLASSES = 5;
+
+    /**
+     * The class of each AF and AE state, indexed by the state plus one so that {@link #UNKNOWN}
+     * comes first.
+     */
+    private static final int[] AF_CLASS_OF = {
+            AF_NONE, AF_OTHER, AF_OTHER, AF_OTHER, AF_OTHER, AF_LOCKED, AF_LOCKED};
+    private static final int[] AE_CLASS_OF = {
+            AE_NONE, AE_OTHER, AE_OTHER, AE_CONVERGED, AE_OTHER, AE_FLASH_REQUIRED, AE_PRECAPTURE};
+
+    /**
+     * Matches any AF or AE class in {@link #rule}.
+     */
+    private static final int ANY = -1;
+
+    private static final int ACTION_SHIFT = 8;
+    private static final int STATE_MASK = (1 << ACTION_SHIFT) - 1;
+
+    /**
+     * The next state in the low bits and the actions above {@link #ACTION_SHIFT}, indexed by
+     * {@link #index}.
+     */
+    private static final int[] TRANSITIONS = new int[STATE_COUNT * AF_CLASSES * AE_CLASSES];
+
+    static {
+        // Anything not listed below keeps the state and does nothing; in particular, nothing
+        // happens while the preview is running or once the picture was taken. Later rules
+        // override earlier ones.
+        for (int state = 0; state < STATE_COUNT; state++) {
+            rule(state, ANY, ANY, state, 0);
+        }
+
+        rule(STATE_WAITING_LOCK, AF_NONE, ANY,
+                STATE_PICTURE_TAKEN, ACTION_FOCUS_LOCKED | ACTION_CAPTURE);
+        rule(STATE_WAITING_LOCK, AF_LOCKED, ANY,
+                STATE_WAITING_PRECAPTURE, ACTION_FOCUS_LOCKED | ACTION_PRECAPTURE);
+        // CONTROL_AE_STATE can be null on some devices
+        rule(STATE_WAITING_LOCK, AF_LOCKED, AE_NONE,
+                STATE_PICTURE_TAKEN, ACTION_FOCUS_LOCKED | ACTION_CAPTURE);
+        rule(STATE_WAITING_LOCK, AF_LOCKED, AE_CONVERGED,
+                STATE_PICTURE_TAKEN, ACTION_FOCUS_LOCKED | ACTION_CAPTURE);
+
+        rule(STATE_WAITING_PRECAPTURE, ANY, AE_NONE, STATE_WAITING_NON_PRECAPTURE, 0);
+        rule(STATE_WAITING_PRECAPTURE, ANY, AE_PRECAPTURE, STATE_WAITING_NON_PRECAPTURE, 0);
+        rule(STATE_WAITING_PRECAPTURE, ANY, AE_FLASH_REQUIRED, STATE_WAITING_NON_PRECAPTURE, 0);
+
+        rule(STATE_WAITING_NON_PRECAPTURE, ANY, ANY, STATE_PICTURE_TAKEN, ACTION_CAPTURE);
+        rule(STATE_WAITING_NON_PRECAPTURE, ANY, AE_PRECAPTURE, STATE_WAITING_NON_PRECAPTURE, 0);
+    }
+
+    /**
+     * The current state of camera state for taking pictures.
+     */
+    private int mState = STATE_PREVIEW;
+
+    // The 3A state of the latest preview result, and when it arrived.
+    private int mLastAfState = UNKNOWN;
+    private int mLastAeState = UNKNOWN;
+    private long mLastResultNanos = -1;
+
+    private int mShotCount;
+    private int mFastPathCount;
+
+    int getState() {
+        return mState;
+    }
+
+    void setState(int state) {
+        mState = state;
+    }
+
+    /**
+     * @return Whether {@link #process} has anything to do in the current state
+     */
+    boolean isWaiting() {
+        return mState == STATE_WAITING_LOCK || mState == STATE_WAITING_PRECAPTURE
+                || mState == STATE_WAITING_NON_PRECAPTURE;
+    }
+
+    /**
+     * Remembers the 3A state of a preview result.
+     *
+     * @param nowNanos When the result arrived
+     */
+    void onPreviewResult(int afState, int aeState, long nowNanos) {
+        mLastAfState = afState;
+        mLastAeState = aeState;
+        mLastResultNanos = nowNanos;
+    }
+
+    /**
+     * @return Whether the latest preview result is at most {@code freshnessNanos} old and
+     * reports focus and exposure as converged
+     */
+    boolean isConverged(long nowNanos, long freshnessNanos) {
+        return mLastResultNanos >= 0 && nowNanos - mLastResultNanos <= freshnessNanos
+                && (mLastAfState == AF_STATE_FOCUSED_LOCKED
+                || mLastAfState == AF_STATE_PASSIVE_FOCUSED)
+                && mLastAeState == AE_STATE_CONVERGED;
+    }
+
+    /**
+     * Starts a shot. If the latest preview result is fresh and converged, the picture can be
+     * taken right away; otherwise the machine waits for the focus lock.
+     *
+     * @param freshnessNanos How old the latest preview result may be to take the fast path, or
+     *                       0 to always lock the focus first
+     * @return {@link #ACTION_CAPTURE} for the fast path, or 0 if the caller has to trigger the
+     * focus lock
+     */
+    int start(long nowNanos, long freshnessNanos) {
+        mShotCount++;
+        if (freshnessNanos > 0 && isConverged(nowNanos, freshnessNanos)) {
+            mFastPathCount++;
+            mState = STATE_PICTURE_TAKEN;
+            return ACTION_CAPTURE;
+        }
+        mState = STATE_WAITING_LOCK;
+        return 0;
+    }
+
+    /**
+     * @return The number of shots started with {@link #start}
+     */
+    int getShotCount() {
+        return mShotCount;
+    }
+
+    /**
+     * @return The number of shots that skipped the focus lock because 3A had converged
+     */
+    int getFastPathCount() {
+        return mFastPathCount;
+    }
+
+    /**
+     * Advances the state machine with the 3A state of a capture result.
+     *
+     * @param afState The value of {@code CONTROL_AF_STATE}, or {@link #UNKNOWN}
+     * @param aeState The value of {@code CONTROL_AE_STATE}, or {@link #UNKNOWN}; it is not
+     *                reported on some devices
+     * @return The actions to take, as a combination of the {@code ACTION_} flags
+     */
+    int process(int afState, int aeState) {
+        int transition = TRANSITIONS[index(mState, afClassOf(afState), aeClassOf(aeState))];
+        mState = transition & STATE_MASK;
+        return transition >>> ACTION_SHIFT;
+    }
+
+    private static int afClassOf(int afState) {
+        return afState >= UNKNOWN && afState < AF_CLASS_OF.length - 1
+                ? AF_CLASS_OF[afState + 1] : AF_OTHER;
+    }
+
+    private static int aeClassOf(int aeState) {
+        return aeState >= UNKNOWN && aeState < AE_CLASS_OF.length - 1
+                ? AE_CLASS_OF[aeState + 1] : AE_OTHER;
+    }
+
+    private static int index(int state, int afClass, int aeClass) {
+        return (state * AF_CLASSES + afClass) * AE_CLASSES + aeClass;
+    }
+
+    /**
+     * Sets the transition from {@code state} for the given AF and AE classes, either of which can
+     * be {@link #ANY}.
+     */
+    private static void rule(int state, int afClass, int aeClass, int nextState, int actions) {
+        for (int af = 0; af < AF_CLASSES; af++) {
+            if (afClass != ANY && afClass != af) {
+                continue;
+            }
+            for (int ae = 0; ae < AE_CLASSES; ae++) {
+                if (aeClass != ANY && aeClass != ae) {
+                    continue;
+                }
+                TRANSITIONS[index(state, af, ae)] = nextState | actions << ACTION_SHIFT;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An {@link OutputStream} that stages its bytes in a pooled direct buffer and writes them to a
+ * channel each time the buffer fills up. Lets writers that only know streams, such as
+ * {@code DngCreator}, produce large files without building them up in the Java heap.
+ *
+ * <p>The staging buffer goes back to the pool on {@link #close()}, which does not close the
+ * channel.</p>
+ */
+class ChannelOutputStream extends OutputStream {
+
+    private final WritableByteChannel mChannel;
+    private final ByteBufferPool mPool;
+    private ByteBuffer mStaging;
+    private long mBytesWritten;
+
+    ChannelOutputStream(WritableByteChannel channel, ByteBufferPool pool) throws IOException {
+        mChannel = channel;
+        mPool = pool;
+        try {
+            mStaging = pool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a staging buffer.");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!mStaging.hasRemaining()) {
+            drain();
+        }
+        mStaging.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (!mStaging.hasRemaining()) {
+                drain();
+            }
+            int chunk = Math.min(length, mStaging.remaining());
+            mStaging.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null == mStaging) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            mPool.release(mStaging);
+            mStaging = null;
+        }
+    }
+
+    /**
+     * @return The number of bytes handed to the channel so far
+     */
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Called after each batch of bytes has been handed to the channel.
+     */
+    protected void onDrained(long bytesWritten) {
+    }
+
+    private void drain() throws IOException {
+        mStaging.flip();
+        while (mStaging.hasRemaining()) {
+            mBytesWritten += mChannel.write(mStaging);
+        }
+        mStaging.clear();
+        onDrained(mBytesWritten);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (null == mStaging) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+}
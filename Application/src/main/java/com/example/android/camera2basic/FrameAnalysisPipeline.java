@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs {@link FrameAnalyzer}s on a low-resolution YUV stream that the repeating request feeds
+ * next to the preview. The analyzers take turns on one background-priority thread, and only the
+ * newest frame waits for them: frames that arrive while they are busy replace the waiting one, so
+ * a slow analyzer never holds up the camera or makes the others work on old frames.
+ *
+ * <p>Analyzers and their statistics outlive the camera sessions; the stream and the analysis
+ * thread only exist between {@link #start} and {@link #stop}.</p>
+ */
+class FrameAnalysisPipeline {
+
+    private static final String TAG = "FrameAnalysisPipeline";
+
+    /**
+     * Analysis stream buffers: one being analyzed, one waiting and one being acquired.
+     */
+    private static final int MAX_IMAGES = 3;
+
+    /**
+     * An analyzer and how it is doing.
+     */
+    static final class Registration {
+
+        private final String mName;
+        private final FrameAnalyzer mAnalyzer;
+        private final LatencyHistogram mProcessingTime = new LatencyHistogram();
+
+        // Written on the analysis thread.
+        private volatile long mFramesAnalyzed;
+
+        // Written on the thread of the image listener.
+        private volatile long mFramesDropped;
+
+        Registration(String name, FrameAnalyzer analyzer) {
+            mName = name;
+            mAnalyzer = analyzer;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * @return Latency histogram of the time {@link FrameAnalyzer#analyze} takes
+         */
+        LatencyHistogram getProcessingTime() {
+            return mProcessingTime;
+        }
+
+        long getFramesAnalyzed() {
+            return mFramesAnalyzed;
+        }
+
+        /**
+         * @return The number of frames that were dropped while this analyzer was running
+         */
+        long getFramesDropped() {
+            return mFramesDropped;
+        }
+
+    }
+
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+
+    private ImageReader mImageReader;
+    private HandlerThread mAnalysisThread;
+    private Handler mAnalysisHandler;
+    private LatestFrameSlot<Image> mSlot;
+
+    /**
+     * The analyzer that is running, or null.
+     */
+    private volatile Registration mRunning;
+
+    /**
+     * Adds {@code analyzer} to those that see every frame that is not dropped. Takes effect from
+     * the next frame, or the next camera session if the stream is not running.
+     *
+     * @param name Identifies the analyzer in the statistics
+     */
+    Registration addAnalyzer(String name, FrameAnalyzer analyzer) {
+        Registration registration = new Registration(name, analyzer);
+        mRegistrations.add(registration);
+        return registration;
+    }
+
+    void removeAnalyzer(Registration registration) {
+        mRegistrations.remove(registration);
+    }
+
+    /**
+     * @return Whether any analyzers are registered, and the stream is worth adding to a session
+     */
+    boolean hasAnalyzers() {
+        return !mRegistrations.isEmpty();
+    }
+
+    /**
+     * Creates the analysis stream and thread. Called before the session is created.
+     *
+     * @param size         The size of the YUV frames
+     * @param imageHandler The handler of the thread that acquires the frames
+     */
+    void start(Size size, Handler imageHandler) {
+        mSlot = new LatestFrameSlot<>();
+        mAnalysisThread = new HandlerThread("FrameAnalysis", Process.THREAD_PRIORITY_BACKGROUND);
+        mAnalysisThread.start();
+        mAnalysisHandler = new Handler(mAnalysisThread.getLooper());
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, MAX_IMAGES);
+        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, imageHandler);
+    }
+
+    /**
+     * @return The target to add to the session and the repeating request, or null if the
+     * pipeline is not started
+     */
+    Surface getSurface() {
+        return null == mImageReader ? null : mImageReader.getSurface();
+    }
+
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (null == image) {
+                return;
+            }
+            Image stale = mSlot.offer(image);
+            if (null == stale) {
+                mAnalysisHandler.post(mAnalyze);
+                return;
+            }
+            stale.close();
+            Registration running = mRunning;
+            if (null != running) {
+                running.mFramesDropped++;
+            }
+        }
+
+    };
+
+    private final Runnable mAnalyze = new Runnable() {
+
+        @Override
+        public void run() {
+            Image image = mSlot.take();
+            if (null == image) {
+                return;
+            }
+            try {
+                YuvFrame frame = YuvImages.toFrame(image);
+                long timestamp = image.getTimestamp();
+                for (Registration registration : mRegistrations) {
+                    analyze(registration, frame, timestamp);
+                }
+            } finally {
+                image.close();
+            }
+        }
+
+    };
+
+    private void analyze(Registration registration, YuvFrame frame, long timestamp) {
+        mRunning = registration;
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            registration.mAnalyzer.analyze(frame, timestamp);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Analyzer " + registration.mName + " failed", e);
+        } finally {
+            mRunning = null;
+        }
+        registration.mProcessingTime.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+        registration.mFramesAnalyzed++;
+    }
+
+    /**
+     * @return The number of frames dropped because the analyzers were busy, since the last
+     * {@link #start}
+     */
+    long getFramesDropped() {
+        return null == mSlot ? 0 : mSlot.getDroppedCount();
+    }
+
+    /**
+     * @return A line for each analyzer with its processing time and dropped frames
+     */
+    String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.US, "%d frames dropped", getFramesDropped()));
+        for (Registration registration : mRegistrations) {
+            summary.append(String.format(Locale.US, "\n%s: %d analyzed, %d dropped, %s",
+                    registration.mName, registration.mFramesAnalyzed,
+                    registration.mFramesDropped, registration.mProcessingTime.summary()));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Lets the running analyzer finish and removes the stream. The camera must have been closed.
+     */
+    void stop() {
+        if (null == mImageReader) {
+            return;
+        }
+        mImageReader.setOnImageAvailableListener(null, null);
+        mAnalysisThread.quitSafely();
+        try {
+            mAnalysisThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Image waiting = mSlot.take();
+        if (null != waiting) {
+            waiting.close();
+        }
+        mImageReader.close();
+        mImageReader = null;
+        mAnalysisThread = null;
+        mAnalysisHandler = null;
+    }
+
+}
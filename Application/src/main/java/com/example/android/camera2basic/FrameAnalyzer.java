@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * Looks at frames of the low-resolution analysis stream. Registered with a
+ * {@link FrameAnalysisPipeline}, which calls it on its analysis thread.
+ *
+ * <p>An analyzer that takes longer than the frame interval does not slow down the camera; it
+ * just sees fewer frames.</p>
+ */
+interface FrameAnalyzer {
+
+    /**
+     * @param frame     The frame, which is only valid until this method returns
+     * @param timestamp The sensor timestamp of the frame, in nanoseconds
+     */
+    void analyze(YuvFrame frame, long timestamp);
+
+}
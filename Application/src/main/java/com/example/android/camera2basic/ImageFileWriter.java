@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the contents of an image plane {@link ByteBuffer} to a file. This class has no Android
+ * dependencies so that the write strategies can be compared on a host JVM.
+ */
+final class ImageFileWriter {
+
+    /**
+     * How the bytes travel from the image buffer to the file.
+     */
+    enum Strategy {
+        /**
+         * Copy the whole buffer into a new {@code byte[]} and write it through a stream. This is
+         * what the sample originally did; it allocates one array per capture.
+         */
+        BYTE_ARRAY,
+        /**
+         * Hand the buffer straight to a {@link FileChannel}. No copy is made in the Java heap
+         * when the buffer is direct, which is the case for {@code Image} planes.
+         */
+        CHANNEL,
+        /**
+         * Copy the buffer in chunks through a pooled direct buffer, for buffers that are not
+         * direct.
+         */
+        POOLED
+    }
+
+    private ImageFileWriter() {
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} to {@code channel}, picking
+     * {@link Strategy#CHANNEL} for direct buffers and {@link Strategy#POOLED} otherwise. The
+     * buffer's position is advanced to its limit. The channel is left open.
+     *
+     * @param buffer  The image data
+     * @param channel The channel of the output file
+     * @param pool    Buffers to stage non-direct data through
+     * @return The number of bytes written
+     */
+    static long write(ByteBuffer buffer, FileChannel channel, ByteBufferPool pool)
+            throws IOException {
+        return buffer.isDirect()
+                ? writeChannel(buffer, channel)
+                : writePooled(buffer, channel, pool);
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} to {@code file} using {@code strategy}.
+     *
+     * @param pool Buffers to stage data through; only used by {@link Strategy#POOLED}
+     * @return The number of bytes written
+     */
+    static long write(ByteBuffer buffer, File file, Strategy strategy, ByteBufferPool pool)
+            throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            switch (strategy) {
+                case BYTE_ARRAY:
+                    return writeByteArray(buffer, output);
+                case CHANNEL:
+                    return writeChannel(buffer, output.getChannel());
+                case POOLED:
+                    return writePooled(buffer, output.getChannel(), pool);
+                default:
+                    throw new IllegalArgumentException("Unknown strategy: " + strategy);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static long writeByteArray(ByteBuffer buffer, FileOutputStream output)
+            throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        output.write(bytes);
+        return bytes.length;
+    }
+
+    private static long writeChannel(ByteBuffer buffer, FileChannel channel) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    private static long writePooled(ByteBuffer buffer, FileChannel channel, ByteBufferPool pool)
+            throws IOException {
+        ByteBuffer staging;
+        try {
+            staging = pool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a staging buffer.");
+        }
+        try {
+            long written = 0;
+            int limit = buffer.limit();
+            while (buffer.hasRemaining()) {
+                int chunk = Math.min(buffer.remaining(), staging.capacity());
+                buffer.limit(buffer.position() + chunk);
+                staging.clear();
+                staging.put(buffer);
+                staging.flip();
+                buffer.limit(limit);
+                written += writeChannel(staging, channel);
+            }
+            return written;
+        } finally {
+            pool.release(staging);
+        }
+    }
+
+}
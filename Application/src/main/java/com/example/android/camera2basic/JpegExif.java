@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+/**
+ * Adds the orientation tag to JPEG data that was encoded in software, which unlike the camera's
+ * own JPEG output does not carry one.
+ */
+final class JpegExif {
+
+    /**
+     * An APP1 segment holding a big-endian TIFF header and a single IFD with the orientation tag,
+     * whose value is at {@link #ORIENTATION_VALUE_OFFSET}.
+     */
+    private static final byte[] SEGMENT = {
+            (byte) 0xff, (byte) 0xe1, 0, 34,
+            'E', 'x', 'i', 'f', 0, 0,
+            'M', 'M', 0, 42, 0, 0, 0, 8,
+            0, 1,
+            0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, 1, 0, 0,
+            0, 0, 0, 0};
+
+    private static final int ORIENTATION_VALUE_OFFSET = 29;
+
+    private JpegExif() {
+    }
+
+    /**
+     * @param jpeg    A JPEG image, starting with the SOI marker
+     * @param length  The number of bytes of {@code jpeg} in use
+     * @param degrees The clockwise rotation to apply when displaying the image: 0, 90, 180, or 270
+     * @return A copy of the image with an EXIF segment right after the SOI marker
+     */
+    static byte[] withOrientation(byte[] jpeg, int length, int degrees) {
+        if (length < 2 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8) {
+            throw new IllegalArgumentException("Not a JPEG image");
+        }
+        byte[] result = new byte[length + SEGMENT.length];
+        result[0] = jpeg[0];
+        result[1] = jpeg[1];
+        writeSegment(result, 2, degrees);
+        System.arraycopy(jpeg, 2, result, 2 + SEGMENT.length, length - 2);
+        return result;
+    }
+
+    /**
+     * Writes the EXIF segment, marker included, for an encoder that builds its own headers.
+     *
+     * @param degrees The clockwise rotation to apply when displaying the image
+     * @return The number of bytes written
+     */
+    static int writeSegment(byte[] out, int offset, int degrees) {
+        System.arraycopy(SEGMENT, 0, out, offset, SEGMENT.length);
+        out[offset + ORIENTATION_VALUE_OFFSET] = (byte) orientationOf(degrees);
+        return SEGMENT.length;
+    }
+
+    /**
+     * @return The EXIF orientation value for a clockwise rotation, as also used by
+     * {@code ExifInterface} and {@code DngCreator}
+     */
+    static int orientationOf(int degrees) {
+        switch ((degrees % 360 + 360) % 360) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+}
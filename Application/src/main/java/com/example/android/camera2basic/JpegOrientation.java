@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+/**
+ * Computes the value of {@code CaptureRequest.JPEG_ORIENTATION}.
+ */
+final class JpegOrientation {
+
+    /**
+     * Conversion from screen rotation to JPEG orientation, indexed by the
+     * {@code Surface.ROTATION_*} constants (0, 90, 180, and 270 degrees in that order).
+     */
+    private static final int[] ORIENTATIONS = {90, 0, 270, 180};
+
+    private JpegOrientation() {
+    }
+
+    /**
+     * Retrieves the JPEG orientation from the specified screen rotation.
+     *
+     * @param rotation          The screen rotation, one of the {@code Surface.ROTATION_*} values
+     * @param sensorOrientation The value of {@code CameraCharacteristics.SENSOR_ORIENTATION}
+     * @return The JPEG orientation (one of 0, 90, 270, and 360)
+     */
+    static int fromRotation(int rotation, int sensorOrientation) {
+        // Sensor orientation is 90 for most devices, or 270 for some devices (eg. Nexus 5X)
+        // We have to take that into account and rotate JPEG properly.
+        // For devices with orientation of 90, we simply return our mapping from ORIENTATIONS.
+        // For devices with orientation of 270, we need to rotate the JPEG 180 degrees.
+        return (ORIENTATIONS[rotation] + sensorOrientation + 270) % 360;
+    }
+
+    /**
+     * Retrieves the JPEG orientation from the specified screen rotation, for a camera facing
+     * either way.
+     *
+     * @param rotation          The screen rotation, one of the {@code Surface.ROTATION_*} values
+     * @param sensorOrientation The value of {@code CameraCharacteristics.SENSOR_ORIENTATION}
+     * @param frontFacing       Whether the camera faces the same way as the screen
+     * @return The JPEG orientation (one of 0, 90, 270, and 360)
+     */
+    static int fromRotation(int rotation, int sensorOrientation, boolean frontFacing) {
+        if (!frontFacing) {
+            return fromRotation(rotation, sensorOrientation);
+        }
+        // A front facing camera sees the device turn the other way round, so the rotation of
+        // the screen adds to the orientation of the sensor instead.
+        return (sensorOrientation + rotation * 90) % 360;
+    }
+
+}
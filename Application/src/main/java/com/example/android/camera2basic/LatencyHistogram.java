@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+
+/**
+ * A fixed-size histogram of latencies with microsecond resolution. Buckets are log-linear: every
+ * power of two is split into {@value #SUB_BUCKETS} equal buckets, so percentiles are accurate to
+ * about 3% over the whole range. Recording never allocates.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest latency that can be told apart from larger ones, in microseconds (about 12 days).
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_MICROS = (1L << MAX_EXPONENT) - 1;
+
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotalMicros;
+    private long mMaxMicros;
+
+    /**
+     * Adds a latency to the histogram. Negative values are ignored.
+     */
+    synchronized void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long micros = Math.min(nanos / 1000, MAX_MICROS);
+        mCounts[bucketOf(micros)]++;
+        mCount++;
+        mTotalMicros += micros;
+        if (micros > mMaxMicros) {
+            mMaxMicros = micros;
+        }
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mTotalMicros = 0;
+        mMaxMicros = 0;
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The largest recorded latency in milliseconds
+     */
+    synchronized double getMaxMillis() {
+        return mMaxMicros / 1000.0;
+    }
+
+    /**
+     * @return The mean latency in milliseconds
+     */
+    synchronized double getMeanMillis() {
+        return mCount == 0 ? 0 : mTotalMicros / 1000.0 / mCount;
+    }
+
+    /**
+     * @param percentile A value between 0 and 100
+     * @return The latency, in milliseconds, that {@code percentile} percent of the recorded
+     * latencies do not exceed, or 0 when nothing was recorded
+     */
+    synchronized double getPercentileMillis(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * mCount);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMaxMicros) / 1000.0;
+            }
+        }
+        return mMaxMicros / 1000.0;
+    }
+
+    /**
+     * @return One line with the count, p50, p95, p99, and max
+     */
+    synchronized String summary() {
+        return String.format(Locale.US, "n=%d p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                mCount, getPercentileMillis(50), getPercentileMillis(95),
+                getPercentileMillis(99), getMaxMillis());
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBoundOf(int bucket) {
+        int group = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (group == 0) {
+            return sub;
+        }
+        int shift = group - 1;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+}
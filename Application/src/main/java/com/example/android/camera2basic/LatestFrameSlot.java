@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands frames from a producer to a slower consumer, holding only the newest one. A frame that
+ * is still waiting when the next one arrives is stale and handed back to the producer to be
+ * released, so the consumer never works through a backlog.
+ *
+ * <p>Safe to use from one producer and one consumer thread.</p>
+ *
+ * @param <T> The type of the frames
+ */
+class LatestFrameSlot<T> {
+
+    private final AtomicReference<T> mFrame = new AtomicReference<>();
+
+    // Only written by the producer.
+    private volatile long mDroppedCount;
+
+    /**
+     * Puts {@code frame} in the slot.
+     *
+     * @return The frame it replaced, which the consumer will never see, or null if the slot was
+     * empty, in which case the consumer has to be told that a frame is waiting
+     */
+    T offer(T frame) {
+        T stale = mFrame.getAndSet(frame);
+        if (null != stale) {
+            mDroppedCount++;
+        }
+        return stale;
+    }
+
+    /**
+     * @return The waiting frame, or null if there is none
+     */
+    T take() {
+        return mFrame.getAndSet(null);
+    }
+
+    /**
+     * @return The number of frames that were replaced before they were taken
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Exposure statistics of the luma plane: a 256-bin histogram, the mean brightness and the share
+ * of clipped shadows and highlights. Every {@code stride}-th sample of every {@code stride}-th
+ * row is counted.
+ *
+ * <p>All bins and tasks are allocated up front, so a frame is measured without allocating. Frames
+ * with many samples are split into bands of rows that are counted on a {@link ForkJoinPool} and
+ * merged. The results of the latest frame can be read from any thread.</p>
+ */
+final class LumaStatistics implements FrameAnalyzer {
+
+    static final int BINS = 256;
+
+    /**
+     * Luma values at or below this count as clipped shadows.
+     */
+    static final int SHADOW_CLIP_MAX = 4;
+
+    /**
+     * Luma values at or above this count as clipped highlights.
+     */
+    static final int HIGHLIGHT_CLIP_MIN = 251;
+
+    /**
+     * Frames with fewer samples than this are counted on the calling thread, since splitting them
+     * costs more than it saves.
+     */
+    static final int PARALLEL_MIN_SAMPLES = 1 << 18;
+
+    private final int mStride;
+    private final ForkJoinPool mPool;
+    private final Band[] mBands;
+    private final FanOut mFanOut = new FanOut();
+    private final int[] mBins = new int[BINS];
+
+    // Published under the lock of this object.
+    private final int[] mHistogram = new int[BINS];
+    private long mSampleCount;
+    private double mMean;
+    private double mShadowFraction;
+    private double mHighlightFraction;
+    private long mTimestamp;
+    private long mFrameCount;
+
+    /**
+     * Counts the rows of one band into its own bins.
+     */
+    private static final class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final int[] mBins = new int[BINS];
+        ByteBuffer mBuffer;
+        int mRowStride;
+        int mPixelStride;
+        int mWidth;
+        int mFirstRow;
+        int mEndRow;
+        int mStride;
+
+        @Override
+        protected void compute() {
+            count(mBuffer, mRowStride, mPixelStride, mWidth, mFirstRow, mEndRow, mStride, mBins);
+        }
+
+    }
+
+    /**
+     * Runs all the bands in the pool and waits for them.
+     */
+    private final class FanOut extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            invokeAll(mBands);
+        }
+
+    }
+
+    /**
+     * @param stride The distance between counted samples, horizontally and vertically
+     * @param pool   The pool that counts large frames, or null to count every frame on the
+     *               calling thread
+     */
+    LumaStatistics(int stride, ForkJoinPool pool) {
+        if (stride < 1) {
+            throw new IllegalArgumentException("Stride must be positive.");
+        }
+        mStride = stride;
+        mPool = pool;
+        if (null == pool) {
+            mBands = null;
+        } else {
+            mBands = new Band[pool.getParallelism()];
+            for (int i = 0; i < mBands.length; i++) {
+                mBands[i] = new Band();
+            }
+        }
+    }
+
+    @Override
+    public void analyze(YuvFrame frame, long timestamp) {
+        measure(frame);
+        synchronized (this) {
+            mTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * Measures {@code frame} and publishes the results. Not to be called from two threads at once.
+     */
+    void measure(YuvFrame frame) {
+        YuvFrame.Plane luma = frame.getY();
+        ByteBuffer buffer = luma.getBuffer();
+        int width = frame.getWidth();
+        int rows = (frame.getHeight() + mStride - 1) / mStride;
+        long samples = (long) rows * ((width + mStride - 1) / mStride);
+        if (null == mBands || mBands.length == 1 || samples < PARALLEL_MIN_SAMPLES) {
+            count(buffer, luma.getRowStride(), luma.getPixelStride(), width, 0,
+                    frame.getHeight(), mStride, mBins);
+        } else {
+            for (int i = 0; i < mBands.length; i++) {
+                Band band = mBands[i];
+                band.reinitialize();
+                band.mBuffer = buffer;
+                band.mRowStride = luma.getRowStride();
+                band.mPixelStride = luma.getPixelStride();
+                band.mWidth = width;
+                band.mFirstRow = (int) ((long) rows * i / mBands.length) * mStride;
+                band.mEndRow = Math.min(frame.getHeight(),
+                        (int) ((long) rows * (i + 1) / mBands.length) * mStride);
+                band.mStride = mStride;
+            }
+            mFanOut.reinitialize();
+            mPool.invoke(mFanOut);
+            System.arraycopy(mBands[0].mBins, 0, mBins, 0, BINS);
+            for (int i = 1; i < mBands.length; i++) {
+                int[] bins = mBands[i].mBins;
+                for (int bin = 0; bin < BINS; bin++) {
+                    mBins[bin] += bins[bin];
+                }
+            }
+            for (Band band : mBands) {
+                band.mBuffer = null;
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Adds every {@code stride}-th sample of the rows from {@code firstRow}, which is a multiple
+     * of {@code stride}, to {@code endRow} to {@code bins}, which are cleared first.
+     */
+    private static void count(ByteBuffer buffer, int rowStride, int pixelStride, int width,
+                              int firstRow, int endRow, int stride, int[] bins) {
+        Arrays.fill(bins, 0);
+        int step = stride * pixelStride;
+        int rowEnd = width * pixelStride;
+        for (int y = firstRow; y < endRow; y += stride) {
+            int start = y * rowStride;
+            int end = start + rowEnd;
+            for (int i = start; i < end; i += step) {
+                bins[buffer.get(i) & 0xff]++;
+            }
+        }
+    }
+
+    private synchronized void publish() {
+        long total = 0;
+        long sum = 0;
+        long shadows = 0;
+        long highlights = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            int count = mBins[bin];
+            mHistogram[bin] = count;
+            total += count;
+            sum += (long) bin * count;
+            if (bin <= SHADOW_CLIP_MAX) {
+                shadows += count;
+            } else if (bin >= HIGHLIGHT_CLIP_MIN) {
+                highlights += count;
+            }
+        }
+        mSampleCount = total;
+        mMean = total == 0 ? 0 : (double) sum / total;
+        mShadowFraction = total == 0 ? 0 : (double) shadows / total;
+        mHighlightFraction = total == 0 ? 0 : (double) highlights / total;
+        mFrameCount++;
+    }
+
+    /**
+     * Copies the histogram of the latest frame into {@code out}, which needs {@link #BINS}
+     * elements.
+     *
+     * @return The number of samples counted
+     */
+    synchronized long copyHistogram(int[] out) {
+        System.arraycopy(mHistogram, 0, out, 0, BINS);
+        return mSampleCount;
+    }
+
+    /**
+     * @return The mean luma of the latest frame, from 0 to 255
+     */
+    synchronized double getMean() {
+        return mMean;
+    }
+
+    /**
+     * @return The share of samples of the latest frame at or below {@link #SHADOW_CLIP_MAX}
+     */
+    synchronized double getShadowClipFraction() {
+        return mShadowFraction;
+    }
+
+    /**
+     * @return The share of samples of the latest frame at or above {@link #HIGHLIGHT_CLIP_MIN}
+     */
+    synchronized double getHighlightClipFraction() {
+        return mHighlightFraction;
+    }
+
+    /**
+     * @return The sensor timestamp of the latest analyzed frame
+     */
+    synchronized long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return The number of frames measured
+     */
+    synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+}
@@ -0,0 +1,741 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A baseline JPEG encoder for {@link YuvFrame}s that uses all the cores of a
+ * {@link ForkJoinPool}.
+ *
+ * <p>The frame is cut into stripes of {@link #STRIPE_MCU_ROWS} rows of MCUs (minimum coded
+ * units). A restart marker separates the stripes, so each of them can be entropy coded on its own
+ * and the results are simply joined. The output is the same whatever the parallelism of the
+ * pool.</p>
+ *
+ * <p>The encoder can be reused for any number of frames, one at a time. Once it has seen the
+ * largest frame, encoding only allocates the returned array.</p>
+ */
+final class ParallelJpegEncoder {
+
+    /**
+     * How the chroma planes are sampled in the output, relative to the luma plane.
+     */
+    enum Subsampling {
+        /**
+         * Chroma at half the resolution in both directions, like the camera delivers it.
+         */
+        YUV_420(2, 2),
+        /**
+         * Chroma at full resolution. The camera's chroma samples are repeated, so this costs
+         * twice the work of {@link #YUV_420} but leaves no resampling to the decoder.
+         */
+        YUV_444(1, 1);
+
+        /**
+         * The horizontal and vertical sampling factors of the luma component.
+         */
+        final int mH;
+        final int mV;
+
+        Subsampling(int h, int v) {
+            mH = h;
+            mV = v;
+        }
+    }
+
+    /**
+     * Height of a stripe, in MCU rows. Small enough to keep all cores busy on a preview-sized
+     * frame, large enough that restart markers cost next to nothing.
+     */
+    static final int STRIPE_MCU_ROWS = 2;
+
+    /**
+     * The largest restart interval that fits the DRI segment.
+     */
+    private static final int MAX_RESTART_INTERVAL = 0xffff;
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63};
+
+    /**
+     * The example quantization tables of the JPEG standard (Annex K.1), in natural order.
+     */
+    private static final int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+    private static final int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    /**
+     * The example Huffman tables of the JPEG standard (Annex K.3): the number of codes of each
+     * length from 1 to 16, followed by the symbols.
+     */
+    private static final int[] LUMA_DC_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] LUMA_DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] CHROMA_DC_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] CHROMA_DC_VALUES = LUMA_DC_VALUES;
+    private static final int[] LUMA_AC_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] LUMA_AC_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+    private static final int[] CHROMA_AC_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] CHROMA_AC_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+
+    private static final HuffmanTable LUMA_DC = new HuffmanTable(LUMA_DC_BITS, LUMA_DC_VALUES);
+    private static final HuffmanTable LUMA_AC = new HuffmanTable(LUMA_AC_BITS, LUMA_AC_VALUES);
+    private static final HuffmanTable CHROMA_DC
+            = new HuffmanTable(CHROMA_DC_BITS, CHROMA_DC_VALUES);
+    private static final HuffmanTable CHROMA_AC
+            = new HuffmanTable(CHROMA_AC_BITS, CHROMA_AC_VALUES);
+
+    /**
+     * The scale factors of the AAN forward DCT, which are folded into the quantization.
+     */
+    private static final double[] AAN_SCALES = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379};
+
+    private final ForkJoinPool mPool;
+    private final int mQuality;
+    private final Subsampling mSubsampling;
+
+    /**
+     * The quantization tables in zigzag order, as written to the file.
+     */
+    private final int[] mLumaTable = new int[64];
+    private final int[] mChromaTable = new int[64];
+
+    /**
+     * The reciprocals of the quantization steps, in natural order, including the DCT scaling.
+     */
+    private final float[] mLumaDivisors = new float[64];
+    private final float[] mChromaDivisors = new float[64];
+
+    /**
+     * The entropy-coded data of each stripe of the frame being encoded.
+     */
+    private BitWriter[] mStripes = new BitWriter[0];
+
+    /**
+     * Scratch space for the stripes being encoded, one per worker at most.
+     */
+    private final ConcurrentLinkedQueue<Workspace> mWorkspaces = new ConcurrentLinkedQueue<>();
+
+    // The geometry of the frame being encoded.
+    private YuvFrame mFrame;
+    private int mMcuWidth;
+    private int mMcuHeight;
+    private int mMcusPerRow;
+    private int mMcuRows;
+
+    /**
+     * @param pool    Where the stripes are encoded
+     * @param quality From 1 to 100, as for {@code android.graphics.YuvImage}
+     */
+    ParallelJpegEncoder(ForkJoinPool pool, int quality, Subsampling subsampling) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality out of range: " + quality);
+        }
+        mPool = pool;
+        mQuality = quality;
+        mSubsampling = subsampling;
+        // Scale the example tables the way libjpeg does.
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            int luma = clampStep((LUMA_QUANTIZATION[i] * scale + 50) / 100);
+            int chroma = clampStep((CHROMA_QUANTIZATION[i] * scale + 50) / 100);
+            mLumaTable[inverseZigzag(i)] = luma;
+            mChromaTable[inverseZigzag(i)] = chroma;
+            double aan = AAN_SCALES[i >> 3] * AAN_SCALES[i & 7] * 8;
+            mLumaDivisors[i] = (float) (1.0 / (luma * aan));
+            mChromaDivisors[i] = (float) (1.0 / (chroma * aan));
+        }
+    }
+
+    private static int clampStep(int step) {
+        return Math.max(1, Math.min(255, step));
+    }
+
+    private static int inverseZigzag(int natural) {
+        for (int i = 0; i < 64; i++) {
+            if (ZIGZAG[i] == natural) {
+                return i;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    int getQuality() {
+        return mQuality;
+    }
+
+    Subsampling getSubsampling() {
+        return mSubsampling;
+    }
+
+    /**
+     * Encodes {@code frame}, which must not change until this returns.
+     *
+     * @param orientation The clockwise rotation to record in the EXIF header: 0, 90, 180, or 270
+     * @return The JPEG file
+     */
+    synchronized byte[] encode(YuvFrame frame, int orientation) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (width < 1 || height < 1 || width > 0xffff || height > 0xffff) {
+            throw new IllegalArgumentException("Cannot encode a " + width + "x" + height
+                    + " frame");
+        }
+        mFrame = frame;
+        mMcuWidth = 8 * mSubsampling.mH;
+        mMcuHeight = 8 * mSubsampling.mV;
+        mMcusPerRow = (width + mMcuWidth - 1) / mMcuWidth;
+        mMcuRows = (height + mMcuHeight - 1) / mMcuHeight;
+        int stripeRows = Math.min(STRIPE_MCU_ROWS,
+                Math.max(1, MAX_RESTART_INTERVAL / mMcusPerRow));
+        int stripeCount = (mMcuRows + stripeRows - 1) / stripeRows;
+        if (mStripes.length < stripeCount) {
+            BitWriter[] stripes = new BitWriter[stripeCount];
+            System.arraycopy(mStripes, 0, stripes, 0, mStripes.length);
+            for (int i = mStripes.length; i < stripeCount; i++) {
+                stripes[i] = new BitWriter();
+            }
+            mStripes = stripes;
+        }
+        try {
+            mPool.invoke(new StripeRange(0, stripeCount, stripeRows));
+        } finally {
+            mFrame = null;
+            for (Workspace workspace : mWorkspaces) {
+                workspace.release();
+            }
+        }
+
+        byte[] header = header(width, height, mMcusPerRow * stripeRows, orientation);
+        // Two bytes for each restart marker and for the EOI marker.
+        int length = header.length + stripeCount * 2;
+        for (int i = 0; i < stripeCount; i++) {
+            length += mStripes[i].mLength;
+        }
+        byte[] jpeg = new byte[length];
+        System.arraycopy(header, 0, jpeg, 0, header.length);
+        int offset = header.length;
+        for (int i = 0; i < stripeCount; i++) {
+            if (i > 0) {
+                jpeg[offset++] = (byte) 0xff;
+                jpeg[offset++] = (byte) (0xd0 + ((i - 1) & 7));
+            }
+            BitWriter stripe = mStripes[i];
+            System.arraycopy(stripe.mBytes, 0, jpeg, offset, stripe.mLength);
+            offset += stripe.mLength;
+        }
+        jpeg[offset++] = (byte) 0xff;
+        jpeg[offset] = (byte) 0xd9;
+        return jpeg;
+    }
+
+    /**
+     * Encodes a range of stripes, splitting it in halves until a single stripe is left.
+     */
+    private class StripeRange extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mFrom;
+        private final int mTo;
+        private final int mStripeRows;
+
+        StripeRange(int from, int to, int stripeRows) {
+            mFrom = from;
+            mTo = to;
+            mStripeRows = stripeRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                Workspace workspace = mWorkspaces.poll();
+                if (null == workspace) {
+                    workspace = new Workspace();
+                }
+                try {
+                    encodeStripe(mFrom, mStripeRows, workspace);
+                } finally {
+                    mWorkspaces.offer(workspace);
+                }
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new StripeRange(mFrom, middle, mStripeRows),
+                    new StripeRange(middle, mTo, mStripeRows));
+        }
+
+    }
+
+    private void encodeStripe(int stripe, int stripeRows, Workspace workspace) {
+        YuvFrame frame = mFrame;
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int h = mSubsampling.mH;
+        int v = mSubsampling.mV;
+        int paddedWidth = mMcusPerRow * mMcuWidth;
+        workspace.prepare(frame, paddedWidth, mMcuHeight);
+
+        BitWriter out = mStripes[stripe];
+        out.reset();
+        int[] predictions = workspace.mPredictions;
+        predictions[0] = 0;
+        predictions[1] = 0;
+        predictions[2] = 0;
+        int firstRow = stripe * stripeRows;
+        int lastRow = Math.min(firstRow + stripeRows, mMcuRows);
+        for (int mcuRow = firstRow; mcuRow < lastRow; mcuRow++) {
+            // Stage the rows of this MCU row, repeating the last row and column at the edges.
+            int top = mcuRow * mMcuHeight;
+            for (int y = 0; y < mMcuHeight; y++) {
+                int offset = y * paddedWidth;
+                frame.getY().copyRow(workspace.mYView, Math.min(top + y, height - 1), width,
+                        workspace.mLuma, offset);
+                fill(workspace.mLuma, offset + width, offset + paddedWidth,
+                        workspace.mLuma[offset + width - 1]);
+            }
+            // The chroma samples of block row y come from luma row top + y * v.
+            for (int y = 0; y < 8; y++) {
+                int row = Math.min((top + y * v) / 2, chromaHeight - 1);
+                frame.getU().copyRow(workspace.mUView, row, chromaWidth, workspace.mCb,
+                        y * workspace.mChromaStride);
+                frame.getV().copyRow(workspace.mVView, row, chromaWidth, workspace.mCr,
+                        y * workspace.mChromaStride);
+            }
+
+            for (int mcu = 0; mcu < mMcusPerRow; mcu++) {
+                int left = mcu * mMcuWidth;
+                for (int by = 0; by < v; by++) {
+                    for (int bx = 0; bx < h; bx++) {
+                        loadLuma(workspace, paddedWidth, left + bx * 8, by * 8);
+                        predictions[0] = encodeBlock(workspace, mLumaDivisors, predictions[0],
+                                LUMA_DC, LUMA_AC, out);
+                    }
+                }
+                loadChroma(workspace, workspace.mCb, left, h, chromaWidth);
+                predictions[1] = encodeBlock(workspace, mChromaDivisors, predictions[1],
+                        CHROMA_DC, CHROMA_AC, out);
+                loadChroma(workspace, workspace.mCr, left, h, chromaWidth);
+                predictions[2] = encodeBlock(workspace, mChromaDivisors, predictions[2],
+                        CHROMA_DC, CHROMA_AC, out);
+            }
+        }
+        out.flush();
+    }
+
+    private static void fill(byte[] array, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            array[i] = value;
+        }
+    }
+
+    private static void loadLuma(Workspace workspace, int stride, int left, int top) {
+        byte[] luma = workspace.mLuma;
+        float[] block = workspace.mBlock;
+        for (int y = 0; y < 8; y++) {
+            int offset = (top + y) * stride + left;
+            for (int x = 0; x < 8; x++) {
+                block[y * 8 + x] = (luma[offset + x] & 0xff) - 128;
+            }
+        }
+    }
+
+    /**
+     * @param left The left edge of the MCU in luma samples
+     * @param h    How many luma columns each chroma sample of the output covers
+     */
+    private static void loadChroma(Workspace workspace, byte[] chroma, int left, int h,
+                                   int chromaWidth) {
+        float[] block = workspace.mBlock;
+        int stride = workspace.mChromaStride;
+        for (int x = 0; x < 8; x++) {
+            workspace.mColumns[x] = Math.min((left + x * h) / 2, chromaWidth - 1);
+        }
+        for (int y = 0; y < 8; y++) {
+            int offset = y * stride;
+            for (int x = 0; x < 8; x++) {
+                block[y * 8 + x] = (chroma[offset + workspace.mColumns[x]] & 0xff) - 128;
+            }
+        }
+    }
+
+    /**
+     * Transforms, quantizes, and entropy codes the block in the workspace.
+     *
+     * @return The quantized DC coefficient, which predicts the next one of the component
+     */
+    private static int encodeBlock(Workspace workspace, float[] divisors, int prediction,
+                                   HuffmanTable dc, HuffmanTable ac, BitWriter out) {
+        float[] block = workspace.mBlock;
+        forwardDct(block);
+        int[] coefficients = workspace.mCoefficients;
+        for (int i = 0; i < 64; i++) {
+            float value = block[ZIGZAG[i]] * divisors[ZIGZAG[i]];
+            coefficients[i] = (int) (value < 0 ? value - 0.5f : value + 0.5f);
+        }
+
+        int diff = coefficients[0] - prediction;
+        int size = magnitudeSize(diff);
+        out.write(dc.mCodes[size], dc.mSizes[size]);
+        if (size > 0) {
+            out.write(diff < 0 ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int i = 1; i < 64; i++) {
+            int coefficient = coefficients[i];
+            if (coefficient == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                out.write(ac.mCodes[0xf0], ac.mSizes[0xf0]);
+                run -= 16;
+            }
+            size = magnitudeSize(coefficient);
+            int symbol = (run << 4) | size;
+            out.write(ac.mCodes[symbol], ac.mSizes[symbol]);
+            out.write(coefficient < 0 ? coefficient - 1 : coefficient, size);
+            run = 0;
+        }
+        if (run > 0) {
+            out.write(ac.mCodes[0], ac.mSizes[0]);
+        }
+        return coefficients[0];
+    }
+
+    /**
+     * @return The number of bits needed for the magnitude of {@code value}
+     */
+    private static int magnitudeSize(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+
+    /**
+     * The floating-point AAN forward DCT, in place. The output is scaled by {@link #AAN_SCALES}
+     * and by 8, which the quantization divisors undo.
+     */
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass works on rows, the second on columns.
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int line = 0, base = 0; line < 8; line++, base += next) {
+                float tmp0 = data[base] + data[base + 7 * step];
+                float tmp7 = data[base] - data[base + 7 * step];
+                float tmp1 = data[base + step] + data[base + 6 * step];
+                float tmp6 = data[base + step] - data[base + 6 * step];
+                float tmp2 = data[base + 2 * step] + data[base + 5 * step];
+                float tmp5 = data[base + 2 * step] - data[base + 5 * step];
+                float tmp3 = data[base + 3 * step] + data[base + 4 * step];
+                float tmp4 = data[base + 3 * step] - data[base + 4 * step];
+
+                // Even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[base] = tmp10 + tmp11;
+                data[base + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[base + 2 * step] = tmp13 + z1;
+                data[base + 6 * step] = tmp13 - z1;
+
+                // Odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[base + 5 * step] = z13 + z2;
+                data[base + 3 * step] = z13 - z2;
+                data[base + step] = z11 + z4;
+                data[base + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    /**
+     * @param restartInterval The number of MCUs in a stripe
+     * @return Everything from the SOI marker to the end of the SOS segment
+     */
+    private byte[] header(int width, int height, int restartInterval, int orientation) {
+        int length = 2 + 36 + (4 + 2 * 65) + (2 + 17) + (2 + 4) + (2 + 12);
+        int huffmanLength = 2 + 4 * 17 + LUMA_DC_VALUES.length + LUMA_AC_VALUES.length
+                + CHROMA_DC_VALUES.length + CHROMA_AC_VALUES.length;
+        length += 2 + huffmanLength;
+        byte[] header = new byte[length];
+        int offset = 0;
+        header[offset++] = (byte) 0xff;
+        header[offset++] = (byte) 0xd8;
+        offset += JpegExif.writeSegment(header, offset, orientation);
+
+        // DQT
+        offset = marker(header, offset, 0xdb, 2 + 2 * 65);
+        header[offset++] = 0;
+        for (int i = 0; i < 64; i++) {
+            header[offset++] = (byte) mLumaTable[i];
+        }
+        header[offset++] = 1;
+        for (int i = 0; i < 64; i++) {
+            header[offset++] = (byte) mChromaTable[i];
+        }
+
+        // SOF0: 8-bit samples, three components.
+        offset = marker(header, offset, 0xc0, 17);
+        header[offset++] = 8;
+        offset = writeShort(header, offset, height);
+        offset = writeShort(header, offset, width);
+        header[offset++] = 3;
+        header[offset++] = 1;
+        header[offset++] = (byte) ((mSubsampling.mH << 4) | mSubsampling.mV);
+        header[offset++] = 0;
+        for (int component = 2; component <= 3; component++) {
+            header[offset++] = (byte) component;
+            header[offset++] = 0x11;
+            header[offset++] = 1;
+        }
+
+        // DHT
+        offset = marker(header, offset, 0xc4, huffmanLength);
+        offset = writeHuffman(header, offset, 0x00, LUMA_DC_BITS, LUMA_DC_VALUES);
+        offset = writeHuffman(header, offset, 0x10, LUMA_AC_BITS, LUMA_AC_VALUES);
+        offset = writeHuffman(header, offset, 0x01, CHROMA_DC_BITS, CHROMA_DC_VALUES);
+        offset = writeHuffman(header, offset, 0x11, CHROMA_AC_BITS, CHROMA_AC_VALUES);
+
+        // DRI
+        offset = marker(header, offset, 0xdd, 4);
+        offset = writeShort(header, offset, restartInterval);
+
+        // SOS: all three components, luma with table 0 and chroma with table 1.
+        offset = marker(header, offset, 0xda, 12);
+        header[offset++] = 3;
+        header[offset++] = 1;
+        header[offset++] = 0x00;
+        header[offset++] = 2;
+        header[offset++] = 0x11;
+        header[offset++] = 3;
+        header[offset++] = 0x11;
+        header[offset++] = 0;
+        header[offset++] = 63;
+        header[offset] = 0;
+        return header;
+    }
+
+    private static int marker(byte[] out, int offset, int marker, int length) {
+        out[offset++] = (byte) 0xff;
+        out[offset++] = (byte) marker;
+        return writeShort(out, offset, length);
+    }
+
+    private static int writeShort(byte[] out, int offset, int value) {
+        out[offset++] = (byte) (value >> 8);
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int writeHuffman(byte[] out, int offset, int tableClassAndId, int[] bits,
+                                    int[] values) {
+        out[offset++] = (byte) tableClassAndId;
+        for (int count : bits) {
+            out[offset++] = (byte) count;
+        }
+        for (int value : values) {
+            out[offset++] = (byte) value;
+        }
+        return offset;
+    }
+
+    /**
+     * The code and code length of each symbol of a Huffman table.
+     */
+    private static final class HuffmanTable {
+
+        final int[] mCodes = new int[256];
+        final int[] mSizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    mCodes[values[k]] = code;
+                    mSizes[values[k]] = length;
+                    k++;
+                    code++;
+                }
+                code <<= 1;
+            }
+        }
+
+    }
+
+    /**
+     * Collects entropy-coded bits, stuffing a zero byte after every 0xFF.
+     */
+    private static final class BitWriter {
+
+        byte[] mBytes = new byte[16 * 1024];
+        int mLength;
+        private int mBits;
+        private int mBitCount;
+
+        void reset() {
+            mLength = 0;
+            mBits = 0;
+            mBitCount = 0;
+        }
+
+        /**
+         * Appends the low {@code size} bits of {@code value}, most significant first.
+         */
+        void write(int value, int size) {
+            mBits = (mBits << size) | (value & ((1 << size) - 1));
+            mBitCount += size;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                int b = (mBits >>> mBitCount) & 0xff;
+                put(b);
+                if (b == 0xff) {
+                    put(0);
+                }
+            }
+            mBits &= (1 << mBitCount) - 1;
+        }
+
+        /**
+         * Pads the last byte with one bits, as the standard asks before a marker.
+         */
+        void flush() {
+            if (mBitCount > 0) {
+                write(0x7f, 8 - mBitCount);
+            }
+        }
+
+        private void put(int b) {
+            if (mLength == mBytes.length) {
+                byte[] bytes = new byte[mBytes.length * 2];
+                System.arraycopy(mBytes, 0, bytes, 0, mLength);
+                mBytes = bytes;
+            }
+            mBytes[mLength++] = (byte) b;
+        }
+
+    }
+
+    /**
+     * The samples of one MCU row and the scratch space of one worker.
+     */
+    private static final class Workspace {
+
+        byte[] mLuma = new byte[0];
+        byte[] mCb = new byte[0];
+        byte[] mCr = new byte[0];
+        int mChromaStride;
+        final float[] mBlock = new float[64];
+        final int[] mCoefficients = new int[64];
+        final int[] mColumns = new int[8];
+        final int[] mPredictions = new int[3];
+        ByteBuffer mYView;
+        ByteBuffer mUView;
+        ByteBuffer mVView;
+
+        void prepare(YuvFrame frame, int paddedWidth, int mcuHeight) {
+            if (mLuma.length < paddedWidth * mcuHeight) {
+                mLuma = new byte[paddedWidth * mcuHeight];
+            }
+            mChromaStride = (frame.getWidth() + 1) / 2;
+            if (mCb.length < mChromaStride * 8) {
+                mCb = new byte[mChromaStride * 8];
+                mCr = new byte[mChromaStride * 8];
+            }
+            if (null == mYView) {
+                mYView = frame.getY().duplicate();
+                mUView = frame.getU().duplicate();
+                mVView = frame.getV().duplicate();
+            }
+        }
+
+        /**
+         * Lets go of the frame, whose buffers may be recycled once it has been encoded.
+         */
+        void release() {
+            mYView = null;
+            mUView = null;
+            mVView = null;
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+
+/**
+ * Measures the gaps between preview frames, and how much longer they get around a still capture.
+ * All timestamps are monotonic nanoseconds supplied by the caller.
+ *
+ * <p>A gap belongs to a shot when it overlaps the time from {@link #onShotStarted} until a tail
+ * after {@link #onShotFinished}. Shots are kept apart by whether preview kept streaming during
+ * the capture, so both modes can be compared in one run. Other gaps count as steady state.</p>
+ */
+class PreviewGapTracker {
+
+    private final long mTailNanos;
+
+    private final LatencyHistogram mSteadyGaps = new LatencyHistogram();
+
+    /**
+     * Gaps around shots, and the largest gap of each shot, indexed by {@link #modeOf}.
+     */
+    private final LatencyHistogram[] mShotGaps = {new LatencyHistogram(), new LatencyHistogram()};
+    private final LatencyHistogram[] mLargestShotGaps
+            = {new LatencyHistogram(), new LatencyHistogram()};
+
+    private long mLastFrameNanos = -1;
+
+    /**
+     * Mode of the shot in progress, or -1 when there is none.
+     */
+    private int mShotMode = -1;
+    private long mShotStartNanos;
+
+    /**
+     * When the shot in progress finished, or -1 while it is still running.
+     */
+    private long mShotEndNanos;
+    private long mShotLargestGap;
+
+    /**
+     * @param tailNanos How long after a shot finishes its gaps are still counted toward it
+     */
+    PreviewGapTracker(long tailNanos) {
+        mTailNanos = tailNanos;
+    }
+
+    private static int modeOf(boolean previewKept) {
+        return previewKept ? 1 : 0;
+    }
+
+    /**
+     * Records that a preview frame arrived.
+     */
+    synchronized void onFrame(long nowNanos) {
+        long last = mLastFrameNanos;
+        mLastFrameNanos = nowNanos;
+        if (last < 0) {
+            return;
+        }
+        if (mShotMode >= 0 && mShotEndNanos >= 0 && last > mShotEndNanos + mTailNanos) {
+            finishShot();
+        }
+        long gap = nowNanos - last;
+        if (mShotMode >= 0 && nowNanos >= mShotStartNanos) {
+            mShotGaps[mShotMode].record(gap);
+            if (gap > mShotLargestGap) {
+                mShotLargestGap = gap;
+            }
+        } else {
+            mSteadyGaps.record(gap);
+        }
+    }
+
+    /**
+     * Records that a still capture is about to be submitted.
+     *
+     * @param previewKept Whether the repeating preview request keeps running during the capture
+     */
+    synchronized void onShotStarted(long nowNanos, boolean previewKept) {
+        if (mShotMode >= 0) {
+            finishShot();
+        }
+        mShotMode = modeOf(previewKept);
+        mShotStartNanos = nowNanos;
+        mShotEndNanos = -1;
+        mShotLargestGap = 0;
+    }
+
+    /**
+     * Records that the shot in progress is done and preview is back to normal.
+     */
+    synchronized void onShotFinished(long nowNanos) {
+        if (mShotMode >= 0 && mShotEndNanos < 0) {
+            mShotEndNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Forgets the last frame, so that the time without a session is not counted as a gap.
+     */
+    synchronized void onSessionStarted() {
+        if (mShotMode >= 0) {
+            finishShot();
+        }
+        mLastFrameNanos = -1;
+    }
+
+    private void finishShot() {
+        if (mShotLargestGap > 0) {
+            mLargestShotGaps[mShotMode].record(mShotLargestGap);
+        }
+        mShotMode = -1;
+    }
+
+    /**
+     * @return The histogram of the gaps between preview frames away from any shot
+     */
+    LatencyHistogram getSteadyGaps() {
+        return mSteadyGaps;
+    }
+
+    /**
+     * @return The histogram of the gaps between preview frames around shots taken in the given
+     * mode
+     */
+    LatencyHistogram getShotGaps(boolean previewKept) {
+        return mShotGaps[modeOf(previewKept)];
+    }
+
+    /**
+     * @return The histogram of the largest preview gap of each shot taken in the given mode
+     */
+    LatencyHistogram getLargestShotGaps(boolean previewKept) {
+        return mLargestShotGaps[modeOf(previewKept)];
+    }
+
+    void reset() {
+        mSteadyGaps.reset();
+        for (int i = 0; i < mShotGaps.length; i++) {
+            mShotGaps[i].reset();
+            mLargestShotGaps[i].reset();
+        }
+    }
+
+    /**
+     * @return One line for the steady state, and two for each mode that shots were taken in
+     */
+    String summary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "%-24s %s%n", "STEADY", mSteadyGaps.summary()));
+        for (int i = mShotGaps.length - 1; i >= 0; i--) {
+            if (mShotGaps[i].getCount() == 0) {
+                continue;
+            }
+            String mode = i == 1 ? "PREVIEW_KEPT" : "PREVIEW_STOPPED";
+            builder.append(String.format(Locale.US, "%-24s %s%n", mode,
+                    mShotGaps[i].summary()));
+            builder.append(String.format(Locale.US, "%-24s %s%n", mode + "_LARGEST",
+                    mLargestShotGaps[i].summary()));
+        }
+        return builder.toString();
+    }
+
+}
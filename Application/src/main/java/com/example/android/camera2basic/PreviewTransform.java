@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * Computes the transform that fits the camera preview to its {@link AutoFitTextureView}, as the
+ * nine values of an {@code android.graphics.Matrix}. The transforms of the last few
+ * combinations of display rotation, view size and preview size are kept, and a miss is
+ * computed into the slot of the least recently used one. Once the cache is warm, neither
+ * hits nor misses allocate, so resize animations create no garbage on the UI thread.
+ *
+ * <p>Not thread-safe; meant to be used on the UI thread.</p>
+ */
+class PreviewTransform {
+
+    /**
+     * Number of combinations kept, enough for the sizes a view goes back and forth between.
+     */
+    static final int CACHE_SIZE = 8;
+
+    /**
+     * Number of values of a matrix, in the order of {@code Matrix.getValues}.
+     */
+    static final int VALUES = 9;
+
+    private static final int MSCALE_X = 0;
+    private static final int MSKEW_X = 1;
+    private static final int MTRANS_X = 2;
+    private static final int MSKEW_Y = 3;
+    private static final int MSCALE_Y = 4;
+    private static final int MTRANS_Y = 5;
+    private static final int MPERSP_2 = 8;
+
+    // The key of each slot, and the rotation of an empty slot is -1.
+    private final int[] mRotations = new int[CACHE_SIZE];
+    private final int[] mViewWidths = new int[CACHE_SIZE];
+    private final int[] mViewHeights = new int[CACHE_SIZE];
+    private final int[] mPreviewWidths = new int[CACHE_SIZE];
+    private final int[] mPreviewHeights = new int[CACHE_SIZE];
+    private final float[][] mValues = new float[CACHE_SIZE][VALUES];
+    private final long[] mLastUsed = new long[CACHE_SIZE];
+
+    private long mClock;
+    private long mHitCount;
+    private long mMissCount;
+
+    PreviewTransform() {
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            mRotations[i] = -1;
+        }
+    }
+
+    /**
+     * Returns the transform for the given combination, from the cache if it is there.
+     *
+     * @param rotation      The display rotation, one of the {@code Surface.ROTATION_*} values
+     * @param viewWidth     The width of the view
+     * @param viewHeight    The height of the view
+     * @param previewWidth  The width of the preview buffers, in sensor orientation
+     * @param previewHeight The height of the preview buffers, in sensor orientation
+     * @return The values of the matrix. Owned by the cache: copy them out before the next call.
+     */
+    float[] get(int rotation, int viewWidth, int viewHeight, int previewWidth,
+                int previewHeight) {
+        int victim = 0;
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            if (mRotations[i] == rotation && mViewWidths[i] == viewWidth
+                    && mViewHeights[i] == viewHeight && mPreviewWidths[i] == previewWidth
+                    && mPreviewHeights[i] == previewHeight) {
+                mHitCount++;
+                mLastUsed[i] = ++mClock;
+                return mValues[i];
+            }
+            if (mLastUsed[i] < mLastUsed[victim]) {
+                victim = i;
+            }
+        }
+        mMissCount++;
+        compute(rotation, viewWidth, viewHeight, previewWidth, previewHeight, mValues[victim]);
+        mRotations[victim] = rotation;
+        mViewWidths[victim] = viewWidth;
+        mViewHeights[victim] = viewHeight;
+        mPreviewWidths[victim] = previewWidth;
+        mPreviewHeights[victim] = previewHeight;
+        mLastUsed[victim] = ++mClock;
+        return mValues[victim];
+    }
+
+    /**
+     * Computes the transform for the given combination. In landscape the preview buffer, whose
+     * width and height are swapped relative to the view, is scaled to cover the view and
+     * rotated upright about the view's center. Upside down it is turned by 180 degrees, and
+     * otherwise the transform is the identity.
+     *
+     * @param out Receives the {@link #VALUES} values of the matrix
+     * @see #get
+     */
+    static void compute(int rotation, int viewWidth, int viewHeight, int previewWidth,
+                        int previewHeight, float[] out) {
+        for (int i = 0; i < VALUES; i++) {
+            out[i] = 0;
+        }
+        out[MPERSP_2] = 1;
+        float centerX = viewWidth / 2f;
+        float centerY = viewHeight / 2f;
+        if (1 == rotation || 3 == rotation) {
+            // Map the view onto the buffer, centered; scale that up until the buffer covers the
+            // view; then turn it by 90 degrees (counterclockwise for ROTATION_90).
+            float scale = Math.max((float) viewHeight / previewHeight,
+                    (float) viewWidth / previewWidth);
+            float scaleX = scale * previewHeight / viewWidth;
+            float scaleY = scale * previewWidth / viewHeight;
+            float sin = 1 == rotation ? -1 : 1;
+            out[MSKEW_X] = -sin * scaleY;
+            out[MTRANS_X] = sin * scale * previewWidth / 2f + centerX;
+            out[MSKEW_Y] = sin * scaleX;
+            out[MTRANS_Y] = -sin * scale * previewHeight / 2f + centerY;
+        } else if (2 == rotation) {
+            out[MSCALE_X] = -1;
+            out[MTRANS_X] = 2 * centerX;
+            out[MSCALE_Y] = -1;
+            out[MTRANS_Y] = 2 * centerY;
+        } else {
+            out[MSCALE_X] = 1;
+            out[MSCALE_Y] = 1;
+        }
+    }
+
+    long getHitCount() {
+        return mHitCount;
+    }
+
+    long getMissCount() {
+        return mMissCount;
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.DngCreator;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+/**
+ * Saves the RAW_SENSOR output of still captures as DNG files. Each RAW {@link Image} is paired
+ * with the {@link TotalCaptureResult} of its capture by sensor timestamp, and
+ * {@link DngCreator} streams the file through a small direct buffer straight to the file's
+ * channel, so no copy of the 20 MB or so of pixels is made in the Java heap.
+ *
+ * <p>Write throughput and the growth of the Java heap are measured for every shot.</p>
+ */
+class RawCapture {
+
+    private static final String TAG = "RawCapture";
+
+    /**
+     * RAW buffers: one being written while the next capture fills the other.
+     */
+    private static final int MAX_IMAGES = 2;
+
+    private static final int STAGING_BUFFER_SIZE = 256 * 1024;
+
+    private final ImageReader mImageReader;
+    private final CameraCharacteristics mCharacteristics;
+    /**
+     * Images arrive on the image thread and results on the control thread; guarded by itself.
+     */
+    private final TimestampMatcher<Image, Shot> mMatcher;
+    private final HandlerThread mWriterThread;
+    private final Handler mWriterHandler;
+    private final ByteBufferPool mStagingPool = new ByteBufferPool(1, STAGING_BUFFER_SIZE);
+
+    /**
+     * Time from the capture result to a synced DNG file.
+     */
+    private final LatencyHistogram mSaveLatency = new LatencyHistogram();
+
+    // Written on the writer thread.
+    private volatile double mLastMegabytesPerSecond;
+    private volatile long mLastHeapGrowthBytes;
+    private volatile long mPeakHeapGrowthBytes;
+
+    /**
+     * A capture whose result has arrived, waiting for its RAW image.
+     */
+    private static final class Shot {
+
+        final TotalCaptureResult mResult;
+        final File mFile;
+        final int mJpegOrientation;
+        final long mCompletedNanos;
+        final WriteBehindQueue.Callback mCallback;
+
+        Shot(TotalCaptureResult result, File file, int jpegOrientation, long completedNanos,
+             WriteBehindQueue.Callback callback) {
+            mResult = result;
+            mFile = file;
+            mJpegOrientation = jpegOrientation;
+            mCompletedNanos = completedNanos;
+            mCallback = callback;
+        }
+
+    }
+
+    /**
+     * @param size            The RAW_SENSOR output size
+     * @param characteristics The characteristics of the camera, which go into every DNG file
+     * @param imageHandler    The handler of the thread that acquires the images
+     */
+    RawCapture(Size size, CameraCharacteristics characteristics, Handler imageHandler) {
+        mCharacteristics = characteristics;
+        mMatcher = new TimestampMatcher<>(MAX_IMAGES, mMatchListener);
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.RAW_SENSOR, MAX_IMAGES);
+        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, imageHandler);
+        mWriterThread = new HandlerThread("RawWriter");
+        mWriterThread.start();
+        mWriterHandler = new Handler(mWriterThread.getLooper());
+    }
+
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (null != image) {
+                synchronized (mMatcher) {
+                    mMatcher.addImage(image.getTimestamp(), image);
+                }
+            }
+        }
+
+    };
+
+    private final TimestampMatcher.Listener<Image, Shot> mMatchListener
+            = new TimestampMatcher.Listener<Image, Shot>() {
+
+        @Override
+        public void onMatched(long timestamp, final Image image, final Shot shot) {
+            mWriterHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    write(image, shot);
+                }
+            });
+        }
+
+        @Override
+        public void onImageDropped(Image image) {
+            Log.w(TAG, "Dropping a RAW image without a capture result");
+            image.close();
+        }
+
+        @Override
+        public void onResultDropped(Shot shot) {
+            shot.mCallback.onFailed(shot.mFile, new IOException("No RAW image arrived"));
+        }
+
+    };
+
+    Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Saves the RAW image of the capture that produced {@code result} to {@code file} once it
+     * arrives.
+     *
+     * @param jpegOrientation The clockwise rotation of the picture, in degrees
+     * @param callback        Told about the outcome, on the writer thread
+     */
+    void onCaptureCompleted(TotalCaptureResult result, File file, int jpegOrientation,
+                            WriteBehindQueue.Callback callback) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (null == timestamp) {
+            callback.onFailed(file, new IOException("The capture result has no timestamp"));
+            return;
+        }
+        Shot shot = new Shot(result, file, jpegOrientation, SystemClock.elapsedRealtimeNanos(),
+                callback);
+        synchronized (mMatcher) {
+            mMatcher.addResult(timestamp, shot);
+        }
+    }
+
+    private void write(Image image, Shot shot) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        HeapSamplingStream stream = null;
+        DngCreator dng = null;
+        try {
+            FileOutputStream output = new FileOutputStream(shot.mFile);
+            try {
+                stream = new HeapSamplingStream(output.getChannel(), mStagingPool);
+                dng = new DngCreator(mCharacteristics, shot.mResult);
+                dng.setOrientation(JpegExif.orientationOf(shot.mJpegOrientation));
+                dng.writeImage(stream, image);
+                stream.close();
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to write " + shot.mFile, e);
+            shot.mCallback.onFailed(shot.mFile, e instanceof IOException
+                    ? (IOException) e : new IOException(e));
+            return;
+        } finally {
+            if (null != stream) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to release the staging buffer", e);
+                }
+            }
+            if (null != dng) {
+                dng.close();
+            }
+            image.close();
+        }
+
+        long endNanos = SystemClock.elapsedRealtimeNanos();
+        long bytes = stream.getBytesWritten();
+        double seconds = (endNanos - startNanos) / 1e9;
+        mLastMegabytesPerSecond = bytes / 1e6 / seconds;
+        mLastHeapGrowthBytes = stream.getHeapGrowth();
+        mPeakHeapGrowthBytes = Math.max(mPeakHeapGrowthBytes, mLastHeapGrowthBytes);
+        mSaveLatency.record(endNanos - shot.mCompletedNanos);
+        Log.d(TAG, String.format(Locale.US, "%s: %.1f MB in %.0f ms (%.1f MB/s), heap +%.1f MB",
+                shot.mFile.getName(), bytes / 1e6, seconds * 1000, mLastMegabytesPerSecond,
+                mLastHeapGrowthBytes / 1e6));
+        shot.mCallback.onSaved(shot.mFile, bytes, endNanos - shot.mCompletedNanos);
+    }
+
+    /**
+     * Keeps track of how far the Java heap grows while a file is written.
+     */
+    private static class HeapSamplingStream extends ChannelOutputStream {
+
+        private final Runtime mRuntime = Runtime.getRuntime();
+        private final long mHeapBefore;
+        private long mPeakHeap;
+
+        HeapSamplingStream(WritableByteChannel channel, ByteBufferPool pool)
+                throws IOException {
+            super(channel, pool);
+            mHeapBefore = mRuntime.totalMemory() - mRuntime.freeMemory();
+            mPeakHeap = mHeapBefore;
+        }
+
+        @Override
+        protected void onDrained(long bytesWritten) {
+            mPeakHeap = Math.max(mPeakHeap, mRuntime.totalMemory() - mRuntime.freeMemory());
+        }
+
+        long getHeapGrowth() {
+            return mPeakHeap - mHeapBefore;
+        }
+
+    }
+
+    /**
+     * @return Latency histogram of the time from the capture result to a synced DNG file
+     */
+    LatencyHistogram getSaveLatency() {
+        return mSaveLatency;
+    }
+
+    /**
+     * @return How fast the last DNG file was written, in megabytes per second
+     */
+    double getLastMegabytesPerSecond() {
+        return mLastMegabytesPerSecond;
+    }
+
+    /**
+     * @return How far the Java heap grew while the last DNG file was written, in bytes
+     */
+    long getLastHeapGrowthBytes() {
+        return mLastHeapGrowthBytes;
+    }
+
+    /**
+     * @return The most the Java heap grew while any DNG file was written, in bytes
+     */
+    long getPeakHeapGrowthBytes() {
+        return mPeakHeapGrowthBytes;
+    }
+
+    /**
+     * Finishes the pending writes and releases every RAW image. The camera must have been closed.
+     */
+    void close() {
+        mImageReader.setOnImageAvailableListener(null, null);
+        mWriterThread.quitSafely();
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mMatcher) {
+            mMatcher.clear();
+        }
+        mImageReader.close();
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Breaks the time from pressing the shutter to a saved file down into the stages of the capture
+ * sequence, and keeps a {@link LatencyHistogram} for each of them. All timestamps are monotonic
+ * nanoseconds supplied by the caller.
+ *
+ * <p>The histogram of a stage holds the time since the previous stage that the same shot went
+ * through, so stages that a shot skips (such as the precapture sequence when exposure has already
+ * converged) are folded into the next one.</p>
+ */
+class ShutterLagTracker {
+
+    /**
+     * The points of the capture sequence that are timed, in order.
+     */
+    enum Stage {
+        /**
+         * The shutter button was pressed and focus lock was requested.
+         */
+        SHUTTER_PRESSED,
+        /**
+         * Auto-focus reported a locked state.
+         */
+        FOCUS_LOCKED,
+        /**
+         * The auto-exposure precapture sequence was triggered.
+         */
+        PRECAPTURE_STARTED,
+        /**
+         * The still capture request was submitted.
+         */
+        CAPTURE_REQUESTED,
+        /**
+         * The captured image reached the {@code ImageReader}.
+         */
+        IMAGE_AVAILABLE,
+        /**
+         * The image file was written, synced, and closed.
+         */
+        FILE_SAVED
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] mStageHistograms = new LatencyHistogram[STAGES.length];
+
+    private final LatencyHistogram mTotal = new LatencyHistogram();
+
+    /**
+     * When the current shot reached each stage, or -1.
+     */
+    private final long[] mStageNanos = new long[STAGES.length];
+
+    private long mLastNanos = -1;
+
+    ShutterLagTracker() {
+        for (int i = 0; i < STAGES.length; i++) {
+            mStageHistograms[i] = new LatencyHistogram();
+        }
+        Arrays.fill(mStageNanos, -1);
+    }
+
+    /**
+     * Starts timing a new shot.
+     */
+    synchronized void onShutterPressed(long nowNanos) {
+        Arrays.fill(mStageNanos, -1);
+        mStageNanos[Stage.SHUTTER_PRESSED.ordinal()] = nowNanos;
+        mLastNanos = nowNanos;
+    }
+
+    /**
+     * Records that the current shot reached {@code stage}. Only the first time counts, and stages
+     * reached without a shot in progress are ignored.
+     *
+     * @param stage One of the stages up to {@link Stage#CAPTURE_REQUESTED}
+     */
+    synchronized void mark(Stage stage, long nowNanos) {
+        int index = stage.ordinal();
+        if (mLastNanos < 0 || mStageNanos[index] >= 0) {
+            return;
+        }
+        mStageNanos[index] = nowNanos;
+        mStageHistograms[index].record(nowNanos - mLastNanos);
+        mLastNanos = nowNanos;
+    }
+
+    /**
+     * Records that an image of the current shot is available. A burst produces several images
+     * per shot; each of them is timed from the capture request.
+     *
+     * @return When the shutter was pressed for this image, to be passed to {@link #onSaved}, or
+     * -1 if no shot is in progress
+     */
+    synchronized long onImageAvailable(long nowNanos) {
+        long requested = mStageNanos[Stage.CAPTURE_REQUESTED.ordinal()];
+        if (requested < 0) {
+            return -1;
+        }
+        mStageNanos[Stage.IMAGE_AVAILABLE.ordinal()] = nowNanos;
+        mStageHistograms[Stage.IMAGE_AVAILABLE.ordinal()].record(nowNanos - requested);
+        return mStageNanos[Stage.SHUTTER_PRESSED.ordinal()];
+    }
+
+    /**
+     * Records that the file of an image was saved. Safe to call from any thread.
+     *
+     * @param pressedNanos   The value returned by {@link #onImageAvailable}
+     * @param availableNanos When the image became available
+     */
+    void onSaved(long pressedNanos, long availableNanos, long nowNanos) {
+        if (pressedNanos < 0) {
+            return;
+        }
+        mStageHistograms[Stage.FILE_SAVED.ordinal()].record(nowNanos - availableNanos);
+        mTotal.record(nowNanos - pressedNanos);
+    }
+
+    /**
+     * @return The histogram of the time spent getting to {@code stage}
+     */
+    LatencyHistogram getHistogram(Stage stage) {
+        return mStageHistograms[stage.ordinal()];
+    }
+
+    /**
+     * @return The histogram of the time from pressing the shutter to a saved file
+     */
+    LatencyHistogram getTotal() {
+        return mTotal;
+    }
+
+    void reset() {
+        for (LatencyHistogram histogram : mStageHistograms) {
+            histogram.reset();
+        }
+        mTotal.reset();
+    }
+
+    /**
+     * @return One line per stage, and a last one for the whole shot
+     */
+    String summary() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i < STAGES.length; i++) {
+            builder.append(String.format(Locale.US, "%-18s %s%n", STAGES[i],
+                    mStageHistograms[i].summary()));
+        }
+        builder.append(String.format(Locale.US, "%-18s %s%n", "SHOT_TO_SAVED", mTotal.summary()));
+        return builder.toString();
+    }
+
+    /**
+     * Writes {@link #summary()} to {@code file}, replacing its contents.
+     */
+    void dump(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(summary());
+        } finally {
+            writer.close();
+        }
+    }
+
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Size;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks an output size from the sizes a camera supports for one output class. Only uses
+ * {@link Size} from the framework, so it can also be exercised on a host JVM.
+ *
+ * <p>Candidates that are larger than the maximum size or the pixel budget, that cannot keep up
+ * with the frame rate, or that stall for too long are rejected. The rest are ranked by how far
+ * their aspect ratio is from the requested one, how well they fit the display, and how long
+ * they stall. Aspect ratios within a tolerance all count as matching, so near-matching sizes
+ * such as 1920x1088 for 16:9 are not thrown away. If every candidate is rejected, the smallest
+ * one is picked, which loads the camera bus the least.</p>
+ *
+ * <p>Choices are remembered per {@link Criteria}, and each one can explain itself.</p>
+ */
+class SizeSelector {
+
+    /**
+     * Number of choices remembered; a device rarely needs more than a couple of geometries.
+     */
+    private static final int MAX_MEMOIZED = 16;
+
+    /**
+     * A candidate whose aspect ratio is out of tolerance ranks below every candidate that is
+     * within it, and a candidate that does not cover the display below every one that does.
+     * The other terms of the score are each less than 1, so their sum stays below one tier.
+     */
+    private static final double TIER = 4;
+
+    /**
+     * Stall durations are compared to this when there is no frame duration limit.
+     */
+    private static final long REFERENCE_FRAME_DURATION_NS = 33333333;
+
+    private final Size[] mSizes;
+    private final long[] mMinFrameDurations;
+    private final long[] mStallDurations;
+
+    private final LinkedHashMap<Criteria, Choice> mMemo
+            = new LinkedHashMap<Criteria, Choice>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Criteria, Choice> eldest) {
+            return size() > MAX_MEMOIZED;
+        }
+
+    };
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * What a size is picked for. Immutable, and equal criteria get the same choice.
+     */
+    static final class Criteria {
+
+        final int mTargetWidth;
+        final int mTargetHeight;
+        final int mMaxWidth;
+        final int mMaxHeight;
+        final int mAspectWidth;
+        final int mAspectHeight;
+        final float mAspectTolerance;
+        final long mMaxPixels;
+        final long mMaxFrameDurationNs;
+        final long mMaxStallDurationNs;
+
+        private Criteria(Builder builder) {
+            mTargetWidth = builder.mTargetWidth;
+            mTargetHeight = builder.mTargetHeight;
+            mMaxWidth = builder.mMaxWidth;
+            mMaxHeight = builder.mMaxHeight;
+            mAspectWidth = builder.mAspectWidth;
+            mAspectHeight = builder.mAspectHeight;
+            mAspectTolerance = builder.mAspectTolerance;
+            mMaxPixels = builder.mMaxPixels;
+            mMaxFrameDurationNs = builder.mMaxFrameDurationNs;
+            mMaxStallDurationNs = builder.mMaxStallDurationNs;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Criteria)) {
+                return false;
+            }
+            Criteria other = (Criteria) obj;
+            return mTargetWidth == other.mTargetWidth && mTargetHeight == other.mTargetHeight
+                    && mMaxWidth == other.mMaxWidth && mMaxHeight == other.mMaxHeight
+                    && mAspectWidth == other.mAspectWidth
+                    && mAspectHeight == other.mAspectHeight
+                    && mAspectTolerance == other.mAspectTolerance
+                    && mMaxPixels == other.mMaxPixels
+                    && mMaxFrameDurationNs == other.mMaxFrameDurationNs
+                    && mMaxStallDurationNs == other.mMaxStallDurationNs;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mTargetWidth;
+            hash = 31 * hash + mTargetHeight;
+            hash = 31 * hash + mMaxWidth;
+            hash = 31 * hash + mMaxHeight;
+            hash = 31 * hash + mAspectWidth;
+            hash = 31 * hash + mAspectHeight;
+            hash = 31 * hash + Float.floatToIntBits(mAspectTolerance);
+            hash = 31 * hash + (int) (mMaxPixels ^ (mMaxPixels >>> 32));
+            hash = 31 * hash + (int) (mMaxFrameDurationNs ^ (mMaxFrameDurationNs >>> 32));
+            hash = 31 * hash + (int) (mMaxStallDurationNs ^ (mMaxStallDurationNs >>> 32));
+            return hash;
+        }
+
+        /**
+         * Builds {@link Criteria}. Everything that is not set is not limited.
+         */
+        static final class Builder {
+
+            private int mTargetWidth;
+            private int mTargetHeight;
+            private int mMaxWidth = Integer.MAX_VALUE;
+            private int mMaxHeight = Integer.MAX_VALUE;
+            private int mAspectWidth;
+            private int mAspectHeight;
+            private float mAspectTolerance;
+            private long mMaxPixels = Long.MAX_VALUE;
+            private long mMaxFrameDurationNs = Long.MAX_VALUE;
+            private long mMaxStallDurationNs = Long.MAX_VALUE;
+
+            /**
+             * The size of the display the output is shown on, relative to sensor coordinate.
+             * The smallest candidate that covers it is preferred, and otherwise the largest.
+             */
+            Builder setTarget(int width, int height) {
+                mTargetWidth = width;
+                mTargetHeight = height;
+                return this;
+            }
+
+            Builder setMaxSize(int width, int height) {
+                mMaxWidth = width;
+                mMaxHeight = height;
+                return this;
+            }
+
+            /**
+             * @param tolerance How far the aspect ratio of a candidate may be off and still
+             *                  count as matching, relative to the requested ratio
+             */
+            Builder setAspectRatio(int width, int height, float tolerance) {
+                mAspectWidth = width;
+                mAspectHeight = height;
+                mAspectTolerance = tolerance;
+                return this;
+            }
+
+            Builder setMaxPixels(long pixels) {
+                mMaxPixels = pixels;
+                return this;
+            }
+
+            /**
+             * @param framesPerSecond The frame rate the output has to keep up with
+             */
+            Builder setMinFrameRate(int framesPerSecond) {
+                mMaxFrameDurationNs = 1000000000L / framesPerSecond;
+                return this;
+            }
+
+            Builder setMaxStallDuration(long durationNs) {
+                mMaxStallDurationNs = durationNs;
+                return this;
+            }
+
+            Criteria build() {
+                return new Criteria(this);
+            }
+
+        }
+
+    }
+
+    /**
+     * A picked size, with why it was picked.
+     */
+    static final class Choice {
+
+        private final Size mSize;
+        private final double mScore;
+        private final double mAspectError;
+        private final boolean mCovers;
+        private final long mMinFrameDurationNs;
+        private final long mStallDurationNs;
+        private final int mRejectedOverSize;
+        private final int mRejectedOverBudget;
+        private final int mRejectedTooSlow;
+        private final int mRejectedStalling;
+        private final boolean mRelaxed;
+
+        Choice(Size size, double score, double aspectError, boolean covers,
+               long minFrameDurationNs, long stallDurationNs, int rejectedOverSize,
+               int rejectedOverBudget, int rejectedTooSlow, int rejectedStalling,
+               boolean relaxed) {
+            mSize = size;
+            mScore = score;
+            mAspectError = aspectError;
+            mCovers = covers;
+            mMinFrameDurationNs = minFrameDurationNs;
+            mStallDurationNs = stallDurationNs;
+            mRejectedOverSize = rejectedOverSize;
+            mRejectedOverBudget = rejectedOverBudget;
+            mRejectedTooSlow = rejectedTooSlow;
+            mRejectedStalling = rejectedStalling;
+            mRelaxed = relaxed;
+        }
+
+        Size getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return The score the size was ranked by, lower is better
+         */
+        double getScore() {
+            return mScore;
+        }
+
+        /**
+         * @return Whether every candidate broke a limit, so the smallest one was taken
+         */
+        boolean isRelaxed() {
+            return mRelaxed;
+        }
+
+        /**
+         * @return Why the size was picked, e.g. for the log
+         */
+        String explain() {
+            StringBuilder text = new StringBuilder();
+            text.append(mSize);
+            if (mRelaxed) {
+                text.append(": smallest size, every candidate broke a limit");
+            } else {
+                text.append(String.format(Locale.US, ": score %.3f, aspect %.1f%% off, %s",
+                        mScore, mAspectError * 100, mCovers ? "covers the display"
+                                : "smaller than the display"));
+                if (mMinFrameDurationNs > 0) {
+                    text.append(String.format(Locale.US, ", up to %.1f fps",
+                            1e9 / mMinFrameDurationNs));
+                }
+                if (mStallDurationNs > 0) {
+                    text.append(String.format(Locale.US, ", stalls %.1f ms",
+                            mStallDurationNs / 1e6));
+                }
+            }
+            text.append(String.format(Locale.US,
+                    "; rejected %d over the maximum size, %d over the pixel budget,"
+                            + " %d too slow, %d stalling too long",
+                    mRejectedOverSize, mRejectedOverBudget, mRejectedTooSlow, mRejectedStalling));
+            return text.toString();
+        }
+
+        @Override
+        public String toString() {
+            return explain();
+        }
+
+    }
+
+    /**
+     * @param sizes             The sizes the camera supports for the output class
+     * @param minFrameDurations The minimum frame duration of each size in nanoseconds, from
+     *                          {@code StreamConfigurationMap#getOutputMinFrameDuration}, or null
+     *                          if unknown
+     * @param stallDurations    The stall duration of each size in nanoseconds, from
+     *                          {@code StreamConfigurationMap#getOutputStallDuration}, or null if
+     *                          the output class does not stall
+     */
+    SizeSelector(Size[] sizes, long[] minFrameDurations, long[] stallDurations) {
+        if (sizes.length == 0) {
+            throw new IllegalArgumentException("No sizes to select from");
+        }
+        mSizes = sizes;
+        mMinFrameDurations = null != minFrameDurations ? minFrameDurations : new long[sizes.length];
+        mStallDurations = null != stallDurations ? stallDurations : new long[sizes.length];
+    }
+
+    /**
+     * @return The best size for {@code criteria}, remembered from an earlier call if there was
+     * one
+     */
+    synchronized Choice select(Criteria criteria) {
+        Choice choice = mMemo.get(criteria);
+        if (null != choice) {
+            mHitCount++;
+            return choice;
+        }
+        mMissCount++;
+        choice = choose(criteria);
+        mMemo.put(criteria, choice);
+        return choice;
+    }
+
+    private Choice choose(Criteria criteria) {
+        int overSize = 0;
+        int overBudget = 0;
+        int tooSlow = 0;
+        int stalling = 0;
+        int best = -1;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < mSizes.length; i++) {
+            Size size = mSizes[i];
+            if (size.getWidth() > criteria.mMaxWidth || size.getHeight() > criteria.mMaxHeight) {
+                overSize++;
+            } else if ((long) size.getWidth() * size.getHeight() > criteria.mMaxPixels) {
+                overBudget++;
+            } else if (mMinFrameDurations[i] > criteria.mMaxFrameDurationNs) {
+                tooSlow++;
+            } else if (mStallDurations[i] > criteria.mMaxStallDurationNs) {
+                stalling++;
+            } else {
+                double score = score(criteria, size, mStallDurations[i]);
+                if (score < bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+        }
+        boolean relaxed = best < 0;
+        if (relaxed) {
+            best = 0;
+            for (int i = 1; i < mSizes.length; i++) {
+                if (area(mSizes[i]) < area(mSizes[best])) {
+                    best = i;
+                }
+            }
+            bestScore = score(criteria, mSizes[best], mStallDurations[best]);
+        }
+        Size size = mSizes[best];
+        return new Choice(size, bestScore, aspectError(criteria, size), covers(criteria, size),
+                mMinFrameDurations[best], mStallDurations[best], overSize, overBudget, tooSlow,
+                stalling, relaxed);
+    }
+
+    /**
+     * Scores a candidate that is within the limits; lower is better.
+     */
+    static double score(Criteria criteria, Size size, long stallDurationNs) {
+        double score = 0;
+        double aspectError = aspectError(criteria, size);
+        if (aspectError > criteria.mAspectTolerance) {
+            score += 2 * TIER;
+        }
+        // Every term below is in [0, 1) and grows with what is wrong about the candidate.
+        score += aspectError / (aspectError + criteria.mAspectTolerance + Double.MIN_VALUE);
+        double targetPixels = (double) criteria.mTargetWidth * criteria.mTargetHeight;
+        if (covers(criteria, size)) {
+            // Pixels beyond the display only cost bandwidth.
+            score += targetPixels > 0 ? 1 - targetPixels / area(size) : 0;
+        } else {
+            score += TIER + 1 - area(size) / targetPixels;
+        }
+        long reference = criteria.mMaxFrameDurationNs != Long.MAX_VALUE
+                ? criteria.mMaxFrameDurationNs : REFERENCE_FRAME_DURATION_NS;
+        score += (double) stallDurationNs / (stallDurationNs + reference);
+        return score;
+    }
+
+    /**
+     * @return How far the aspect ratio of {@code size} is from the requested one, relative to
+     * it, or 0 if no aspect ratio was requested
+     */
+    private static double aspectError(Criteria criteria, Size size) {
+        if (criteria.mAspectWidth <= 0 || criteria.mAspectHeight <= 0) {
+            return 0;
+        }
+        double requested = (double) criteria.mAspectWidth / criteria.mAspectHeight;
+        double actual = (double) size.getWidth() / size.getHeight();
+        return Math.abs(actual - requested) / requested;
+    }
+
+    private static boolean covers(Criteria criteria, Size size) {
+        return size.getWidth() >= criteria.mTargetWidth
+                && size.getHeight() >= criteria.mTargetHeight;
+    }
+
+    private static double area(Size size) {
+        return (double) size.getWidth() * size.getHeight();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+}
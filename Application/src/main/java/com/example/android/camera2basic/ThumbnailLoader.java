@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decodes captures into thumbnails for reviewing them. JPEG files are decoded with a power-of-two
+ * subsampling, so only a fraction of their pixels is ever produced, into a
+ * {@link ByteBoundedLruCache}. Bitmaps that are evicted are decoded into again instead of being
+ * left to the garbage collector.
+ *
+ * <p>Thumbnails that are asked for go ahead of those that are prefetched for the neighbours of
+ * the visible ones, and prefetches for a position the review strip has scrolled away from are
+ * skipped. The EXIF orientation is left to the view that shows a thumbnail.</p>
+ *
+ * <p>Since evicted thumbnails are decoded into again, the cache has to be large enough for all
+ * the thumbnails on screen at once.</p>
+ */
+class ThumbnailLoader {
+
+    private static final String TAG = "ThumbnailLoader";
+
+    /**
+     * Evicted bitmaps kept for decoding into.
+     */
+    private static final int MAX_REUSABLE_BITMAPS = 4;
+
+    /**
+     * Receives a thumbnail on the main thread.
+     */
+    interface Callback {
+
+        /**
+         * @param thumbnail The thumbnail, or null if {@code file} could not be decoded
+         */
+        void onThumbnail(File file, Bitmap thumbnail);
+
+    }
+
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+    private final ByteBoundedLruCache<File, Bitmap> mCache;
+    private final HandlerThread mDecoderThread;
+    private final Handler mDecoderHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Time to decode one thumbnail.
+     */
+    private final LatencyHistogram mDecodeTime = new LatencyHistogram();
+
+    // Guarded by mReusable.
+    private final List<Bitmap> mReusable = new ArrayList<>(MAX_REUSABLE_BITMAPS);
+
+    // Guarded by mPending.
+    private final Set<File> mPending = new HashSet<>();
+
+    /**
+     * Incremented by every {@link #prefetchAround}, which makes the earlier ones stale.
+     */
+    private volatile int mPrefetchGeneration;
+
+    private volatile boolean mClosed;
+
+    /**
+     * @param maxBytes     The most memory the cached thumbnails may take up
+     * @param targetWidth  The width thumbnails are shown at, in pixels
+     * @param targetHeight The height thumbnails are shown at, in pixels
+     */
+    ThumbnailLoader(long maxBytes, int targetWidth, int targetHeight) {
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+        mCache = new ByteBoundedLruCache<File, Bitmap>(maxBytes) {
+
+            @Override
+            protected int sizeOf(File file, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void onEvicted(File file, Bitmap bitmap) {
+                recycleLater(bitmap);
+            }
+
+        };
+        mDecoderThread = new HandlerThread("ThumbnailDecoder", Process.THREAD_PRIORITY_BACKGROUND);
+        mDecoderThread.start();
+        mDecoderHandler = new Handler(mDecoderThread.getLooper());
+    }
+
+    /**
+     * @return The largest power of two by which a {@code width} x {@code height} image can be
+     * subsampled and still cover {@code targetWidth} x {@code targetHeight}
+     */
+    static int sampleSizeFor(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Gets the thumbnail of {@code file}, decoding it ahead of any prefetches if it is not
+     * cached.
+     *
+     * @return The cached thumbnail, or null if {@code callback} will receive it
+     */
+    Bitmap load(final File file, final Callback callback) {
+        Bitmap cached = mCache.get(file);
+        if (null != cached) {
+            return cached;
+        }
+        mDecoderHandler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumbnail = getOrDecode(file);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onThumbnail(file, thumbnail);
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Decodes the thumbnail of {@code file} in the background if it is not cached, for instance
+     * right after it has been saved.
+     */
+    void prefetch(File file) {
+        schedulePrefetch(file, mPrefetchGeneration);
+    }
+
+    /**
+     * Decodes the thumbnails of up to {@code radius} files on either side of {@code position},
+     * nearest first, and skips the prefetches of earlier positions that have not started yet.
+     */
+    void prefetchAround(List<File> files, int position, int radius) {
+        int generation = ++mPrefetchGeneration;
+        for (int distance = 1; distance <= radius; distance++) {
+            if (position + distance < files.size()) {
+                schedulePrefetch(files.get(position + distance), generation);
+            }
+            if (position - distance >= 0) {
+                schedulePrefetch(files.get(position - distance), generation);
+            }
+        }
+    }
+
+    private void schedulePrefetch(final File file, final int generation) {
+        if (null != mCache.peek(file)) {
+            return;
+        }
+        synchronized (mPending) {
+            if (!mPending.add(file)) {
+                return;
+            }
+        }
+        mDecoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPending) {
+                    mPending.remove(file);
+                }
+                if (generation == mPrefetchGeneration) {
+                    getOrDecode(file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs on the decoder thread.
+     */
+    private Bitmap getOrDecode(File file) {
+        Bitmap cached = mCache.peek(file);
+        if (null != cached) {
+            return cached;
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(TAG, "Cannot decode " + file);
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeFor(options.outWidth, options.outHeight,
+                mTargetWidth, mTargetHeight);
+        options.inMutable = true;
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = takeReusable(width * height * 4);
+        Bitmap thumbnail;
+        try {
+            thumbnail = BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The reused bitmap did not fit after all.
+            options.inBitmap = null;
+            thumbnail = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        if (null == thumbnail) {
+            Log.w(TAG, "Cannot decode " + file);
+            return null;
+        }
+        mDecodeTime.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+        mCache.put(file, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * @return A reusable bitmap with room for {@code bytes}, or null
+     */
+    private Bitmap takeReusable(int bytes) {
+        synchronized (mReusable) {
+            for (Iterator<Bitmap> iterator = mReusable.iterator(); iterator.hasNext(); ) {
+                Bitmap bitmap = iterator.next();
+                if (bitmap.getAllocationByteCount() >= bytes) {
+                    iterator.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps an evicted bitmap for decoding into. It is only reused once the main thread has
+     * handled everything posted so far, so a callback that was given it has already run.
+     */
+    private void recycleLater(final Bitmap bitmap) {
+        if (!bitmap.isMutable()) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                synchronized (mReusable) {
+                    if (mReusable.size() == MAX_REUSABLE_BITMAPS) {
+                        mReusable.remove(0);
+                    }
+                    mReusable.add(bitmap);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The share of thumbnail lookups that were served from memory
+     */
+    double getHitRate() {
+        return mCache.getHitRate();
+    }
+
+    /**
+     * @return Latency histogram of the time to decode one thumbnail
+     */
+    LatencyHistogram getDecodeTime() {
+        return mDecodeTime;
+    }
+
+    String summary() {
+        return String.format(Locale.US,
+                "%d thumbnails in %d of %d KB, hit rate %.0f%%, %d evicted, decode %s",
+                mCache.getCount(), mCache.getBytes() / 1024, mCache.getMaxBytes() / 1024,
+                mCache.getHitRate() * 100, mCache.getEvictionCount(), mDecodeTime.summary());
+    }
+
+    /**
+     * Stops decoding and empties the cache. Thumbnails that are still shown stay valid.
+     */
+    void close() {
+        mClosed = true;
+        mDecoderThread.quitSafely();
+        try {
+            mDecoderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mCache.evictAll();
+        synchronized (mReusable) {
+            mReusable.clear();
+        }
+    }
+
+}
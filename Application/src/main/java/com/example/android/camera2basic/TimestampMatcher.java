@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pairs images with their capture results, which arrive separately and in no particular order,
+ * by sensor timestamp. At most {@code capacity} of each are kept waiting; beyond that the oldest
+ * one is given up on, so that a capture that failed halfway does not hold an image forever.
+ *
+ * <p>Not thread-safe.</p>
+ *
+ * @param <I> The type of the images
+ * @param <R> The type of the results
+ */
+class TimestampMatcher<I, R> {
+
+    interface Listener<I, R> {
+
+        void onMatched(long timestamp, I image, R result);
+
+        /**
+         * No result came for {@code image}. The image should be closed.
+         */
+        void onImageDropped(I image);
+
+        /**
+         * No image came for {@code result}.
+         */
+        void onResultDropped(R result);
+
+    }
+
+    private final int mCapacity;
+    private final Listener<I, R> mListener;
+    private final LinkedHashMap<Long, I> mImages = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, R> mResults = new LinkedHashMap<>();
+
+    TimestampMatcher(int capacity, Listener<I, R> listener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        mCapacity = capacity;
+        mListener = listener;
+    }
+
+    void addImage(long timestamp, I image) {
+        R result = mResults.remove(timestamp);
+        if (null != result) {
+            mListener.onMatched(timestamp, image, result);
+            return;
+        }
+        if (mImages.size() == mCapacity) {
+            mListener.onImageDropped(removeOldest(mImages));
+        }
+        mImages.put(timestamp, image);
+    }
+
+    void addResult(long timestamp, R result) {
+        I image = mImages.remove(timestamp);
+        if (null != image) {
+            mListener.onMatched(timestamp, image, result);
+            return;
+        }
+        if (mResults.size() == mCapacity) {
+            mListener.onResultDropped(removeOldest(mResults));
+        }
+        mResults.put(timestamp, result);
+    }
+
+    /**
+     * @return The number of images and results waiting for their counterpart
+     */
+    int getPendingCount() {
+        return mImages.size() + mResults.size();
+    }
+
+    /**
+     * Gives up on everything that is waiting.
+     */
+    void clear() {
+        for (I image : mImages.values()) {
+            mListener.onImageDropped(image);
+        }
+        mImages.clear();
+        for (R result : mResults.values()) {
+            mListener.onResultDropped(result);
+        }
+        mResults.clear();
+    }
+
+    private static <T> T removeOldest(Map<Long, T> map) {
+        Iterator<T> iterator = map.values().iterator();
+        T oldest = iterator.next();
+        iterator.remove();
+        return oldest;
+    }
+
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A write-behind stage between the camera and storage. Captures are queued and written by a few
+ * writer threads, then made durable by a single sync thread that fsyncs several files per batch.
+ * The camera payload is released as soon as its bytes are written, so the {@code ImageReader}
+ * gets its buffers back without waiting for the flash to acknowledge the sync.
+ *
+ * <p>Only a bounded number of camera payloads may be held at once; what happens when that bound
+ * is reached is decided by the {@link OverflowPolicy}.</p>
+ */
+class WriteBehindQueue {
+
+    /**
+     * What {@link #submit} does when the queue already holds the maximum number of payloads.
+     */
+    enum OverflowPolicy {
+        /**
+         * Wait until a writer releases a payload. This stalls the submitting (camera) thread.
+         */
+        BLOCK,
+        /**
+         * Release the payload without writing it and report it as dropped.
+         */
+        DROP,
+        /**
+         * Copy the payload into the heap and release it right away, as long as the spill budget
+         * allows; otherwise behave like {@link #BLOCK}.
+         */
+        SPILL
+    }
+
+    /**
+     * The data of a single capture.
+     */
+    interface Payload {
+
+        /**
+         * @return The bytes to write, from position to limit
+         */
+        ByteBuffer getBuffer();
+
+        /**
+         * Gives the underlying memory back to its owner. Called exactly once.
+         */
+        void release();
+
+    }
+
+    /**
+     * Receives the outcome of a single capture. Called on one of the queue's threads, or on the
+     * submitting thread for dropped captures.
+     */
+    interface Callback {
+
+        /**
+         * The file has been written and synced to storage.
+         *
+         * @param bytes        The size of the file
+         * @param latencyNanos Time from {@link #submit} until the file was synced
+         */
+        void onSaved(File file, long bytes, long latencyNanos);
+
+        /**
+         * Writing or syncing the file failed.
+         */
+        void onFailed(File file, IOException e);
+
+        /**
+         * The capture was discarded because of {@link OverflowPolicy#DROP}.
+         */
+        void onDropped(File file);
+
+    }
+
+    /**
+     * Creates {@link WriteBehindQueue}s.
+     */
+    static class Builder {
+
+        private int mWriters = 2;
+        private int mCapacity = 4;
+        private OverflowPolicy mPolicy = OverflowPolicy.BLOCK;
+        private long mMaxSpillBytes = 0;
+        private int mSyncBatchSize = 4;
+        private long mSyncDelayMs = 100;
+        private int mThreadPriority = Process.THREAD_PRIORITY_DEFAULT;
+
+        /**
+         * @param writers The number of threads writing files concurrently
+         */
+        Builder setWriters(int writers) {
+            mWriters = writers;
+            return this;
+        }
+
+        /**
+         * @param capacity The number of camera payloads the queue may hold at once
+         */
+        Builder setCapacity(int capacity) {
+            mCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param policy        What to do when {@code capacity} payloads are held
+         * @param maxSpillBytes Heap budget for {@link OverflowPolicy#SPILL}
+         */
+        Builder setOverflowPolicy(OverflowPolicy policy, long maxSpillBytes) {
+            mPolicy = policy;
+            mMaxSpillBytes = maxSpillBytes;
+            return this;
+        }
+
+        /**
+         * @param batchSize The number of files synced together
+         * @param delayMs   The longest a written file waits for its batch to fill up
+         */
+        Builder setSyncBatch(int batchSize, long delayMs) {
+            mSyncBatchSize = batchSize;
+            mSyncDelayMs = delayMs;
+            return this;
+        }
+
+        /**
+         * @param priority The {@link Process} priority of the writer and syncer threads
+         */
+        Builder setThreadPriority(int priority) {
+            mThreadPriority = priority;
+            return this;
+        }
+
+        WriteBehindQueue build() {
+            if (mWriters < 1 || mCapacity < 1 || mSyncBatchSize < 1 || mSyncDelayMs < 0
+                    || mMaxSpillBytes < 0) {
+                throw new IllegalArgumentException("Invalid write-behind configuration.");
+            }
+            return new WriteBehindQueue(this);
+        }
+
+    }
+
+    /**
+     * Size of the staging buffers used when a payload is not a direct buffer.
+     */
+    private static final int STAGING_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * A capture waiting to be written.
+     */
+    private static class Entry {
+
+        final Payload mPayload;
+        final File mFile;
+        final Callback mCallback;
+        final long mSubmittedNanos;
+        final boolean mSpilled;
+        FileOutputStream mOutput;
+        long mBytes;
+
+        Entry(Payload payload, File file, Callback callback, long submittedNanos,
+              boolean spilled) {
+            mPayload = payload;
+            mFile = file;
+            mCallback = callback;
+            mSubmittedNanos = submittedNanos;
+            mSpilled = spilled;
+        }
+
+    }
+
+    /**
+     * A copy of a payload in the Java heap.
+     */
+    private static class HeapPayload implements Payload {
+
+        private final ByteBuffer mBuffer;
+
+        HeapPayload(ByteBuffer source) {
+            mBuffer = ByteBuffer.allocate(source.remaining());
+            mBuffer.put(source);
+            mBuffer.flip();
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        @Override
+        public void release() {
+        }
+
+    }
+
+    private final OverflowPolicy mPolicy;
+    private final int mCapacity;
+    private final long mMaxSpillBytes;
+    private final int mSyncBatchSize;
+    private final long mSyncDelayNanos;
+
+    private final BlockingQueue<Entry> mWriteQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Entry> mSyncQueue = new LinkedBlockingQueue<>();
+    private final ByteBufferPool mStagingBuffers;
+    private final List<Thread> mThreads = new ArrayList<>();
+
+    /**
+     * Guards every field below and is notified whenever one of them decreases.
+     */
+    private final Object mLock = new Object();
+    private int mHeld;
+    private long mSpillBytes;
+    private int mPending;
+    private int mPeakPending;
+    private int mSavedCount;
+    private int mDroppedCount;
+    private int mSpilledCount;
+    private int mSyncBatchCount;
+    private boolean mShutdown;
+
+    private WriteBehindQueue(Builder builder) {
+        mPolicy = builder.mPolicy;
+        mCapacity = builder.mCapacity;
+        mMaxSpillBytes = builder.mMaxSpillBytes;
+        mSyncBatchSize = builder.mSyncBatchSize;
+        mSyncDelayNanos = TimeUnit.MILLISECONDS.toNanos(builder.mSyncDelayMs);
+        mStagingBuffers = new ByteBufferPool(builder.mWriters, STAGING_BUFFER_SIZE);
+        final int priority = builder.mThreadPriority;
+        for (int i = 0; i < builder.mWriters; i++) {
+            mThreads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(priority);
+                    runWriter();
+                }
+            }, "StorageWriter-" + (i + 1)));
+        }
+        mThreads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(priority);
+                runSyncer();
+            }
+        }, "StorageSyncer"));
+        for (Thread thread : mThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues {@code payload} to be written to {@code file}. Depending on the
+     * {@link OverflowPolicy} this may block until a writer makes room.
+     *
+     * @param callback Notified when the capture is saved, fails, or is dropped; may be null
+     */
+    void submit(Payload payload, File file, Callback callback) throws InterruptedException {
+        long now = System.nanoTime();
+        boolean spilled = false;
+        synchronized (mLock) {
+            while (!mShutdown && mHeld >= mCapacity) {
+                if (mPolicy == OverflowPolicy.DROP) {
+                    break;
+                }
+                if (mPolicy == OverflowPolicy.SPILL) {
+                    long size = payload.getBuffer().remaining();
+                    if (mSpillBytes + size <= mMaxSpillBytes) {
+                        mSpillBytes += size;
+                        mSpilledCount++;
+                        spilled = true;
+                        break;
+                    }
+                }
+                mLock.wait();
+            }
+            if (mShutdown || (!spilled && mHeld >= mCapacity)) {
+                mDroppedCount++;
+                payload.release();
+                if (null != callback) {
+                    callback.onDropped(file);
+                }
+                return;
+            }
+            if (!spilled) {
+                mHeld++;
+            }
+            mPending++;
+            if (mPending > mPeakPending) {
+                mPeakPending = mPending;
+            }
+        }
+        if (spilled) {
+            Payload copy = new HeapPayload(payload.getBuffer());
+            payload.release();
+            payload = copy;
+        }
+        mWriteQueue.add(new Entry(payload, file, callback, now, spilled));
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                Entry entry = mWriteQueue.take();
+                try {
+                    entry.mOutput = new FileOutputStream(entry.mFile);
+                    entry.mBytes = ImageFileWriter.write(entry.mPayload.getBuffer(),
+                            entry.mOutput.getChannel(), mStagingBuffers);
+                } catch (IOException e) {
+                    releasePayload(entry);
+                    closeQuietly(entry);
+                    finish(entry, e);
+                    continue;
+                }
+                releasePayload(entry);
+                mSyncQueue.add(entry);
+            }
+        } catch (InterruptedException e) {
+            // Shutting down.
+        }
+    }
+
+    private void runSyncer() {
+        List<Entry> batch = new ArrayList<>(mSyncBatchSize);
+        try {
+            while (true) {
+                batch.add(mSyncQueue.take());
+                long deadline = System.nanoTime() + mSyncDelayNanos;
+                while (batch.size() < mSyncBatchSize) {
+                    Entry next = mSyncQueue.poll(deadline - System.nanoTime(),
+                            TimeUnit.NANOSECONDS);
+                    if (null == next) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                syncBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down. Clear the interrupt so that it does not close the channels, and
+            // sync what has been written so far.
+            Thread.interrupted();
+            mSyncQueue.drainTo(batch);
+            syncBatch(batch);
+        }
+    }
+
+    private void syncBatch(List<Entry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (Entry entry : batch) {
+            IOException error = null;
+            try {
+                entry.mOutput.getChannel().force(true);
+                entry.mOutput.close();
+            } catch (IOException e) {
+                closeQuietly(entry);
+                error = e;
+            }
+            finish(entry, error);
+        }
+        synchronized (mLock) {
+            mSyncBatchCount++;
+        }
+    }
+
+    /**
+     * Releases the payload of {@code entry} and makes room for another one.
+     */
+    private void releasePayload(Entry entry) {
+        entry.mPayload.release();
+        synchronized (mLock) {
+            if (entry.mSpilled) {
+                mSpillBytes -= entry.mPayload.getBuffer().capacity();
+            } else {
+                mHeld--;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Reports the outcome of {@code entry}, which no longer counts as pending afterwards.
+     */
+    private void finish(Entry entry, IOException error) {
+        if (null != entry.mCallback) {
+            if (null == error) {
+                entry.mCallback.onSaved(entry.mFile, entry.mBytes,
+                        System.nanoTime() - entry.mSubmittedNanos);
+            } else {
+                entry.mCallback.onFailed(entry.mFile, error);
+            }
+        }
+        synchronized (mLock) {
+            mPending--;
+            if (null == error) {
+                mSavedCount++;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    private static void closeQuietly(Entry entry) {
+        if (null != entry.mOutput) {
+            try {
+                entry.mOutput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return The number of captures that were accepted and are not synced yet
+     */
+    int getQueueDepth() {
+        synchronized (mLock) {
+            return mPending;
+        }
+    }
+
+    /**
+     * @return The largest queue depth observed since the last {@link #resetPeak()}
+     */
+    int getPeakQueueDepth() {
+        synchronized (mLock) {
+            return mPeakPending;
+        }
+    }
+
+    /**
+     * Starts tracking the peak queue depth from the current depth.
+     */
+    void resetPeak() {
+        synchronized (mLock) {
+            mPeakPending = mPending;
+        }
+    }
+
+    int getSavedCount() {
+        synchronized (mLock) {
+            return mSavedCount;
+        }
+    }
+
+    int getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+
+    int getSpilledCount() {
+        synchronized (mLock) {
+            return mSpilledCount;
+        }
+    }
+
+    /**
+     * @return The number of fsync batches so far; compare with {@link #getSavedCount()} to see
+     * how many files each batch covered on average
+     */
+    int getSyncBatchCount() {
+        synchronized (mLock) {
+            return mSyncBatchCount;
+        }
+    }
+
+    /**
+     * Blocks until every accepted capture has been saved or has failed, or the timeout elapses.
+     *
+     * @param timeoutMs The maximum time to wait in milliseconds
+     * @return Whether the queue became idle before the timeout
+     */
+    boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (mLock) {
+            while (mPending > 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                mLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stops accepting captures, waits a bounded time for the accepted ones, and stops the
+     * threads.
+     *
+     * @param timeoutMs The maximum time to wait for pending captures
+     */
+    void shutdown(long timeoutMs) {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+        try {
+            awaitIdle(timeoutMs);
+            for (Thread thread : mThreads) {
+                thread.interrupt();
+            }
+            for (Thread thread : mThreads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything the writers did not get to is given back unwritten.
+        List<Entry> unwritten = new ArrayList<>();
+        mWriteQueue.drainTo(unwritten);
+        for (Entry entry : unwritten) {
+            releasePayload(entry);
+            finish(entry, new IOException("Write-behind queue was shut down."));
+        }
+    }
+
+}
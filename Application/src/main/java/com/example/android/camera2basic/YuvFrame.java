@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The three planes of a YUV 4:2:0 frame as the camera lays them out in a {@code YUV_420_888}
+ * image: each plane has its own row stride, and the chroma planes may be interleaved, in which
+ * case their pixel stride is 2. Unlike {@code android.media.Image}, this can be built on a host.
+ */
+final class YuvFrame {
+
+    /**
+     * One plane of samples. Sample (x, y) is at {@code y * rowStride + x * pixelStride}.
+     */
+    static final class Plane {
+
+        private final ByteBuffer mBuffer;
+        private final int mRowStride;
+        private final int mPixelStride;
+
+        Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            mBuffer = buffer;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+        }
+
+        /**
+         * Copies {@code count} samples of row {@code y}, starting at column 0, into {@code out}.
+         *
+         * @param view A duplicate of the buffer owned by the calling thread, whose position may be
+         *             changed
+         */
+        void copyRow(ByteBuffer view, int y, int count, byte[] out, int offset) {
+            int start = y * mRowStride;
+            if (mPixelStride == 1) {
+                view.position(start);
+                view.get(out, offset, count);
+            } else {
+                for (int x = 0; x < count; x++) {
+                    out[offset + x] = view.get(start + x * mPixelStride);
+                }
+            }
+        }
+
+        int getRowStride() {
+            return mRowStride;
+        }
+
+        int getPixelStride() {
+            return mPixelStride;
+        }
+
+        /**
+         * @return The samples, for absolute reads only, which any thread may do at once
+         */
+        ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * @return A view of the samples that can be read from another thread
+         */
+        ByteBuffer duplicate() {
+            return mBuffer.duplicate();
+        }
+
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Plane mY;
+    private final Plane mU;
+    private final Plane mV;
+
+    YuvFrame(int width, int height, Plane y, Plane u, Plane v) {
+        mWidth = width;
+        mHeight = height;
+        mY = y;
+        mU = u;
+        mV = v;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    Plane getY() {
+        return mY;
+    }
+
+    /**
+     * @return The Cb plane, at half the width and height of the frame, rounded up
+     */
+    Plane getU() {
+        return mU;
+    }
+
+    /**
+     * @return The Cr plane, at half the width and height of the frame, rounded up
+     */
+    Plane getV() {
+        return mV;
+    }
+
+}
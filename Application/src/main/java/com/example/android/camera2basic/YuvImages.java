@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+
+/**
+ * Wraps {@code YUV_420_888} images as {@link YuvFrame}s for the code that also runs on a host.
+ */
+final class YuvImages {
+
+    private YuvImages() {
+    }
+
+    /**
+     * @return A frame over the planes of {@code image}, which is only valid until the image is
+     * closed
+     */
+    static YuvFrame toFrame(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        return new YuvFrame(image.getWidth(), image.getHeight(), toPlane(planes[0]),
+                toPlane(planes[1]), toPlane(planes[2]));
+    }
+
+    private static YuvFrame.Plane toPlane(Image.Plane plane) {
+        return new YuvFrame.Plane(plane.getBuffer(), plane.getRowStride(),
+                plane.getPixelStride());
+    }
+
+}
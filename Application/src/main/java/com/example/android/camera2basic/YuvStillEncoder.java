@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns YUV still captures into JPEG files with a {@link ParallelJpegEncoder}, so the quality and
+ * chroma subsampling can be chosen, and bursts are not limited by the camera's JPEG encoder.
+ *
+ * <p>Images are encoded one after another on an encoder thread, each of them on all cores.</p>
+ */
+class YuvStillEncoder {
+
+    private static final String TAG = "YuvStillEncoder";
+
+    /**
+     * Receives the outcome of an encode on the encoder thread.
+     */
+    interface Callback {
+
+        /**
+         * @param jpeg The encoded picture, with its orientation tag
+         */
+        void onEncoded(byte[] jpeg);
+
+        void onFailed(RuntimeException e);
+
+    }
+
+    private final ForkJoinPool mPool;
+    private final ParallelJpegEncoder mEncoder;
+    private final HandlerThread mEncoderThread;
+    private final Handler mEncoderHandler;
+
+    /**
+     * Time from handing an image over to having its JPEG data.
+     */
+    private final LatencyHistogram mEncodeLatency = new LatencyHistogram();
+
+    /**
+     * @param quality From 1 to 100
+     */
+    YuvStillEncoder(int quality, ParallelJpegEncoder.Subsampling subsampling) {
+        mPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        mEncoder = new ParallelJpegEncoder(mPool, quality, subsampling);
+        mEncoderThread = new HandlerThread("YuvEncoder");
+        mEncoderThread.start();
+        mEncoderHandler = new Handler(mEncoderThread.getLooper());
+    }
+
+    /**
+     * Encodes {@code image} in the background and closes it.
+     *
+     * @param image           A {@code YUV_420_888} image
+     * @param jpegOrientation The clockwise rotation of the picture, in degrees
+     */
+    void encode(final Image image, final int jpegOrientation, final Callback callback) {
+        final long submittedNanos = SystemClock.elapsedRealtimeNanos();
+        mEncoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                byte[] jpeg;
+                try {
+                    jpeg = mEncoder.encode(YuvImages.toFrame(image), jpegOrientation);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to encode a YUV capture", e);
+                    callback.onFailed(e);
+                    return;
+                } finally {
+                    image.close();
+                }
+                mEncodeLatency.record(SystemClock.elapsedRealtimeNanos() - submittedNanos);
+                callback.onEncoded(jpeg);
+            }
+        });
+    }
+
+    /**
+     * @return Latency histogram of the time from {@link #encode} to the JPEG data
+     */
+    LatencyHistogram getEncodeLatency() {
+        return mEncodeLatency;
+    }
+
+    /**
+     * Finishes the pending encodes, which closes their images, and stops the threads. Must be
+     * called before the {@code ImageReader} the images came from is closed.
+     */
+    void close() {
+        mEncoderThread.quitSafely();
+        try {
+            mEncoderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mPool.shutdown();
+        try {
+            mPool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
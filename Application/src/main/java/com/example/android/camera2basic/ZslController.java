@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Zero-shutter-lag capture. Keeps the most recent full-resolution YUV frames of the repeating
+ * request in a {@link ZslRingBuffer} and, when the shutter is pressed, encodes the frame closest
+ * to the press instead of running a new capture sequence.
+ *
+ * <p>Memory is bounded by the number of {@link ImageReader} buffers, which is derived from a
+ * byte budget: the ring, the frames being encoded, and one buffer for the incoming frame.</p>
+ */
+class ZslController {
+
+    private static final String TAG = "ZslController";
+
+    /**
+     * Frames that may be waiting for or in the encoder at once.
+     */
+    static final int MAX_PENDING_ENCODES = 1;
+
+    private static final int JPEG_QUALITY = 95;
+
+    /**
+     * Receives the encoded picture on the encoder thread.
+     */
+    interface Callback {
+
+        /**
+         * @param jpeg            The encoded picture, with its orientation tag
+         * @param sensorTimestamp The sensor timestamp of the frame
+         * @param selectedNanos   When the frame was picked from the ring
+         */
+        void onEncoded(byte[] jpeg, long sensorTimestamp, long selectedNanos);
+
+        /**
+         * No frame was available, or it could not be encoded.
+         */
+        void onFailed(String reason);
+
+    }
+
+    private final ImageReader mImageReader;
+    private final ZslRingBuffer<Image> mRing;
+    private final boolean mRealtimeTimestamps;
+    private final Handler mImageHandler;
+    private final HandlerThread mEncoderThread;
+    private final Handler mEncoderHandler;
+    private final AtomicInteger mPendingEncodes = new AtomicInteger();
+
+    /**
+     * Time from pressing the shutter to having picked a frame.
+     */
+    private final LatencyHistogram mSelectionLatency = new LatencyHistogram();
+
+    /**
+     * How long before the press the picked frame was exposed.
+     */
+    private final LatencyHistogram mFrameAge = new LatencyHistogram();
+
+    // Only used on the encoder thread.
+    private byte[] mNv21;
+    private final ExposedByteArrayOutputStream mJpegOutput = new ExposedByteArrayOutputStream();
+
+    /**
+     * @return How many frames the ring can hold within {@code budgetBytes}, between 1 and
+     * {@code maxDepth}
+     */
+    static int depthFor(int width, int height, long budgetBytes, int maxDepth) {
+        long frameBytes = (long) width * height * 3 / 2;
+        long buffers = budgetBytes / frameBytes;
+        return (int) Math.max(1, Math.min(maxDepth, buffers - MAX_PENDING_ENCODES - 1));
+    }
+
+    /**
+     * @param size               The size of the YUV frames
+     * @param depth              The number of frames to keep
+     * @param realtimeTimestamps Whether sensor timestamps share the time base of
+     *                           {@link SystemClock#elapsedRealtimeNanos()}
+     * @param imageHandler       The handler of the thread that acquires the frames, which is
+     *                           the only one that changes the ring
+     */
+    ZslController(Size size, int depth, boolean realtimeTimestamps, Handler imageHandler) {
+        mRing = new ZslRingBuffer<>(depth);
+        mRealtimeTimestamps = realtimeTimestamps;
+        mImageHandler = imageHandler;
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, depth + MAX_PENDING_ENCODES + 1);
+        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, imageHandler);
+        mEncoderThread = new HandlerThread("ZslEncoder");
+        mEncoderThread.start();
+        mEncoderHandler = new Handler(mEncoderThread.getLooper());
+    }
+
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            // Keep a buffer free so the stream never stalls on a full ring.
+            if (mRing.size() == mRing.getCapacity()) {
+                close(mRing.removeOldest());
+            }
+            Image image = reader.acquireLatestImage();
+            if (null != image) {
+                close(mRing.add(image.getTimestamp(), image));
+            }
+        }
+
+    };
+
+    Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Picks the frame closest to {@code pressedNanos} and encodes it in the background.
+     *
+     * @param pressedNanos    When the shutter was pressed
+     * @param jpegOrientation The clockwise rotation of the picture, in degrees
+     * @return False if the previous picture is still being encoded
+     */
+    boolean takePicture(final long pressedNanos, final int jpegOrientation,
+                        final Callback callback) {
+        if (mPendingEncodes.incrementAndGet() > MAX_PENDING_ENCODES) {
+            mPendingEncodes.decrementAndGet();
+            return false;
+        }
+        // The ring is only changed on the image thread.
+        mImageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long target = mRealtimeTimestamps ? pressedNanos : mRing.getNewestTimestamp();
+                Image frame = mRing.takeClosest(target);
+                long selectedNanos = SystemClock.elapsedRealtimeNanos();
+                if (null == frame) {
+                    mPendingEncodes.decrementAndGet();
+                    callback.onFailed("No frame to capture yet");
+                    return;
+                }
+                mSelectionLatency.record(selectedNanos - pressedNanos);
+                if (mRealtimeTimestamps) {
+                    mFrameAge.record(pressedNanos - frame.getTimestamp());
+                }
+                mEncoderHandler.post(new EncodeTask(frame, jpegOrientation, selectedNanos,
+                        callback));
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return The number of frames in the ring
+     */
+    int getRingDepth() {
+        return mRing.size();
+    }
+
+    int getPeakRingDepth() {
+        return mRing.getPeakSize();
+    }
+
+    int getRingCapacity() {
+        return mRing.getCapacity();
+    }
+
+    /**
+     * @return Latency histogram of the time from pressing the shutter to having picked a frame
+     */
+    LatencyHistogram getSelectionLatency() {
+        return mSelectionLatency;
+    }
+
+    /**
+     * @return Histogram of how long before the press the picked frames were exposed; empty when
+     * sensor timestamps cannot be compared with the press time
+     */
+    LatencyHistogram getFrameAge() {
+        return mFrameAge;
+    }
+
+    /**
+     * Finishes pending encodes and releases every frame. The repeating request must have been
+     * stopped.
+     */
+    void close() {
+        mImageReader.setOnImageAvailableListener(null, null);
+        mEncoderThread.quitSafely();
+        try {
+            mEncoderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Image frame;
+        while (null != (frame = mRing.removeOldest())) {
+            frame.close();
+        }
+        mImageReader.close();
+    }
+
+    private static void close(Image image) {
+        if (null != image) {
+            image.close();
+        }
+    }
+
+    /**
+     * Encodes a frame picked from the ring, on the encoder thread.
+     */
+    private class EncodeTask implements Runnable {
+
+        private final Image mFrame;
+        private final int mJpegOrientation;
+        private final long mSelectedNanos;
+        private final Callback mCallback;
+
+        EncodeTask(Image frame, int jpegOrientation, long selectedNanos, Callback callback) {
+            mFrame = frame;
+            mJpegOrientation = jpegOrientation;
+            mSelectedNanos = selectedNanos;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            byte[] jpeg;
+            long timestamp = mFrame.getTimestamp();
+            try {
+                int width = mFrame.getWidth();
+                int height = mFrame.getHeight();
+                if (null == mNv21 || mNv21.length != width * height * 3 / 2) {
+                    mNv21 = new byte[width * height * 3 / 2];
+                }
+                toNv21(mFrame, mNv21);
+                mFrame.close();
+                mJpegOutput.reset();
+                new YuvImage(mNv21, ImageFormat.NV21, width, height, null)
+                        .compressToJpeg(new Rect(0, 0, width, height), JPEG_QUALITY, mJpegOutput);
+                jpeg = JpegExif.withOrientation(mJpegOutput.getBuffer(), mJpegOutput.size(),
+                        mJpegOrientation);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to encode a ZSL frame", e);
+                mFrame.close();
+                mPendingEncodes.decrementAndGet();
+                mCallback.onFailed("Failed to encode the picture");
+                return;
+            }
+            mPendingEncodes.decrementAndGet();
+            mCallback.onEncoded(jpeg, timestamp, mSelectedNanos);
+        }
+
+    }
+
+    /**
+     * Copies a YUV_420_888 image into an NV21 array: the luma plane followed by interleaved V and
+     * U samples.
+     */
+    private static void toNv21(Image image, byte[] out) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        int chroma = copyPlane(planes[0], width, height, out, 0, 1);
+        copyPlane(planes[2], width / 2, height / 2, out, chroma, 2);
+        copyPlane(planes[1], width / 2, height / 2, out, chroma + 1, 2);
+    }
+
+    /**
+     * @return The offset in {@code out} right after the last sample written
+     */
+    private static int copyPlane(Image.Plane plane, int width, int height, byte[] out,
+                                 int offset, int outStride) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        for (int row = 0; row < height; row++) {
+            int rowStart = row * rowStride;
+            if (pixelStride == 1 && outStride == 1) {
+                buffer.position(rowStart);
+                buffer.get(out, offset, width);
+                offset += width;
+            } else {
+                for (int column = 0; column < width; column++) {
+                    out[offset] = buffer.get(rowStart + column * pixelStride);
+                    offset += outStride;
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Lets the encoded bytes be read without another copy.
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        byte[] getBuffer() {
+            return buf;
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+/**
+ * A fixed-capacity ring of the most recent frames of a continuous stream, each with its sensor
+ * timestamp. Adding a frame to a full ring evicts the oldest one, which the caller has to
+ * release. The ring never allocates after construction.
+ *
+ * @param <T> The type of frame; an {@code Image} on a device, anything on a host JVM
+ */
+class ZslRingBuffer<T> {
+
+    private final Object[] mFrames;
+    private final long[] mTimestamps;
+
+    /**
+     * Index of the oldest frame.
+     */
+    private int mHead;
+    private int mSize;
+    private int mPeakSize;
+
+    ZslRingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mFrames = new Object[capacity];
+        mTimestamps = new long[capacity];
+    }
+
+    /**
+     * Adds the newest frame.
+     *
+     * @return The oldest frame if the ring was full, for the caller to release, or null
+     */
+    synchronized T add(long timestampNanos, T frame) {
+        T evicted = null;
+        if (mSize == mFrames.length) {
+            evicted = removeAt(0);
+        }
+        int index = (mHead + mSize) % mFrames.length;
+        mFrames[index] = frame;
+        mTimestamps[index] = timestampNanos;
+        mSize++;
+        if (mSize > mPeakSize) {
+            mPeakSize = mSize;
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the oldest frame, to make room in the stream that produces the frames.
+     *
+     * @return The frame, for the caller to release, or null if the ring is empty
+     */
+    synchronized T removeOldest() {
+        return mSize == 0 ? null : removeAt(0);
+    }
+
+    /**
+     * Removes the frame whose timestamp is closest to {@code timestampNanos}. On a tie the newer
+     * frame wins.
+     *
+     * @return The frame, which the caller now owns, or null if the ring is empty
+     */
+    synchronized T takeClosest(long timestampNanos) {
+        if (mSize == 0) {
+            return null;
+        }
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            long distance = Math.abs(mTimestamps[(mHead + i) % mFrames.length] - timestampNanos);
+            if (distance <= bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return removeAt(best);
+    }
+
+    /**
+     * @return The timestamp of the newest frame, or -1 if the ring is empty
+     */
+    synchronized long getNewestTimestamp() {
+        return mSize == 0 ? -1 : mTimestamps[(mHead + mSize - 1) % mFrames.length];
+    }
+
+    /**
+     * @return The number of frames held
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized int getPeakSize() {
+        return mPeakSize;
+    }
+
+    int getCapacity() {
+        return mFrames.length;
+    }
+
+    /**
+     * Removes the position {@code offset} frames after the oldest, keeping the others in order.
+     */
+    @SuppressWarnings("unchecked")
+    private T removeAt(int offset) {
+        int capacity = mFrames.length;
+        int index = (mHead + offset) % capacity;
+        T frame = (T) mFrames[index];
+        // Shift the older frames up by one, so the ring stays contiguous from the new head.
+        for (int i = offset; i > 0; i--) {
+            int to = (mHead + i) % capacity;
+            int from = (mHead + i - 1) % capacity;
+            mFrames[to] = mFrames[from];
+            mTimestamps[to] = mTimestamps[from];
+        }
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % capacity;
+        mSize--;
+        return frame;
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import android.util.Size;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link BurstPlanner}.
+*/
+public class BurstPlannerTest extends TestCase {
+
+    private static final long PREVIEW_30_FPS = 33333333;
+
+    /**
+    * A 12 MP JPEG at 15 fps with a 50 ms stall, 8 MP at 30 fps with a 30 ms stall, and 2 MP at
+    * 30 fps without a stall.
+    */
+    private static final BurstPlanner.StreamOptions JPEG = new BurstPlanner.StreamOptions(
+            BurstPlanner.FORMAT_JPEG,
+            new Size[]{new Size(4032, 3024), new Size(3264, 2448), new Size(1920, 1080)},
+            new long[]{66666666, 33333333, 33333333},
+            new long[]{50000000, 30000000, 0});
+
+    /**
+    * The largest size that keeps up is picked, with its stall counted against the target.
+    */
+    public void testPicksLargestSizeThatKeepsUp() {
+        BurstPlanner.StreamOptions[] options = {JPEG};
+        // 12 MP takes 117 ms a frame, 8 MP 63 ms.
+        BurstPlanner.Plan plan = BurstPlanner.plan(options, PREVIEW_30_FPS, 10);
+        assertEquals(new Size(3264, 2448), plan.getSize());
+        assertEquals(63333333, plan.getFrameDurationNs());
+        assertTrue(plan.meetsTarget());
+        assertEquals(new Size(4032, 3024), BurstPlanner.plan(options, PREVIEW_30_FPS, 5)
+                .getSize());
+        assertEquals(new Size(4032, 3024), BurstPlanner.plan(options, PREVIEW_30_FPS, 0)
+                .getSize());
+        // A slow preview stream holds every size back.
+        assertFalse(BurstPlanner.plan(options, 120000000, 10).meetsTarget());
+    }
+
+    /**
+    * A format that does not stall wins with a larger size, and the fastest size is taken when
+    * nothing keeps up.
+    */
+    public void testPicksFormat() {
+        BurstPlanner.StreamOptions yuv = new BurstPlanner.StreamOptions(
+                BurstPlanner.FORMAT_YUV_420_888, new Size[]{new Size(4000, 3000)},
+                new long[]{66666666}, new long[]{0});
+        BurstPlanner.Plan plan = BurstPlanner.plan(
+                new BurstPlanner.StreamOptions[]{JPEG, yuv}, PREVIEW_30_FPS, 15);
+        assertEquals(BurstPlanner.FORMAT_YUV_420_888, plan.getFormat());
+        assertEquals(15.0, plan.getPredictedFramesPerSecond(), 0.01);
+
+        plan = BurstPlanner.plan(new BurstPlanner.StreamOptions[]{JPEG, yuv}, PREVIEW_30_FPS, 60);
+        assertFalse(plan.meetsTarget());
+        assertEquals(new Size(1920, 1080), plan.getSize());
+        assertTrue(plan.toString(), plan.toString().contains("missed"));
+    }
+
+}
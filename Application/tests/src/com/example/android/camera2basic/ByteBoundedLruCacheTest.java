@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* Tests for {@link ByteBoundedLruCache}.
+*/
+public class ByteBoundedLruCacheTest extends TestCase {
+
+    /**
+    * Caches strings that take up one byte per character, and records what it evicts.
+    */
+    private static class StringCache extends ByteBoundedLruCache<String, String> {
+
+        final List<String> mEvicted = new ArrayList<>();
+
+        StringCache(long maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void onEvicted(String key, String value) {
+            mEvicted.add(key);
+        }
+
+    }
+
+    /**
+    * The least recently used values go first, until the values fit in the byte limit.
+    */
+    public void testEvictsByBytes() {
+        StringCache cache = new StringCache(10);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        assertEquals("aaaa", cache.get("a"));
+        cache.put("c", "cccccc");
+        assertEquals(1, cache.mEvicted.size());
+        assertEquals("b", cache.mEvicted.get(0));
+        assertEquals(10, cache.getBytes());
+        assertNull(cache.get("b"));
+        assertEquals(0.5, cache.getHitRate(), 1e-9);
+        cache.put("d", "ddddddddddd");
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getBytes());
+        assertEquals(4, cache.getEvictionCount());
+    }
+
+    /**
+    * Replacing a value frees the bytes of the old one, and peeking counts no hits or misses.
+    */
+    public void testReplaceAndPeek() {
+        StringCache cache = new StringCache(10);
+        cache.put("a", "aaaaaaaa");
+        cache.put("a", "aa");
+        assertEquals(2, cache.getBytes());
+        assertEquals(1, cache.mEvicted.size());
+        assertEquals("aa", cache.peek("a"));
+        assertNull(cache.peek("b"));
+        assertEquals(0, cache.getHitCount() + cache.getMissCount());
+        assertEquals("aa", cache.remove("a"));
+        assertEquals(0, cache.getBytes());
+        assertEquals(1, cache.mEvicted.size());
+    }
+
+}
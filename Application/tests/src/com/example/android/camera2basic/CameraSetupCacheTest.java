@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraMetadata;
+import android.util.Size;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+* Tests for {@link CameraSetupCache}.
+*/
+public class CameraSetupCacheTest extends TestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(System.getProperty("java.io.tmpdir"), "camera-setup-cache-test.bin");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+    * Sizes that run at 30 fps, with a stall of 200 ms for JPEG.
+    */
+    private static BurstPlanner.StreamOptions stream(int format, Size... sizes) {
+        long[] minFrameDurations = new long[sizes.length];
+        long[] stallDurations = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            minFrameDurations[i] = 33333333;
+            stallDurations[i] = format == BurstPlanner.FORMAT_JPEG ? 200000000 : 0;
+        }
+        return new BurstPlanner.StreamOptions(format, sizes, minFrameDurations, stallDurations);
+    }
+
+    /**
+    * A saved setup and its preview size decisions are read back by a new cache.
+    */
+    public void testSaveAndLoad() throws Exception {
+        CameraSetupCache cache = new CameraSetupCache(mFile, "build/1");
+        assertNull(cache.get());
+        cache.put(new CameraSetupCache.Setup("0", 90, CameraMetadata.LENS_FACING_FRONT, true,
+                stream(BurstPlanner.FORMAT_JPEG, new Size(4032, 3024), new Size(1920, 1080)),
+                stream(BurstPlanner.FORMAT_YUV_420_888, new Size(4000, 3000)),
+                new Size[]{new Size(1920, 1080), new Size(1440, 1080)},
+                new long[]{33333333, 16666666}, new Size(4032, 3024), new Size(4048, 3036),
+                new Size(640, 480), true));
+        cache.putPreviewSize(1920, 1080, 1920, 1080, new Size(1920, 1080));
+        assertTrue(cache.isDirty());
+        cache.save();
+        assertFalse(cache.isDirty());
+
+        CameraSetupCache loaded = new CameraSetupCache(mFile, "build/1");
+        CameraSetupCache.Setup setup = loaded.get();
+        assertNotNull(setup);
+        assertEquals("0", setup.getCameraId());
+        assertEquals(90, setup.getSensorOrientation());
+        assertEquals(CameraMetadata.LENS_FACING_FRONT, setup.getLensFacing());
+        assertTrue(setup.isFrontFacing());
+        assertTrue(setup.isFlashSupported());
+        assertEquals(4032, setup.getJpegSize().getWidth());
+        assertEquals(4000, setup.getYuvSize().getWidth());
+        assertEquals(2, setup.getJpegStream().getCount());
+        assertEquals(200000000, setup.getJpegStream().getStallDuration(0));
+        assertEquals(BurstPlanner.FORMAT_YUV_420_888, setup.getYuvStream().getFormat());
+        assertEquals(2, setup.getPreviewSizes().length);
+        assertEquals(1440, setup.getPreviewSizes()[1].getWidth());
+        assertEquals(16666666, setup.getPreviewFrameDuration(new Size(1440, 1080)));
+        assertEquals(0, setup.getPreviewFrameDuration(new Size(640, 480)));
+        assertEquals(new Size(1920, 1080), setup.getPreviewSelector().select(
+                new SizeSelector.Criteria.Builder().setTarget(1920, 1080).build()).getSize());
+        assertEquals(3024, setup.getZslSize().getHeight());
+        assertEquals(4048, setup.getRawSize().getWidth());
+        assertEquals(480, setup.getAnalysisSize().getHeight());
+        assertTrue(setup.hasRealtimeTimestamps());
+        Size preview = loaded.getPreviewSize(1920, 1080, 1920, 1080);
+        assertNotNull(preview);
+        assertEquals(1080, preview.getHeight());
+        assertNull(loaded.getPreviewSize(1080, 1920, 1920, 1080));
+        loaded.clearPreviewSizes();
+        assertNull(loaded.getPreviewSize(1920, 1080, 1920, 1080));
+        assertTrue(loaded.isDirty());
+    }
+
+    /**
+    * A file written by another build of the system is ignored.
+    */
+    public void testOtherFingerprintIsIgnored() throws Exception {
+        CameraSetupCache cache = new CameraSetupCache(mFile, "build/1");
+        cache.put(new CameraSetupCache.Setup("0", 90, CameraMetadata.LENS_FACING_BACK, false,
+                stream(BurstPlanner.FORMAT_JPEG, new Size(640, 480)), null,
+                new Size[]{new Size(640, 480)}, new long[]{33333333}, null, null, null, false));
+        cache.save();
+
+        assertNull(new CameraSetupCache(mFile, "build/2").get());
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link CameraSwitchLatency}.
+*/
+public class CameraSwitchLatencyTest extends TestCase {
+
+    /**
+    * Each switch is recorded for its pair of cameras, on the first frame after it only.
+    */
+    public void testRecordsPerPair() {
+        CameraSwitchLatency latency = new CameraSwitchLatency();
+        assertEquals(-1, latency.onFirstFrame(100));
+        assertTrue(latency.isEmpty());
+
+        latency.start("0", "1", 1000);
+        assertEquals(500, latency.onFirstFrame(1500));
+        assertEquals(-1, latency.onFirstFrame(1600));
+        latency.start("1", "0", 2000);
+        assertEquals(300, latency.onFirstFrame(2300));
+        latency.start("0", "1", 3000);
+        assertEquals(700, latency.onFirstFrame(3700));
+
+        assertEquals(2, latency.get("0", "1").getCount());
+        assertEquals(1, latency.get("1", "0").getCount());
+        assertNull(latency.get("0", "2"));
+        assertEquals(2, latency.summary().split("\n").length);
+    }
+
+    /**
+    * A switch that never showed a frame is replaced by the next one.
+    */
+    public void testRestartReplacesPending() {
+        CameraSwitchLatency latency = new CameraSwitchLatency();
+        latency.start("0", "1", 1000);
+        latency.start("1", "2", 2000);
+        assertEquals(100, latency.onFirstFrame(2100));
+        assertNull(latency.get("0", "1"));
+        assertEquals(1, latency.get("1", "2").getCount());
+    }
+
+}
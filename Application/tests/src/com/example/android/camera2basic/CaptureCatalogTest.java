@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+* Tests for {@link CaptureCatalog}.
+*/
+public class CaptureCatalogTest extends TestCase {
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(System.getProperty("java.io.tmpdir"), "capture-catalog-test");
+        deleteContents();
+        assertTrue(mDir.isDirectory() || mDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteContents();
+        super.tearDown();
+    }
+
+    /**
+    * Entries survive closing and reopening, and reopening only reads new records.
+    */
+    public void testReopenReadsOnlyNewRecords() throws Exception {
+        CaptureCatalog catalog = new CaptureCatalog(mDir);
+        catalog.open();
+        for (int i = 0; i < 3; i++) {
+            recordCapture(catalog, 100);
+        }
+        catalog.close();
+
+        catalog.open();
+        assertEquals(0, catalog.getRecordsScanned());
+        assertEquals(3, catalog.getEntryCount());
+        assertEquals(4, catalog.allocateId());
+
+        List<CaptureCatalog.Entry> entries = catalog.readAll();
+        assertEquals(3, entries.size());
+        assertEquals(1, entries.get(0).getId());
+        assertEquals("IMG_00000001.jpg", entries.get(0).getFile().getName());
+        assertEquals(100, entries.get(0).getSize());
+        assertEquals(1000, entries.get(0).getSensorTimestamp());
+        catalog.close();
+    }
+
+    /**
+    * A checkpoint keeps the catalog open, and a process that dies afterwards only has the
+    * records appended since then read again.
+    */
+    public void testCheckpointWithoutClosing() throws Exception {
+        CaptureCatalog catalog = new CaptureCatalog(mDir);
+        catalog.open();
+        recordCapture(catalog, 10);
+        recordCapture(catalog, 20);
+        catalog.checkpoint();
+        recordCapture(catalog, 30);
+
+        CaptureCatalog restarted = new CaptureCatalog(mDir);
+        restarted.open();
+        assertEquals(1, restarted.getRecordsScanned());
+        assertEquals(3, restarted.getEntryCount());
+        restarted.close();
+        catalog.close();
+    }
+
+    /**
+    * A record torn by process death is cut off, and its capture file is recorded again.
+    */
+    public void testTornRecordIsRecovered() throws Exception {
+        CaptureCatalog catalog = new CaptureCatalog(mDir);
+        catalog.open();
+        recordCapture(catalog, 10);
+        recordCapture(catalog, 20);
+        catalog.close();
+
+        RandomAccessFile file = new RandomAccessFile(new File(mDir, "captures.cat"), "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        catalog.open();
+        assertEquals(2, catalog.getEntryCount());
+        assertEquals(1, catalog.getRecoveredCount());
+        List<CaptureCatalog.Entry> entries = catalog.readAll();
+        assertEquals(2, entries.get(1).getId());
+        assertEquals(20, entries.get(1).getSize());
+        assertEquals(CaptureCatalog.UNKNOWN, entries.get(1).getSensorTimestamp());
+        catalog.close();
+    }
+
+    /**
+    * Capture files that were written but never recorded are picked up, even after a gap.
+    */
+    public void testUnrecordedFilesAreRecovered() throws Exception {
+        CaptureCatalog catalog = new CaptureCatalog(mDir);
+        catalog.open();
+        recordCapture(catalog, 10);
+        writeFile(catalog.getCaptureFile(catalog.allocateId()), 5);
+        catalog.allocateId();
+        writeFile(catalog.getCaptureFile(catalog.allocateId()), 7);
+        catalog.close();
+
+        catalog.open();
+        assertEquals(2, catalog.getRecoveredCount());
+        assertEquals(3, catalog.getEntryCount());
+        assertEquals(5, catalog.allocateId());
+        catalog.close();
+    }
+
+    /**
+    * An id reserved while the catalog is closed, by the next session before it has reopened the
+    * catalog, is not handed out again.
+    */
+    public void testIdsReservedWhileClosedAreNotReused() throws Exception {
+        CaptureCatalog catalog = new CaptureCatalog(mDir);
+        catalog.open();
+        recordCapture(catalog, 10);
+        catalog.close();
+
+        assertEquals(2, catalog.allocateId());
+        catalog.open();
+        assertEquals(3, catalog.allocateId());
+        catalog.close();
+    }
+
+    private void recordCapture(CaptureCatalog catalog, int size) throws IOException {
+        long id = catalog.allocateId();
+        File file = catalog.getCaptureFile(id);
+        writeFile(file, size);
+        catalog.append(id, file, size, id * 1000, 5);
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[size]);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void deleteContents() {
+        File[] files = mDir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+    }
+
+}
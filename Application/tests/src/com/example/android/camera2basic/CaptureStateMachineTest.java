@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link CaptureStateMachine}, driven by synthetic AF and AE states.
+*/
+public class CaptureStateMachineTest extends TestCase {
+
+    private static final int UNKNOWN = CaptureStateMachine.UNKNOWN;
+    private static final int AF_PASSIVE_SCAN = 1;
+    private static final int AF_LOCKED = CaptureStateMachine.AF_STATE_FOCUSED_LOCKED;
+    private static final int AE_SEARCHING = 1;
+    private static final int AE_CONVERGED = CaptureStateMachine.AE_STATE_CONVERGED;
+    private static final int AE_PRECAPTURE = CaptureStateMachine.AE_STATE_PRECAPTURE;
+
+    private CaptureStateMachine mStateMachine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStateMachine = new CaptureStateMachine();
+        mStateMachine.setState(CaptureStateMachine.STATE_WAITING_LOCK);
+    }
+
+    /**
+    * With exposure converged, the picture is taken as soon as focus locks.
+    */
+    public void testCapturesOnceFocusLocks() {
+        assertEquals(0, mStateMachine.process(AF_PASSIVE_SCAN, AE_CONVERGED));
+        assertEquals(CaptureStateMachine.STATE_WAITING_LOCK, mStateMachine.getState());
+
+        assertEquals(CaptureStateMachine.ACTION_FOCUS_LOCKED | CaptureStateMachine.ACTION_CAPTURE,
+                mStateMachine.process(AF_LOCKED, AE_CONVERGED));
+        assertEquals(CaptureStateMachine.STATE_PICTURE_TAKEN, mStateMachine.getState());
+        assertFalse(mStateMachine.isWaiting());
+        assertEquals(0, mStateMachine.process(AF_LOCKED, AE_CONVERGED));
+    }
+
+    /**
+    * Exposure that has not converged runs the precapture sequence, and the picture is taken once
+    * it is over.
+    */
+    public void testRunsPrecaptureSequence() {
+        assertEquals(CaptureStateMachine.ACTION_FOCUS_LOCKED
+                        | CaptureStateMachine.ACTION_PRECAPTURE,
+                mStateMachine.process(AF_LOCKED, AE_SEARCHING));
+        assertEquals(CaptureStateMachine.STATE_WAITING_PRECAPTURE, mStateMachine.getState());
+
+        assertEquals(0, mStateMachine.process(AF_LOCKED, AE_SEARCHING));
+        assertEquals(CaptureStateMachine.STATE_WAITING_PRECAPTURE, mStateMachine.getState());
+        assertEquals(0, mStateMachine.process(AF_LOCKED, AE_PRECAPTURE));
+        assertEquals(CaptureStateMachine.STATE_WAITING_NON_PRECAPTURE, mStateMachine.getState());
+        assertEquals(0, mStateMachine.process(AF_LOCKED, AE_PRECAPTURE));
+
+        assertEquals(CaptureStateMachine.ACTION_CAPTURE,
+                mStateMachine.process(AF_LOCKED, AE_CONVERGED));
+        assertEquals(CaptureStateMachine.STATE_PICTURE_TAKEN, mStateMachine.getState());
+    }
+
+    /**
+    * A shot skips the focus lock only while the latest preview result is fresh and converged.
+    */
+    public void testFastPath() {
+        mStateMachine.setState(CaptureStateMachine.STATE_PREVIEW);
+        mStateMachine.onPreviewResult(CaptureStateMachine.AF_STATE_PASSIVE_FOCUSED, AE_CONVERGED,
+                1000);
+        assertEquals(CaptureStateMachine.ACTION_CAPTURE, mStateMachine.start(1050, 100));
+        assertEquals(CaptureStateMachine.STATE_PICTURE_TAKEN, mStateMachine.getState());
+
+        // Too old.
+        assertEquals(0, mStateMachine.start(1200, 100));
+        assertEquals(CaptureStateMachine.STATE_WAITING_LOCK, mStateMachine.getState());
+
+        // Disabled.
+        assertEquals(0, mStateMachine.start(1050, 0));
+
+        // Exposure still searching.
+        mStateMachine.onPreviewResult(AF_LOCKED, AE_SEARCHING, 2000);
+        assertEquals(0, mStateMachine.start(2010, 100));
+
+        assertEquals(4, mStateMachine.getShotCount());
+        assertEquals(1, mStateMachine.getFastPathCount());
+    }
+
+    /**
+    * Devices that report no AF or AE state still get their picture taken, exactly once.
+    */
+    public void testMissingStates() {
+        assertEquals(CaptureStateMachine.ACTION_FOCUS_LOCKED | CaptureStateMachine.ACTION_CAPTURE,
+                mStateMachine.process(UNKNOWN, UNKNOWN));
+        assertEquals(0, mStateMachine.process(UNKNOWN, UNKNOWN));
+
+        mStateMachine.setState(CaptureStateMachine.STATE_WAITING_LOCK);
+        assertEquals(CaptureStateMachine.ACTION_FOCUS_LOCKED | CaptureStateMachine.ACTION_CAPTURE,
+                mStateMachine.process(AF_LOCKED, UNKNOWN));
+
+        mStateMachine.setState(CaptureStateMachine.STATE_WAITING_PRECAPTURE);
+        assertEquals(0, mStateMachine.process(AF_LOCKED, UNKNOWN));
+        assertEquals(CaptureStateMachine.ACTION_CAPTURE, mStateMachine.process(AF_LOCKED, UNKNOWN));
+    }
+
+}
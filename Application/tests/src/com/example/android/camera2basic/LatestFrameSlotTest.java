@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link LatestFrameSlot}.
+*/
+public class LatestFrameSlotTest extends TestCase {
+
+    /**
+    * A frame that is not taken before the next one arrives is handed back and counted as dropped.
+    */
+    public void testKeepsLatest() {
+        LatestFrameSlot<String> slot = new LatestFrameSlot<>();
+        assertNull(slot.offer("a"));
+        assertEquals("a", slot.offer("b"));
+        assertEquals("b", slot.offer("c"));
+        assertEquals(2, slot.getDroppedCount());
+        assertEquals("c", slot.take());
+        assertNull(slot.take());
+        assertNull(slot.offer("d"));
+        assertEquals(2, slot.getDroppedCount());
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+* Tests for {@link LumaStatistics}.
+*/
+public class LumaStatisticsTest extends TestCase {
+
+    /**
+    * A frame whose left half is black and right half white, with padded rows.
+    */
+    private static YuvFrame halfBlack(int width, int height) {
+        int rowStride = width + 16;
+        ByteBuffer luma = ByteBuffer.allocateDirect(rowStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < rowStride; x++) {
+                luma.put(y * rowStride + x, (byte) (x < width / 2 ? 0 : 255));
+            }
+        }
+        YuvFrame.Plane plane = new YuvFrame.Plane(luma, rowStride, 1);
+        return new YuvFrame(width, height, plane, plane, plane);
+    }
+
+    /**
+    * Only every stride-th sample is counted, and the padding is not.
+    */
+    public void testCountsSubsampledSamples() {
+        LumaStatistics statistics = new LumaStatistics(2, null);
+        statistics.analyze(halfBlack(64, 48), 1000);
+        int[] histogram = new int[LumaStatistics.BINS];
+        assertEquals(32 * 24, statistics.copyHistogram(histogram));
+        assertEquals(16 * 24, histogram[0]);
+        assertEquals(16 * 24, histogram[255]);
+        assertEquals(127.5, statistics.getMean(), 1e-9);
+        assertEquals(0.5, statistics.getShadowClipFraction(), 1e-9);
+        assertEquals(0.5, statistics.getHighlightClipFraction(), 1e-9);
+        assertEquals(1000, statistics.getTimestamp());
+        assertEquals(1, statistics.getFrameCount());
+    }
+
+    /**
+    * Large frames split across a pool give the same histogram as on one thread.
+    */
+    public void testParallelMatchesSerial() {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            YuvFrame frame = halfBlack(1000, 701);
+            LumaStatistics serial = new LumaStatistics(1, null);
+            LumaStatistics parallel = new LumaStatistics(1, pool);
+            serial.measure(frame);
+            parallel.measure(frame);
+            parallel.measure(frame);
+            int[] expected = new int[LumaStatistics.BINS];
+            int[] actual = new int[LumaStatistics.BINS];
+            assertEquals(1000 * 701, serial.copyHistogram(expected));
+            assertEquals(1000 * 701, parallel.copyHistogram(actual));
+            assertTrue(Arrays.equals(expected, actual));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+* Tests for {@link ParallelJpegEncoder}.
+*/
+public class ParallelJpegEncoderTest extends TestCase {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+
+    /**
+    * The file is the same whatever the number of threads, and has one restart marker between
+    * each pair of stripes.
+    */
+    public void testParallelismDoesNotChangeOutput() {
+        YuvFrame frame = createFrame(0, false);
+        byte[] serial = encode(1, frame, ParallelJpegEncoder.Subsampling.YUV_420);
+        byte[] parallel = encode(4, frame, ParallelJpegEncoder.Subsampling.YUV_420);
+        assertTrue(Arrays.equals(serial, parallel));
+
+        assertEquals(0xd8, serial[1] & 0xff);
+        assertEquals(0xd9, serial[serial.length - 1] & 0xff);
+        int mcuRows = (HEIGHT + 15) / 16;
+        int stripes = (mcuRows + ParallelJpegEncoder.STRIPE_MCU_ROWS - 1)
+                / ParallelJpegEncoder.STRIPE_MCU_ROWS;
+        assertEquals(stripes - 1, countRestartMarkers(serial));
+    }
+
+    /**
+    * Padded rows and interleaved chroma planes are read like tightly packed ones.
+    */
+    public void testStridesDoNotChangeOutput() {
+        for (ParallelJpegEncoder.Subsampling subsampling
+                : ParallelJpegEncoder.Subsampling.values()) {
+            byte[] packed = encode(2, createFrame(0, false), subsampling);
+            byte[] padded = encode(2, createFrame(24, true), subsampling);
+            assertTrue(subsampling.toString(), Arrays.equals(packed, padded));
+        }
+    }
+
+    private static byte[] encode(int threads, YuvFrame frame,
+                                 ParallelJpegEncoder.Subsampling subsampling) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return new ParallelJpegEncoder(pool, 90, subsampling).encode(frame, 90);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int countRestartMarkers(byte[] jpeg) {
+        int count = 0;
+        for (int i = 0; i + 1 < jpeg.length; i++) {
+            int next = jpeg[i + 1] & 0xff;
+            if ((jpeg[i] & 0xff) == 0xff && next >= 0xd0 && next <= 0xd7) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+    * @param rowPadding  Bytes added at the end of every row of every plane
+    * @param interleaved Whether the chroma planes share one buffer, like NV21
+    */
+    private static YuvFrame createFrame(int rowPadding, boolean interleaved) {
+        int chromaWidth = (WIDTH + 1) / 2;
+        int chromaHeight = (HEIGHT + 1) / 2;
+        int lumaStride = WIDTH + rowPadding;
+        ByteBuffer luma = ByteBuffer.allocateDirect(lumaStride * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                luma.put(y * lumaStride + x, (byte) (x * 2 + y * 3));
+            }
+        }
+        int pixelStride = interleaved ? 2 : 1;
+        int chromaStride = chromaWidth * pixelStride + rowPadding;
+        ByteBuffer v = ByteBuffer.allocateDirect(chromaStride * chromaHeight);
+        ByteBuffer u = interleaved ? v : ByteBuffer.allocateDirect(chromaStride * chromaHeight);
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                int index = y * chromaStride + x * pixelStride;
+                v.put(index, (byte) (128 + x - y));
+                u.put(interleaved ? index + 1 : index, (byte) (100 + y * 2));
+            }
+        }
+        if (interleaved) {
+            ByteBuffer shifted = u.duplicate();
+            shifted.position(1);
+            u = shifted.slice();
+        }
+        return new YuvFrame(WIDTH, HEIGHT, new YuvFrame.Plane(luma, lumaStride, 1),
+                new YuvFrame.Plane(u, chromaStride, pixelStride),
+                new YuvFrame.Plane(v, chromaStride, pixelStride));
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link PreviewGapTracker}.
+*/
+public class PreviewGapTrackerTest extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    /**
+    * The stall of a shot that stops preview is counted toward the shot, not the steady state.
+    */
+    public void testStoppedPreviewShot() {
+        PreviewGapTracker tracker = new PreviewGapTracker(100 * MS);
+        tracker.onFrame(0);
+        tracker.onFrame(30 * MS);
+        tracker.onFrame(60 * MS);
+        tracker.onShotStarted(70 * MS, false);
+        // Preview is stopped until the shot finishes at 350 ms.
+        tracker.onShotFinished(350 * MS);
+        tracker.onFrame(400 * MS);
+        tracker.onFrame(430 * MS);
+        tracker.onFrame(470 * MS);
+        // Starts after the tail, so the shot is over.
+        tracker.onFrame(500 * MS);
+
+        assertEquals(3, tracker.getSteadyGaps().getCount());
+        assertEquals(30.0, tracker.getSteadyGaps().getMaxMillis(), 1.0);
+        assertEquals(3, tracker.getShotGaps(false).getCount());
+        assertEquals(1, tracker.getLargestShotGaps(false).getCount());
+        assertEquals(340.0, tracker.getLargestShotGaps(false).getMaxMillis(), 10.0);
+        assertEquals(0, tracker.getShotGaps(true).getCount());
+    }
+
+    /**
+    * Shots are kept apart by mode, and a new session does not count the time without frames.
+    */
+    public void testModesAndSessions() {
+        PreviewGapTracker tracker = new PreviewGapTracker(50 * MS);
+        tracker.onFrame(0);
+        tracker.onShotStarted(10 * MS, true);
+        tracker.onFrame(30 * MS);
+        tracker.onFrame(60 * MS);
+        tracker.onShotFinished(70 * MS);
+        tracker.onSessionStarted();
+        tracker.onFrame(5000 * MS);
+        tracker.onFrame(5030 * MS);
+
+        assertEquals(2, tracker.getShotGaps(true).getCount());
+        assertEquals(1, tracker.getLargestShotGaps(true).getCount());
+        assertEquals(0, tracker.getShotGaps(false).getCount());
+        assertEquals(1, tracker.getSteadyGaps().getCount());
+        assertEquals(30.0, tracker.getSteadyGaps().getMaxMillis(), 1.0);
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link PreviewTransform}.
+*/
+public class PreviewTransformTest extends TestCase {
+
+    private static float[] map(float[] m, float x, float y) {
+        return new float[]{m[0] * x + m[1] * y + m[2], m[3] * x + m[4] * y + m[5]};
+    }
+
+    private static void assertMaps(float[] m, float x, float y, float toX, float toY) {
+        float[] point = map(m, x, y);
+        assertEquals(toX, point[0], 1e-2f);
+        assertEquals(toY, point[1], 1e-2f);
+    }
+
+    /**
+    * In landscape a buffer of the view's shape is turned upright to cover the view exactly,
+    * and the two landscape rotations turn it opposite ways.
+    */
+    public void testLandscapeFillsView() {
+        float[] m = new float[PreviewTransform.VALUES];
+        PreviewTransform.compute(1, 1920, 1080, 1920, 1080, m);
+        assertMaps(m, 0, 0, 0, 1080);
+        assertMaps(m, 1920, 1080, 1920, 0);
+        assertMaps(m, 960, 540, 960, 540);
+        PreviewTransform.compute(3, 1920, 1080, 1920, 1080, m);
+        assertMaps(m, 0, 0, 1920, 0);
+        assertMaps(m, 1920, 1080, 0, 1080);
+    }
+
+    /**
+    * A buffer of another shape is scaled up about the view's center until it covers the view.
+    */
+    public void testLandscapeCoversView() {
+        float[] m = new float[PreviewTransform.VALUES];
+        PreviewTransform.compute(1, 1000, 500, 1600, 1200, m);
+        // The buffer is 4:3 and the view 2:1, so the buffer overflows the view vertically.
+        assertMaps(m, 500, 250, 500, 250);
+        float[] top = map(m, 0, 0);
+        float[] bottom = map(m, 1000, 500);
+        assertEquals(0, Math.min(top[0], bottom[0]), 1e-2f);
+        assertEquals(1000, Math.max(top[0], bottom[0]), 1e-2f);
+        assertEquals(750, Math.abs(top[1] - bottom[1]), 1e-2f);
+    }
+
+    /**
+    * Upside down the preview is turned around, and upright it is left alone.
+    */
+    public void testPortraitRotations() {
+        float[] m = new float[PreviewTransform.VALUES];
+        PreviewTransform.compute(2, 1080, 1920, 1920, 1080, m);
+        assertMaps(m, 0, 0, 1080, 1920);
+        PreviewTransform.compute(0, 1080, 1920, 1920, 1080, m);
+        assertMaps(m, 100, 200, 100, 200);
+        assertEquals(1f, m[8]);
+    }
+
+    /**
+    * Recent combinations are served from the cache, and the least recently used one is
+    * replaced.
+    */
+    public void testCachesRecentCombinations() {
+        PreviewTransform transform = new PreviewTransform();
+        float[] first = transform.get(1, 1920, 1080, 1920, 1080);
+        assertSame(first, transform.get(1, 1920, 1080, 1920, 1080));
+        assertEquals(1, transform.getHitCount());
+        assertEquals(1, transform.getMissCount());
+        for (int width = 1; width < PreviewTransform.CACHE_SIZE; width++) {
+            transform.get(1, width, 1080, 1920, 1080);
+        }
+        transform.get(1, 1920, 1080, 1920, 1080);
+        assertEquals(2, transform.getHitCount());
+        transform.get(1, 4000, 1080, 1920, 1080);
+        transform.get(1, 1, 1080, 1920, 1080);
+        assertEquals(2, transform.getHitCount());
+        assertEquals(PreviewTransform.CACHE_SIZE + 2, transform.getMissCount());
+    }
+
+}
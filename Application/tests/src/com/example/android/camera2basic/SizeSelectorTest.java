@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import android.util.Size;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link SizeSelector}.
+*/
+public class SizeSelectorTest extends TestCase {
+
+    private static final long FPS_30 = 33333333;
+    private static final long FPS_24 = 41666666;
+
+    private static SizeSelector.Criteria.Builder view(int width, int height) {
+        return new SizeSelector.Criteria.Builder()
+                .setTarget(width, height)
+                .setMaxSize(2560, 1440)
+                .setAspectRatio(16, 9, 0.02f)
+                .setMinFrameRate(30);
+    }
+
+    /**
+    * The smallest size that covers the view is picked, or else the largest, and a size that
+    * is only close to the aspect ratio still counts as matching.
+    */
+    public void testPicksSmallestCoveringSize() {
+        Size[] sizes = {new Size(1920, 1088), new Size(1280, 720), new Size(960, 720),
+                new Size(640, 360)};
+        SizeSelector selector = new SizeSelector(sizes, null, null);
+        assertEquals(sizes[1], selector.select(view(1200, 700).build()).getSize());
+        assertEquals(sizes[0], selector.select(view(1920, 1080).build()).getSize());
+        assertEquals(sizes[0], selector.select(view(2560, 1440).build()).getSize());
+        // 4:3 only when nothing is close to 16:9.
+        selector = new SizeSelector(new Size[]{sizes[2], sizes[3]}, null, null);
+        assertEquals(sizes[3], selector.select(view(1200, 700).build()).getSize());
+    }
+
+    /**
+    * Sizes that cannot keep up with the frame rate or stall too long are rejected.
+    */
+    public void testRejectsSlowSizes() {
+        Size[] sizes = {new Size(1920, 1080), new Size(1280, 720)};
+        SizeSelector selector = new SizeSelector(sizes, new long[]{FPS_24, FPS_30},
+                new long[]{0, 0});
+        SizeSelector.Choice choice = selector.select(view(1920, 1080).build());
+        assertEquals(sizes[1], choice.getSize());
+        assertFalse(choice.isRelaxed());
+        assertTrue(choice.explain(), choice.explain().contains("1 too slow"));
+
+        selector = new SizeSelector(sizes, null, new long[]{0, 50000000});
+        choice = selector.select(view(640, 360).setMaxStallDuration(0).build());
+        assertEquals(sizes[0], choice.getSize());
+    }
+
+    /**
+    * When every size breaks a limit, the smallest one is taken.
+    */
+    public void testFallsBackToSmallest() {
+        Size[] sizes = {new Size(4032, 3024), new Size(3840, 2880)};
+        SizeSelector.Choice choice = new SizeSelector(sizes, null, null)
+                .select(view(1920, 1080).build());
+        assertTrue(choice.isRelaxed());
+        assertEquals(sizes[1], choice.getSize());
+    }
+
+    /**
+    * Equal criteria get the remembered choice.
+    */
+    public void testRemembersChoices() {
+        SizeSelector selector = new SizeSelector(new Size[]{new Size(1280, 720)}, null, null);
+        SizeSelector.Choice first = selector.select(view(1280, 720).build());
+        assertSame(first, selector.select(view(1280, 720).build()));
+        assertNotSame(first, selector.select(view(1280, 720).setMaxPixels(1000000).build()));
+        assertEquals(1, selector.getHitCount());
+        assertEquals(2, selector.getMissCount());
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link ThumbnailLoader}.
+*/
+public class ThumbnailLoaderTest extends TestCase {
+
+    /**
+    * The subsampling is the largest power of two that still covers the target size.
+    */
+    public void testSampleSize() {
+        assertEquals(8, ThumbnailLoader.sampleSizeFor(4032, 3024, 320, 240));
+        assertEquals(4, ThumbnailLoader.sampleSizeFor(4032, 3024, 640, 480));
+        assertEquals(1, ThumbnailLoader.sampleSizeFor(320, 240, 320, 240));
+        assertEquals(1, ThumbnailLoader.sampleSizeFor(200, 100, 320, 240));
+        assertEquals(2, ThumbnailLoader.sampleSizeFor(3024, 4032, 1000, 1000));
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* Tests for {@link TimestampMatcher}.
+*/
+public class TimestampMatcherTest extends TestCase {
+
+    private final List<String> mEvents = new ArrayList<>();
+
+    private final TimestampMatcher.Listener<String, String> mListener
+            = new TimestampMatcher.Listener<String, String>() {
+
+        @Override
+        public void onMatched(long timestamp, String image, String result) {
+            mEvents.add(timestamp + ":" + image + "+" + result);
+        }
+
+        @Override
+        public void onImageDropped(String image) {
+            mEvents.add("image " + image);
+        }
+
+        @Override
+        public void onResultDropped(String result) {
+            mEvents.add("result " + result);
+        }
+
+    };
+
+    /**
+    * Images and results are paired by timestamp whichever of them arrives first.
+    */
+    public void testMatchesOutOfOrder() {
+        TimestampMatcher<String, String> matcher = new TimestampMatcher<>(2, mListener);
+        matcher.addImage(100, "a");
+        matcher.addResult(200, "B");
+        matcher.addResult(100, "A");
+        matcher.addImage(200, "b");
+        assertEquals(2, mEvents.size());
+        assertEquals("100:a+A", mEvents.get(0));
+        assertEquals("200:b+B", mEvents.get(1));
+        assertEquals(0, matcher.getPendingCount());
+    }
+
+    /**
+    * The oldest waiting image is given up on when the matcher is full, and clear() gives up on
+    * the rest.
+    */
+    public void testDropsOldest() {
+        TimestampMatcher<String, String> matcher = new TimestampMatcher<>(2, mListener);
+        matcher.addImage(100, "a");
+        matcher.addImage(200, "b");
+        matcher.addImage(300, "c");
+        assertEquals(1, mEvents.size());
+        assertEquals("image a", mEvents.get(0));
+        matcher.addResult(400, "D");
+        assertEquals(3, matcher.getPendingCount());
+        matcher.clear();
+        assertEquals(4, mEvents.size());
+        assertEquals("result D", mEvents.get(3));
+        assertEquals(0, matcher.getPendingCount());
+    }
+
+}
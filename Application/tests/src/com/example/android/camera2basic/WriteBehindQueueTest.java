@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Tests for {@link WriteBehindQueue}.
+*/
+public class WriteBehindQueueTest extends TestCase {
+
+    private static final int FRAMES = 12;
+
+    private static final int FRAME_SIZE = 64 * 1024;
+
+    private File mDir;
+
+    private final AtomicInteger mSaved = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private final AtomicInteger mReleased = new AtomicInteger();
+
+    private final WriteBehindQueue.Callback mCallback = new WriteBehindQueue.Callback() {
+
+        @Override
+        public void onSaved(File file, long bytes, long latencyNanos) {
+            assertEquals(FRAME_SIZE, bytes);
+            assertEquals(FRAME_SIZE, file.length());
+            mSaved.incrementAndGet();
+        }
+
+        @Override
+        public void onFailed(File file, IOException e) {
+            mFailed.incrementAndGet();
+        }
+
+        @Override
+        public void onDropped(File file) {
+            mDropped.incrementAndGet();
+        }
+
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(System.getProperty("java.io.tmpdir"), "write-behind-test");
+        assertTrue(mDir.isDirectory() || mDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        super.tearDown();
+    }
+
+    /**
+    * With the blocking policy every capture is eventually written and synced.
+    */
+    public void testBlockSavesEverything() throws Exception {
+        WriteBehindQueue queue = createQueue(WriteBehindQueue.OverflowPolicy.BLOCK, 0);
+        submitFrames(queue);
+        assertTrue(queue.awaitIdle(5000));
+        queue.shutdown(1000);
+
+        assertEquals(FRAMES, mSaved.get());
+        assertEquals(0, mFailed.get());
+        assertEquals(0, mDropped.get());
+        assertEquals(FRAMES, mReleased.get());
+        assertEquals(FRAMES, queue.getSavedCount());
+        assertTrue(queue.getSyncBatchCount() <= FRAMES);
+    }
+
+    /**
+    * Dropped captures are reported and their payloads are released all the same.
+    */
+    public void testDropReleasesDroppedPayloads() throws Exception {
+        WriteBehindQueue queue = createQueue(WriteBehindQueue.OverflowPolicy.DROP, 0);
+        submitFrames(queue);
+        assertTrue(queue.awaitIdle(5000));
+        queue.shutdown(1000);
+
+        assertEquals(FRAMES, mSaved.get() + mDropped.get());
+        assertEquals(mDropped.get(), queue.getDroppedCount());
+        assertEquals(FRAMES, mReleased.get());
+    }
+
+    /**
+    * Spilled captures are still written in full.
+    */
+    public void testSpillSavesEverything() throws Exception {
+        WriteBehindQueue queue = createQueue(WriteBehindQueue.OverflowPolicy.SPILL,
+                4 * FRAME_SIZE);
+        submitFrames(queue);
+        assertTrue(queue.awaitIdle(5000));
+        queue.shutdown(1000);
+
+        assertEquals(FRAMES, mSaved.get());
+        assertEquals(0, mDropped.get());
+        assertEquals(FRAMES, mReleased.get());
+    }
+
+    private WriteBehindQueue createQueue(WriteBehindQueue.OverflowPolicy policy,
+                                         long maxSpillBytes) {
+        return new WriteBehindQueue.Builder()
+                .setWriters(2)
+                .setCapacity(2)
+                .setOverflowPolicy(policy, maxSpillBytes)
+                .setSyncBatch(3, 20)
+                .build();
+    }
+
+    private void submitFrames(WriteBehindQueue queue) throws InterruptedException {
+        for (int i = 0; i < FRAMES; i++) {
+            final ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_SIZE);
+            queue.submit(new WriteBehindQueue.Payload() {
+                @Override
+                public ByteBuffer getBuffer() {
+                    return frame;
+                }
+
+                @Override
+                public void release() {
+                    mReleased.incrementAndGet();
+                }
+            }, new File(mDir, "frame" + i + ".jpg"), mCallback);
+        }
+    }
+
+}
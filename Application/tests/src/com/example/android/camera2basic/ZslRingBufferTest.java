@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link ZslRingBuffer}.
+*/
+public class ZslRingBufferTest extends TestCase {
+
+    /**
+    * A full ring hands back its oldest frame, and never holds more than its capacity.
+    */
+    public void testEvictsOldest() {
+        ZslRingBuffer<String> ring = new ZslRingBuffer<>(3);
+        assertNull(ring.add(100, "a"));
+        assertNull(ring.add(200, "b"));
+        assertNull(ring.add(300, "c"));
+        assertEquals("a", ring.add(400, "d"));
+        assertEquals(3, ring.size());
+        assertEquals(3, ring.getPeakSize());
+        assertEquals(400, ring.getNewestTimestamp());
+        assertEquals("b", ring.removeOldest());
+        assertEquals(2, ring.size());
+    }
+
+    /**
+    * The frame closest to the requested time is taken out, and the others stay in order.
+    */
+    public void testTakeClosest() {
+        ZslRingBuffer<String> ring = new ZslRingBuffer<>(4);
+        ring.add(100, "a");
+        ring.add(200, "b");
+        ring.add(300, "c");
+        ring.add(400, "d");
+        ring.add(500, "e");
+
+        assertEquals("c", ring.takeClosest(290));
+        assertEquals(3, ring.size());
+        // On a tie, the newer frame wins.
+        assertEquals("e", ring.takeClosest(450));
+        assertEquals("d", ring.takeClosest(10000));
+        assertEquals("b", ring.removeOldest());
+        assertNull(ring.takeClosest(0));
+        assertEquals(-1, ring.getNewestTimestamp());
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link CaptureStateMachine} through a full shot with synthetic 3A results: focus scans
+ * and locks, exposure needs a precapture sequence, and then converges. Run with {@code -prof gc}
+ * to check that processing results does not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureStateMachineBenchmark {
+
+    private static final int AF_PASSIVE_SCAN = 1;
+    private static final int AE_SEARCHING = 1;
+
+    /**
+     * AF and AE states of consecutive capture results, as the device would report them.
+     */
+    private final int[] mAfStates = new int[24];
+    private final int[] mAeStates = new int[24];
+
+    private final CaptureStateMachine mStateMachine = new CaptureStateMachine();
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < mAfStates.length; i++) {
+            mAfStates[i] = i < 8 ? AF_PASSIVE_SCAN : CaptureStateMachine.AF_STATE_FOCUSED_LOCKED;
+            if (i < 8) {
+                mAeStates[i] = AE_SEARCHING;
+            } else if (i < 16) {
+                mAeStates[i] = CaptureStateMachine.AE_STATE_PRECAPTURE;
+            } else {
+                mAeStates[i] = CaptureStateMachine.AE_STATE_CONVERGED;
+            }
+        }
+    }
+
+    @Benchmark
+    public int shot() {
+        mStateMachine.setState(CaptureStateMachine.STATE_WAITING_LOCK);
+        int actions = 0;
+        for (int i = 0; i < mAfStates.length; i++) {
+            actions |= mStateMachine.process(mAfStates[i], mAeStates[i]);
+        }
+        return actions;
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link ImageFileWriter} strategies for frames of 8 to 50 MB. Run with
+ * {@code -prof gc} to see the per-shot allocation of the {@code BYTE_ARRAY} path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageFileWriterBenchmark {
+
+    @Param({"8", "16", "32", "50"})
+    public int frameMegabytes;
+
+    @Param({"BYTE_ARRAY", "CHANNEL", "POOLED"})
+    public String strategy;
+
+    private ImageFileWriter.Strategy mStrategy;
+
+    private ByteBuffer mFrame;
+
+    private ByteBufferPool mPool;
+
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mStrategy = ImageFileWriter.Strategy.valueOf(strategy);
+        byte[] bytes = new byte[frameMegabytes * 1024 * 1024];
+        new Random(42).nextBytes(bytes);
+        // Image planes are direct buffers, so the frame lives outside the Java heap here too.
+        mFrame = ByteBuffer.allocateDirect(bytes.length);
+        mFrame.put(bytes);
+        mPool = new ByteBufferPool(1, 256 * 1024);
+        mFile = File.createTempFile("frame", ".jpg");
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (!mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        mFrame.clear();
+        return ImageFileWriter.write(mFrame, mFile, mStrategy, mPool);
+    }
+
+}
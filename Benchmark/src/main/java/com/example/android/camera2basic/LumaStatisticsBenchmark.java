@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures synthetic luma planes with padded rows, to show what the sampling stride and splitting
+ * a frame across threads cost and save. Run with {@code -prof gc} to check that a frame is
+ * measured without allocating.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LumaStatisticsBenchmark {
+
+    @Param({"640x480", "1920x1080", "4032x3024"})
+    public String size;
+
+    @Param({"1", "4"})
+    public int stride;
+
+    /**
+     * Zero measures on the calling thread.
+     */
+    @Param({"0", "2", "4"})
+    public int threads;
+
+    private ForkJoinPool mPool;
+
+    private LumaStatistics mStatistics;
+
+    private YuvFrame mFrame;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        mPool = threads == 0 ? null : new ForkJoinPool(threads);
+        mStatistics = new LumaStatistics(stride, mPool);
+        mFrame = createFrame(width, height);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (null != mPool) {
+            mPool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public double measure() {
+        mStatistics.measure(mFrame);
+        return mStatistics.getMean();
+    }
+
+    /**
+     * A gradient with noise that clips at both ends.
+     */
+    private static YuvFrame createFrame(int width, int height) {
+        Random random = new Random(42);
+        int rowStride = (width + 63) & ~63;
+        ByteBuffer luma = ByteBuffer.allocateDirect(rowStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = x * 300 / width - 20 + random.nextInt(16);
+                luma.put(y * rowStride + x, (byte) Math.max(0, Math.min(255, value)));
+            }
+        }
+        YuvFrame.Plane plane = new YuvFrame.Plane(luma, rowStride, 1);
+        return new YuvFrame(width, height, plane, plane, plane);
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes synthetic YUV frames laid out like the camera's, with padded rows and interleaved
+ * chroma, to show how {@link ParallelJpegEncoder} scales with the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelJpegEncoderBenchmark {
+
+    @Param({"1920x1080", "4032x3024"})
+    public String size;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    @Param({"YUV_420", "YUV_444"})
+    public String subsampling;
+
+    private ForkJoinPool mPool;
+
+    private ParallelJpegEncoder mEncoder;
+
+    private YuvFrame mFrame;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        mPool = new ForkJoinPool(threads);
+        mEncoder = new ParallelJpegEncoder(mPool, 95,
+                ParallelJpegEncoder.Subsampling.valueOf(subsampling));
+        mFrame = createFrame(width, height);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return mEncoder.encode(mFrame, 90);
+    }
+
+    /**
+     * A smooth gradient with some noise, so that the entropy coder has work to do.
+     */
+    private static YuvFrame createFrame(int width, int height) {
+        Random random = new Random(42);
+        int lumaStride = (width + 63) & ~63;
+        ByteBuffer luma = ByteBuffer.allocateDirect(lumaStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                luma.put(y * lumaStride + x, (byte) ((x + y) / 16 + random.nextInt(24)));
+            }
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        ByteBuffer vu = ByteBuffer.allocateDirect(lumaStride * chromaHeight);
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                vu.put(y * lumaStride + x * 2, (byte) (128 + x / 32 + random.nextInt(6)));
+                vu.put(y * lumaStride + x * 2 + 1, (byte) (128 - y / 32 + random.nextInt(6)));
+            }
+        }
+        ByteBuffer u = vu.duplicate();
+        u.position(1);
+        return new YuvFrame(width, height, new YuvFrame.Plane(luma, lumaStride, 1),
+                new YuvFrame.Plane(u.slice(), lumaStride, 2),
+                new YuvFrame.Plane(vu, lumaStride, 2));
+    }
+
+}
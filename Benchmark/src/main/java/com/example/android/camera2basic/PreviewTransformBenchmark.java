@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PreviewTransform} while a view is resized back and forth, as in a
+ * multi-window resize animation: cached sizes, and a sweep through more sizes than fit in the
+ * cache. Run with "-prof gc" to see that neither allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreviewTransformBenchmark {
+
+    private final PreviewTransform mTransform = new PreviewTransform();
+    private int mStep;
+
+    @Benchmark
+    public float[] cached() {
+        mStep = (mStep + 1) % PreviewTransform.CACHE_SIZE;
+        return mTransform.get(1, 1920 - mStep, 1080, 1920, 1080);
+    }
+
+    @Benchmark
+    public float[] sweep() {
+        mStep = (mStep + 1) % 600;
+        return mTransform.get(1, 1920 - mStep, 1080 - mStep / 2, 1920, 1080);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import android.util.Size;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures picking the still and preview sizes the way {@code setUpCameraOutputs} does, against
+ * the output sizes of a typical 12 MP back camera: a choice that is remembered, and choices for
+ * more view sizes than {@link SizeSelector} remembers, which are all worked out again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SizeSelectorBenchmark {
+
+    private final Size[] mJpegSizes = {
+            new Size(4032, 3024), new Size(4000, 3000), new Size(3840, 2160),
+            new Size(3264, 2448), new Size(3200, 2400), new Size(2976, 2976),
+            new Size(2592, 1944), new Size(2688, 1512), new Size(2048, 1536),
+            new Size(1920, 1440), new Size(1920, 1080), new Size(1600, 1200),
+            new Size(1440, 1080), new Size(1280, 960), new Size(1280, 768),
+            new Size(1280, 720), new Size(1024, 768), new Size(800, 600),
+            new Size(720, 480), new Size(640, 480), new Size(640, 360),
+            new Size(352, 288), new Size(320, 240), new Size(176, 144)};
+
+    private final List<Size> mJpegSizeList = Arrays.asList(mJpegSizes);
+
+    private final Size mLargest = new Size(4032, 3024);
+
+    private final SizeSelector mSelector = new SizeSelector(mJpegSizes, frameDurations(), null);
+
+    private final SizeSelector.Criteria[] mViews = new SizeSelector.Criteria[32];
+
+    private int mView;
+
+    public SizeSelectorBenchmark() {
+        for (int i = 0; i < mViews.length; i++) {
+            // A 1080x1920 portrait view on a sensor mounted at 90 degrees, being resized.
+            mViews[i] = criteria(1920 - 8 * i, 1080);
+        }
+    }
+
+    /**
+     * Sizes of 8 MP and more stream at 24 fps, the rest at 30 fps.
+     */
+    private long[] frameDurations() {
+        long[] durations = new long[mJpegSizes.length];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = mJpegSizes[i].getWidth() * mJpegSizes[i].getHeight() >= 8000000
+                    ? 41666666 : 33333333;
+        }
+        return durations;
+    }
+
+    private SizeSelector.Criteria criteria(int width, int height) {
+        return new SizeSelector.Criteria.Builder()
+                .setTarget(width, height)
+                .setMaxSize(1920, 1080)
+                .setAspectRatio(mLargest.getWidth(), mLargest.getHeight(), 0.02f)
+                .setMinFrameRate(30)
+                .build();
+    }
+
+    @Benchmark
+    public Size largestJpegSize() {
+        return Collections.max(mJpegSizeList, new CompareSizesByArea());
+    }
+
+    @Benchmark
+    public Size previewSizeRemembered() {
+        return mSelector.select(mViews[0]).getSize();
+    }
+
+    @Benchmark
+    public Size previewSizeWorkedOut() {
+        mView = (mView + 1) % mViews.length;
+        return mSelector.select(mViews[mView]).getSize();
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera2basic;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+/**
+* Decodes the output of {@link ParallelJpegEncoder}, which is what {@code YuvStillEncoder} saves,
+* with the JPEG decoder of the JDK. Host only, as Android has no {@code javax.imageio}.
+*/
+public class ParallelJpegEncoderRoundTripTest extends TestCase {
+
+    /**
+    * Not a multiple of the MCU size, so that the padded edges are covered too.
+    */
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+
+    private static final int QUALITY = 90;
+
+    /**
+    * Lowest acceptable peak signal-to-noise ratio, in dB, of each plane against the source.
+    * A correct encode at {@link #QUALITY} is well above it, and misplaced blocks, swapped
+    * planes, or wrong quantization tables are well below it.
+    */
+    private static final double MIN_PSNR = 35;
+
+    /**
+    * The decoded picture has the size and, within the loss of the encoding, the pixels of the
+    * source frame.
+    */
+    public void testDecodesToSourceFrame() throws Exception {
+        YuvFrame frame = createFrame();
+        for (ParallelJpegEncoder.Subsampling subsampling
+                : ParallelJpegEncoder.Subsampling.values()) {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                    encode(frame, subsampling)));
+            assertNotNull(subsampling.toString(), image);
+            assertEquals(WIDTH, image.getWidth());
+            assertEquals(HEIGHT, image.getHeight());
+
+            double[] squaredErrors = new double[3];
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int rgb = image.getRGB(x, y);
+                    int r = (rgb >> 16) & 0xff;
+                    int g = (rgb >> 8) & 0xff;
+                    int b = rgb & 0xff;
+                    // Back to full range YCbCr, as in JFIF.
+                    double luma = 0.299 * r + 0.587 * g + 0.114 * b;
+                    double cb = 128 - 0.168736 * r - 0.331264 * g + 0.5 * b;
+                    double cr = 128 + 0.5 * r - 0.418688 * g - 0.081312 * b;
+                    squaredErrors[0] += square(luma - sample(frame.getY(), x, y));
+                    squaredErrors[1] += square(cb - sample(frame.getU(), x / 2, y / 2));
+                    squaredErrors[2] += square(cr - sample(frame.getV(), x / 2, y / 2));
+                }
+            }
+            for (int plane = 0; plane < squaredErrors.length; plane++) {
+                double psnr = 10 * Math.log10(255.0 * 255.0
+                        / (squaredErrors[plane] / (WIDTH * HEIGHT)));
+                assertTrue(subsampling + " plane " + plane + ": " + psnr + " dB",
+                        psnr >= MIN_PSNR);
+            }
+        }
+    }
+
+    private static byte[] encode(YuvFrame frame, ParallelJpegEncoder.Subsampling subsampling) {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            return new ParallelJpegEncoder(pool, QUALITY, subsampling).encode(frame, 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int sample(YuvFrame.Plane plane, int x, int y) {
+        return plane.getBuffer().get(y * plane.getRowStride() + x * plane.getPixelStride())
+                & 0xff;
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    /**
+    * Gradients with a checkerboard on top, and chroma kept close enough to grey that the
+    * decoded colors are never clipped.
+    */
+    private static YuvFrame createFrame() {
+        int chromaWidth = (WIDTH + 1) / 2;
+        int chromaHeight = (HEIGHT + 1) / 2;
+        ByteBuffer luma = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int checker = ((x / 4 + y / 4) % 2) * 20;
+                luma.put(y * WIDTH + x, (byte) (60 + x + y + checker));
+            }
+        }
+        ByteBuffer u = ByteBuffer.allocateDirect(chromaWidth * chromaHeight);
+        ByteBuffer v = ByteBuffer.allocateDirect(chromaWidth * chromaHeight);
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                u.put(y * chromaWidth + x, (byte) (128 + x - chromaWidth / 2));
+                v.put(y * chromaWidth + x, (byte) (128 - y + chromaHeight / 2));
+            }
+        }
+        return new YuvFrame(WIDTH, HEIGHT, new YuvFrame.Plane(luma, WIDTH, 1),
+                new YuvFrame.Plane(u, chromaWidth, 1), new YuvFrame.Plane(v, chromaWidth, 1));
+    }
+
+}